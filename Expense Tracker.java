@@ -1,15 +1,60 @@
+package expensetracker;
+
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.text.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAccessor;
+import java.time.zone.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.regex.*;
 import java.util.stream.*;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.management.*;
 
 /**
  * Smart Expense Tracker - A complete CLI application for managing expenses
+ *
+ * Not public, so the file keeps its name: run it with {@code java "Expense Tracker.java"}
+ * or build it with Maven (see README.md).
  */
-public class ExpenseTracker {
+class ExpenseTracker {
+    private static final int PAGE_SIZE = 20;    // rows per page when listing
+    
     public static void main(String[] args) {
         ExpenseManager manager = new ExpenseManager();
+        // Commands keep stdout for their JSON
+        PrintStream alerts = args.length > 0 ? System.err : System.out;
+        manager.addBudgetListener(alert -> alerts.println("⚠️  " + alert));
+        if (args.length > 0) {
+            boolean ok = runCommand(manager, args);
+            manager.close();
+            if (!ok) {
+                System.exit(1);
+            }
+            return;
+        }
         Scanner scanner = new Scanner(System.in);
         
         System.out.println("\n" + "=".repeat(60));
@@ -26,8 +71,8 @@ public class ExpenseTracker {
                 
                 switch (choice) {
                     case 1 -> addExpense(manager, scanner);
-                    case 2 -> viewAllExpenses(manager);
-                    case 3 -> viewByCategory(manager);
+                    case 2 -> viewAllExpenses(manager, scanner);
+                    case 3 -> viewByCategory(manager, scanner);
                     case 4 -> searchExpenses(manager, scanner);
                     case 5 -> deleteExpense(manager, scanner);
                     case 6 -> showStatistics(manager);
@@ -35,6 +80,7 @@ public class ExpenseTracker {
                     case 8 -> showHelp();
                     case 9 -> {
                         System.out.println("\n💾 Saving data... Goodbye!");
+                        manager.close();
                         running = false;
                     }
                     default -> System.out.println("❌ Invalid choice! Please enter 1-9.");
@@ -46,6 +92,118 @@ public class ExpenseTracker {
         scanner.close();
     }
     
+    // Returns false if the command failed
+    private static boolean runCommand(ExpenseManager manager, String[] args) {
+        if (CommandProcessor.handles(args[0])) {
+            String result = new CommandProcessor(manager).execute(Arrays.asList(args));
+            System.out.println(result);
+            return result.startsWith("{\"ok\":true");
+        }
+        switch (args[0]) {
+            case "import" -> importCSV(manager, args);
+            case "batch" -> runBatch(manager);
+            case "serve" -> serve(manager, args);
+            default -> {
+                System.out.println("""
+                    Usage: ExpenseTracker <command>
+                      add <description> <amount> [category] [--date yyyy-MM-dd[ HH:mm[:ss]]] [--currency EUR]
+                      delete <id or unique id prefix>
+                      search <words...> [OR <words...>] [--any | --substring] [--limit n]
+                      stats [--from yyyy-MM-dd] [--to yyyy-MM-dd]
+                      export <file.csv[.gz]> [--from yyyy-MM-dd] [--to yyyy-MM-dd] [--category a,b,...]
+                      budget [list | set <category|*> <day|week|month|year> <limit> [--alert 80,100]
+                             | remove <category|*> <period>]
+                      recur [list | add <description> <amount> <category> <daily|weekly|monthly|yearly|"cron">
+                             [--start yyyy-MM-dd[ HH:mm]] [--end yyyy-MM-dd] [--currency EUR] | remove <id> | run]
+                      rule [list | add <keyword|prefix|regex> <pattern> <category> | remove <n> | test <description>]
+                      metrics                operation latencies and counters
+                      import <file.csv[.gz]> [--map field=column,...] [--date-format pattern] [--no-header]
+                      batch                  read commands from stdin, one per line
+                      serve [--port n]       answer commands on a loopback socket (default 7878)
+                    Commands other than import print one line of JSON.
+                    Run without arguments for the interactive menu.""");
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // One command per stdin line, one line of JSON per command
+    private static void runBatch(ExpenseManager manager) {
+        CommandProcessor processor = new CommandProcessor(manager);
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isBlank()) {
+                    System.out.println(processor.execute(line));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(CommandProcessor.error(e.getMessage()));
+        }
+    }
+    
+    private static void serve(ExpenseManager manager, String[] args) {
+        int port = CommandServer.DEFAULT_PORT;
+        if (args.length == 3 && args[1].equals("--port")) {
+            port = Integer.parseInt(args[2]);
+        }
+        // Not a try-with-resources: serve() closes the server however it returns, and the
+        // shutdown hook closes it from outside
+        try {
+            CommandServer server = new CommandServer(manager, port);
+            // Ctrl-C: stop accepting and get buffered journal records onto disk
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+                manager.flush();
+            }));
+            System.out.println("📡 Serving expenses on " + InetAddress.getLoopbackAddress().getHostAddress()
+                + ":" + server.port() + " (one command per line; 'shutdown' to stop)");
+            server.serve();
+        } catch (IOException e) {
+            System.out.println("❌ Could not start server: " + e.getMessage());
+        }
+    }
+    
+    private static void importCSV(ExpenseManager manager, String[] args) {
+        if (args.length < 2) {
+            System.out.println("❌ Please give the CSV file to import!");
+            return;
+        }
+        
+        CsvColumnMapping mapping = new CsvColumnMapping();
+        mapping.defaultCurrency = manager.getBaseCurrency();
+        try {
+            for (int i = 2; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--map" -> mapping.with(args[++i]);
+                    case "--date-format" -> mapping.datePattern = args[++i];
+                    case "--no-header" -> mapping.header = false;
+                    default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            
+            CsvImporter.Report report = new CsvImporter(mapping, manager.getCategoryRules()).importFile(Paths.get(args[1]), manager);
+            System.out.printf("✅ Imported %d of %d rows in %d ms (%.0f rows/sec)%n",
+                report.imported, report.rows,
+                (report.parseNanos + report.commitNanos) / 1_000_000, report.rowsPerSecond());
+            
+            if (!report.rejected.isEmpty()) {
+                System.out.printf("⚠️  Rejected %d rows:%n", report.rejected.size());
+                report.rejected.stream().limit(20).forEach(r -> System.out.println("  " + r));
+                if (report.rejected.size() > 20) {
+                    System.out.println("  ...");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("❌ Error importing: " + e.getMessage());
+        }
+    }
+    
     private static void displayMenu() {
         System.out.println("\n" + "─".repeat(50));
         System.out.println("📋 MAIN MENU");
@@ -74,10 +232,16 @@ public class ExpenseTracker {
                 return;
             }
             
-            System.out.print("Amount: $");
-            double amount;
+            System.out.print("Amount (" + manager.getBaseCurrency() + ", or add a currency: 12.50 EUR): ");
+            String[] amountText = scanner.nextLine().trim().split("\\s+");
+            if (amountText.length > 2) {
+                System.out.println("❌ Please enter a valid number!");
+                return;
+            }
+            String currency = amountText.length > 1 ? amountText[1].toUpperCase(Locale.ROOT) : manager.getBaseCurrency();
+            long amount;
             try {
-                amount = Double.parseDouble(scanner.nextLine().trim());
+                amount = Expense.minorUnits(new BigDecimal(amountText[0].replace("$", "")), currency);
                 if (amount <= 0) {
                     System.out.println("❌ Amount must be positive!");
                     return;
@@ -85,13 +249,23 @@ public class ExpenseTracker {
             } catch (NumberFormatException e) {
                 System.out.println("❌ Please enter a valid number!");
                 return;
+            } catch (IllegalArgumentException e) {
+                System.out.println("❌ Unknown currency: " + currency);
+                return;
+            }
+            if (!manager.converts(currency)) {
+                System.out.println("❌ No exchange rate for " + currency + "; add one to " + ExchangeRates.FILE + ".");
+                return;
             }
             
+            String detected = manager.categorize(description);
             System.out.println("Categories: Food(1) Transport(2) Shopping(3) Entertainment(4) Bills(5) Other(6)");
-            System.out.print("Choose category (1-6): ");
-            int catChoice = Integer.parseInt(scanner.nextLine());
+            System.out.print("Choose category (1-6, Enter for " + detected + "): ");
+            String catText = scanner.nextLine().trim();
+            int catChoice = catText.isEmpty() ? 0 : Integer.parseInt(catText);
             
             String category = switch (catChoice) {
+                case 0 -> detected;
                 case 1 -> "Food";
                 case 2 -> "Transport";
                 case 3 -> "Shopping";
@@ -101,55 +275,67 @@ public class ExpenseTracker {
                 default -> "Other";
             };
             
-            Expense expense = new Expense(description, amount, category);
+            Expense expense = new Expense(UUID.randomUUID().toString(), description, amount, currency, category, new Date());
             manager.addExpense(expense);
             
             System.out.println("✅ Expense added successfully!");
-            System.out.printf("📝 Added: %s | $%.2f | %s%n", 
-                expense.getDescription(), expense.getAmount(), expense.getCategory());
+            System.out.printf("📝 Added: %s | %s | %s%n", 
+                expense.getDescription(), Expense.format(amount, currency), expense.getCategory());
             
         } catch (Exception e) {
             System.out.println("❌ Error adding expense: " + e.getMessage());
         }
     }
     
-    private static void viewAllExpenses(ExpenseManager manager) {
+    private static void viewAllExpenses(ExpenseManager manager, Scanner scanner) {
         System.out.println("\n📄 ALL EXPENSES");
         System.out.println("=".repeat(80));
         
-        List<Expense> expenses = manager.getAllExpenses();
-        
-        if (expenses.isEmpty()) {
+        if (manager.getExpenseCount() == 0) {
             System.out.println("No expenses found. Add some expenses first!");
             return;
         }
         
-        System.out.printf("%-8s %-25s %-10s %-15s %-20s%n", 
-            "ID", "Description", "Amount", "Category", "Date");
-        System.out.println("-".repeat(80));
-        
-        double total = 0;
-        for (Expense expense : expenses) {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm");
-            System.out.printf("%-8s %-25s $%-9.2f %-15s %-20s%n",
-                expense.getId().substring(0, 6),
-                truncate(expense.getDescription(), 23),
-                expense.getAmount(),
-                expense.getCategory(),
-                sdf.format(expense.getDate()));
-            total += expense.getAmount();
-        }
+        browse(manager, scanner, null, ExpenseTable.LEDGER);
         
         System.out.println("-".repeat(80));
-        System.out.printf("💵 TOTAL: $%.2f | 📊 Count: %d%n", total, expenses.size());
+        System.out.printf(inBase(manager, "💵 TOTAL: $%.2f | 📊 Count: %d%n"), manager.getTotalExpenses(), manager.getExpenseCount());
+    }
+    
+    // Pages through the ledger (or one category), fetching only the rows being shown
+    private static void browse(ExpenseManager manager, Scanner scanner, String category, ExpenseTable table) {
+        ExpenseSort sort = ExpenseSort.DATE;
+        boolean descending = false;
+        int offset = 0;
+        while (true) {
+            ExpensePage page = manager.getPage(sort, descending, category, offset, PAGE_SIZE);
+            if (page.expenses.isEmpty() && offset > 0) {
+                // The ledger shrank under us; back up to its last page
+                offset = Math.max(0, (page.total - 1) / PAGE_SIZE * PAGE_SIZE);
+                continue;
+            }
+            table.print(page);
+            if (page.total <= PAGE_SIZE) return;
+            
+            System.out.print("[n]ext [p]rev | sort by [d]ate [a]mount [c]ategory | [r]everse | Enter to go back: ");
+            switch (scanner.nextLine().trim().toLowerCase()) {
+                case "n" -> offset = page.hasMore() ? offset + PAGE_SIZE : offset;
+                case "p" -> offset = Math.max(0, offset - PAGE_SIZE);
+                case "d" -> { sort = ExpenseSort.DATE; offset = 0; }
+                case "a" -> { sort = ExpenseSort.AMOUNT; offset = 0; }
+                case "c" -> { sort = ExpenseSort.CATEGORY; offset = 0; }
+                case "r" -> { descending = !descending; offset = 0; }
+                case "" -> { return; }
+                default -> System.out.println("❌ Unknown choice.");
+            }
+        }
     }
     
-    private static void viewByCategory(ExpenseManager manager) {
+    private static void viewByCategory(ExpenseManager manager, Scanner scanner) {
         System.out.println("\n📊 EXPENSES BY CATEGORY");
         System.out.println("=".repeat(50));
         
         Map<String, Double> categoryTotals = manager.getCategoryTotals();
-        Map<String, List<Expense>> byCategory = manager.getExpensesByCategory();
         
         if (categoryTotals.isEmpty()) {
             System.out.println("No expenses found. Add some expenses first!");
@@ -167,29 +353,20 @@ public class ExpenseTracker {
             .forEach(entry -> {
                 double percentage = (entry.getValue() / overallTotal) * 100;
                 String bar = generateBar(percentage, 20);
-                System.out.printf("%-15s: $%-10.2f %5.1f%% %s%n",
+                System.out.printf(inBase(manager, "%-15s: $%-10.2f %5.1f%% %s%n"),
                     entry.getKey(), entry.getValue(), percentage, bar);
             });
         
         System.out.println("-".repeat(50));
-        System.out.printf("💵 OVERALL TOTAL: $%.2f%n", overallTotal);
+        System.out.printf(inBase(manager, "💵 OVERALL TOTAL: $%.2f%n"), overallTotal);
         
         // View details for a specific category
-        Scanner tempScanner = new Scanner(System.in);
         System.out.print("\nEnter category to view details (or press Enter to skip): ");
-        String category = tempScanner.nextLine();
+        String category = scanner.nextLine();
         
-        if (!category.isEmpty() && byCategory.containsKey(category)) {
+        if (!category.isEmpty() && categoryTotals.containsKey(category)) {
             System.out.println("\n📝 Expenses in " + category + ":");
-            System.out.println("-".repeat(60));
-            
-            byCategory.get(category).forEach(expense -> {
-                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-                System.out.printf("  %-25s $%-8.2f %s%n",
-                    truncate(expense.getDescription(), 23),
-                    expense.getAmount(),
-                    sdf.format(expense.getDate()));
-            });
+            browse(manager, scanner, category, ExpenseTable.CATEGORY_DETAIL);
         }
     }
     
@@ -202,7 +379,15 @@ public class ExpenseTracker {
             return;
         }
         
-        List<Expense> results = manager.searchExpenses(keyword);
+        // Whole words first, then the expenses that only have the text inside a word
+        List<Expense> results = new ArrayList<>(manager.searchExpenses(keyword, SearchMode.ALL));
+        Set<String> found = new HashSet<>();
+        results.forEach(expense -> found.add(expense.getId()));
+        for (String alternative : SearchIndex.alternatives(keyword)) {
+            for (Expense expense : manager.searchExpenses(alternative, SearchMode.SUBSTRING)) {
+                if (found.add(expense.getId())) results.add(expense);
+            }
+        }
         
         System.out.println("\n🔎 SEARCH RESULTS for: \"" + keyword + "\"");
         System.out.println("=".repeat(60));
@@ -214,27 +399,29 @@ public class ExpenseTracker {
         
         double total = 0;
         for (Expense expense : results) {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-            System.out.printf("  %-25s $%-8.2f %-12s %s%n",
+            System.out.printf("  %-25s %-9s %-12s %s%n",
                 truncate(expense.getDescription(), 23),
-                expense.getAmount(),
+                Expense.format(expense.getAmountMinor(), expense.getCurrency()),
                 expense.getCategory(),
-                sdf.format(expense.getDate()));
-            total += expense.getAmount();
+                ExpenseTable.DATE.format(expense.getDate().toInstant()));
+            total += manager.toBaseCurrency(expense);
         }
         
         System.out.println("-".repeat(60));
-        System.out.printf("📊 Found: %d expenses | 💵 Total: $%.2f%n", results.size(), total);
+        System.out.printf(inBase(manager, "📊 Found: %d expenses | 💵 Total: $%.2f%n"), results.size(), total);
     }
     
     private static void deleteExpense(ExpenseManager manager, Scanner scanner) {
-        viewAllExpenses(manager);
-        List<Expense> expenses = manager.getAllExpenses();
-        
-        if (expenses.isEmpty()) {
+        if (manager.getExpenseCount() == 0) {
+            System.out.println("No expenses found. Add some expenses first!");
             return;
         }
         
+        // Most recent first; older ones can be looked up from View All Expenses
+        System.out.println("\n🕒 RECENT EXPENSES");
+        System.out.println("=".repeat(80));
+        ExpenseTable.LEDGER.print(manager.getPage(ExpenseSort.DATE, true, null, 0, 10));
+        
         System.out.print("\n🗑️  Enter expense ID to delete (first 6 chars): ");
         String id = scanner.nextLine().trim();
         
@@ -243,17 +430,21 @@ public class ExpenseTracker {
             return;
         }
         
-        Expense toDelete = null;
-        for (Expense expense : expenses) {
-            if (expense.getId().startsWith(id)) {
-                toDelete = expense;
-                break;
+        List<Expense> matches = manager.findByIdPrefix(id, 10);
+        if (matches.size() > 1) {
+            System.out.println("❌ That ID prefix matches more than one expense:");
+            for (Expense match : matches) {
+                System.out.printf("   %s  %s%n", match.getId(), truncate(match.getDescription(), 30));
             }
+            System.out.println("   Enter more characters of the ID.");
+            return;
         }
+        Expense toDelete = matches.isEmpty() ? null : matches.get(0);
         
         if (toDelete != null) {
-            System.out.printf("\n⚠️  Confirm delete: %s | $%.2f | %s%n",
-                toDelete.getDescription(), toDelete.getAmount(), toDelete.getCategory());
+            System.out.printf("\n⚠️  Confirm delete: %s | %s | %s%n",
+                toDelete.getDescription(), Expense.format(toDelete.getAmountMinor(), toDelete.getCurrency()),
+                toDelete.getCategory());
             System.out.print("Type 'yes' to confirm: ");
             
             if (scanner.nextLine().trim().equalsIgnoreCase("yes")) {
@@ -274,68 +465,61 @@ public class ExpenseTracker {
         System.out.println("\n📈 EXPENSE STATISTICS");
         System.out.println("=".repeat(60));
         
-        List<Expense> expenses = manager.getAllExpenses();
+        // Everything below comes from a single pass over the ledger (recent = last 7 days)
+        Calendar weekAgo = Calendar.getInstance();
+        weekAgo.add(Calendar.DAY_OF_YEAR, -7);
+        ExpenseStatistics stats = manager.getStatistics(weekAgo.getTime());
         
-        if (expenses.isEmpty()) {
+        if (stats.count == 0) {
             System.out.println("No expenses to analyze. Add some expenses first!");
             return;
         }
         
-        // Basic statistics
-        double total = manager.getTotalExpenses();
-        int count = expenses.size();
-        double average = total / count;
-        
-        // Find min and max
-        Expense minExpense = expenses.stream()
-            .min(Comparator.comparingDouble(Expense::getAmount))
-            .orElse(null);
-        Expense maxExpense = expenses.stream()
-            .max(Comparator.comparingDouble(Expense::getAmount))
-            .orElse(null);
+        double total = stats.total();
         
-        // Recent expenses (last 7 days)
-        Calendar weekAgo = Calendar.getInstance();
-        weekAgo.add(Calendar.DAY_OF_YEAR, -7);
-        long recentCount = expenses.stream()
-            .filter(e -> e.getDate().after(weekAgo.getTime()))
-            .count();
-        
-        System.out.printf("📊 Total Expenses: $%.2f%n", total);
-        System.out.printf("📈 Number of Expenses: %d%n", count);
-        System.out.printf("📉 Average per Expense: $%.2f%n", average);
-        System.out.printf("🆕 Recent (7 days): %d expenses%n", recentCount);
+        System.out.printf(inBase(manager, "📊 Total Expenses: $%.2f%n"), total);
+        System.out.printf("📈 Number of Expenses: %d%n", stats.count);
+        System.out.printf(inBase(manager, "📉 Average per Expense: $%.2f%n"), stats.average());
+        System.out.printf("🆕 Recent (7 days): %d expenses%n", stats.recentCount);
         
+        Expense minExpense = stats.smallest;
+        Expense maxExpense = stats.largest;
         if (minExpense != null && maxExpense != null) {
-            System.out.printf("📉 Smallest: %s ($%.2f)%n", 
-                truncate(minExpense.getDescription(), 20), minExpense.getAmount());
-            System.out.printf("📈 Largest: %s ($%.2f)%n", 
-                truncate(maxExpense.getDescription(), 20), maxExpense.getAmount());
+            System.out.printf("📉 Smallest: %s (%s)%n", 
+                truncate(minExpense.getDescription(), 20), Expense.format(minExpense.getAmountMinor(), minExpense.getCurrency()));
+            System.out.printf("📈 Largest: %s (%s)%n", 
+                truncate(maxExpense.getDescription(), 20), Expense.format(maxExpense.getAmountMinor(), maxExpense.getCurrency()));
+        }
+        
+        // Spread of amounts
+        System.out.println("\n📐 DISTRIBUTION:");
+        System.out.println("-".repeat(40));
+        System.out.printf(inBase(manager, "  Median         : $%.2f%n"), stats.median());
+        System.out.printf(inBase(manager, "  Std deviation  : $%.2f%n"), stats.standardDeviation());
+        for (int percentile : ExpenseStatistics.PERCENTILES) {
+            System.out.printf(inBase(manager, "  %-15s: $%.2f%n"), percentile + "th percentile", stats.percentile(percentile));
         }
         
         // Monthly breakdown
         System.out.println("\n📅 MONTHLY BREAKDOWN:");
         System.out.println("-".repeat(40));
         
-        Map<String, Double> monthly = manager.getMonthlyTotals();
-        monthly.entrySet().stream()
-            .sorted(Map.Entry.comparingByKey())
-            .forEach(entry -> {
-                System.out.printf("  %-15s: $%-10.2f%n", entry.getKey(), entry.getValue());
-            });
+        stats.months.forEach((month, bucket) ->
+            System.out.printf(inBase(manager, "  %04d-%02d        : $%-10.2f%n"), month / 100, month % 100, bucket.cents / 100.0));
         
         // Category insights
         System.out.println("\n🏷️  CATEGORY INSIGHTS:");
         System.out.println("-".repeat(40));
         
-        Map<String, Double> categories = manager.getCategoryTotals();
-        categories.entrySet().stream()
-            .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
+        stats.categories.entrySet().stream()
+            .sorted(Comparator.comparingLong((Map.Entry<String, ExpenseAggregates.Bucket> entry) -> entry.getValue().cents)
+                .reversed().thenComparing(Map.Entry::getKey))
             .limit(3)
             .forEach(entry -> {
-                double percentage = (entry.getValue() / total) * 100;
-                System.out.printf("  %-15s: $%-8.2f (%5.1f%%)%n",
-                    entry.getKey(), entry.getValue(), percentage);
+                ExpenseAggregates.Bucket bucket = entry.getValue();
+                double percentage = (bucket.cents / 100.0 / total) * 100;
+                System.out.printf(inBase(manager, "  %-15s: $%-8.2f (%5.1f%%) avg $%.2f%n"),
+                    entry.getKey(), bucket.cents / 100.0, percentage, (double) bucket.cents / bucket.count / 100.0);
             });
     }
     
@@ -347,7 +531,7 @@ public class ExpenseTracker {
             filename = "expenses_" + System.currentTimeMillis() + ".csv";
         }
         
-        if (!filename.endsWith(".csv")) {
+        if (!filename.endsWith(".csv") && !filename.endsWith(".csv.gz")) {
             filename += ".csv";
         }
         
@@ -380,7 +564,8 @@ public class ExpenseTracker {
             
             4. SEARCH: Find expenses by keyword
                - Search in descriptions and categories
-               - Case-insensitive matching
+               - Case-insensitive matching on word beginnings
+               - Several words must all match; use 'or' to match any
             
             5. DELETE: Remove unwanted expenses
                - Use the short ID (first 6 characters)
@@ -394,6 +579,7 @@ public class ExpenseTracker {
             7. EXPORT: Save data to CSV file
                - Open in Excel or Google Sheets
                - Use for tax purposes or budgeting
+               - Name the file .csv.gz to compress it
             
             💡 TIPS:
             • Be consistent with descriptions
@@ -411,148 +597,7848 @@ public class ExpenseTracker {
         int bars = (int) (percentage / (100.0 / length));
         return "[" + "█".repeat(bars) + " ".repeat(length - bars) + "]";
     }
+    
+    // Totals are in the base currency: swaps the $ in a format for its symbol
+    private static String inBase(ExpenseManager manager, String format) {
+        return format.replace("$", Currency.getInstance(manager.getBaseCurrency()).getSymbol(Locale.US));
+    }
 }
 
 /**
- * Expense Model Class
+ * Expense Table - Console table for one page of expenses
+ *
+ * Rows are padded by hand into one reused line buffer and written through a single
+ * buffered stream that is flushed once per page, so showing a page costs the same
+ * however big the ledger is. The formatters are immutable and shared.
  */
-class Expense implements Serializable {
-    private static final long serialVersionUID = 1L;
-    private final String id;
-    private final String description;
-    private final double amount;
-    private final String category;
-    private final Date date;
+class ExpenseTable {
+    static final ExpenseTable LEDGER = new ExpenseTable(true);
+    static final ExpenseTable CATEGORY_DETAIL = new ExpenseTable(false);
     
-    public Expense(String description, double amount, String category) {
-        this.id = UUID.randomUUID().toString();
-        this.description = description.trim();
-        this.amount = amount;
-        this.category = category;
-        this.date = new Date();
+    private static final DateTimeFormatter DATE_TIME =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+    static final DateTimeFormatter DATE =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneId.systemDefault());
+    // Sits on top of System.out so it stays in order with the menu's own prints
+    private static final PrintStream OUT = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+    
+    private final boolean ledger;    // full ledger columns, or the shorter per-category ones
+    private final StringBuilder line = new StringBuilder(128);
+    
+    private ExpenseTable(boolean ledger) {
+        this.ledger = ledger;
     }
     
-    // Getters
-    public String getId() { return id; }
-    public String getDescription() { return description; }
-    public double getAmount() { return amount; }
-    public String getCategory() { return category; }
-    public Date getDate() { return date; }
+    synchronized void print(ExpensePage page) {
+        int width = ledger ? 80 : 60;
+        line.setLength(0);
+        if (ledger) {
+            pad(line.append("ID"), 9);
+            pad(line.append("Description"), 35);
+            pad(line.append("Amount"), 46);
+            pad(line.append("Category"), 62);
+            pad(line.append("Date"), 82);
+        } else {
+            pad(line.append("  Description"), 28);
+            pad(line.append("Amount"), 37);
+            line.append("Date");
+        }
+        OUT.println(line);
+        OUT.println("-".repeat(width));
+        
+        for (Expense expense : page.expenses) {
+            line.setLength(0);
+            if (ledger) {
+                pad(line.append(expense.getId(), 0, 6), 9);
+                pad(truncated(line, expense.getDescription(), 23), 35);
+                pad(amount(line, expense.getAmountMinor(), expense.getCurrency()), 46);
+                pad(line.append(expense.getCategory()), 62);
+                pad(line.append(DATE_TIME.format(expense.getDate().toInstant())), 82);
+            } else {
+                pad(truncated(line.append("  "), expense.getDescription(), 23), 28);
+                pad(amount(line, expense.getAmountMinor(), expense.getCurrency()), 37);
+                line.append(DATE.format(expense.getDate().toInstant()));
+            }
+            OUT.println(line);
+        }
+        
+        line.setLength(0);
+        if (page.expenses.isEmpty()) {
+            line.append("No expenses to show.");
+        } else {
+            line.append("Showing ").append(page.offset + 1).append('-')
+                .append(page.offset + page.expenses.size()).append(" of ").append(page.total);
+        }
+        OUT.println(line);
+        OUT.flush();
+    }
     
-    @Override
-    public String toString() {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm");
-        return String.format("%s | %s | $%.2f | %s | %s", 
-            id.substring(0, 8), description, amount, category, sdf.format(date));
+    // Pads with spaces up to the given column, always leaving at least one
+    private static StringBuilder pad(StringBuilder line, int column) {
+        do {
+            line.append(' ');
+        } while (line.length() < column);
+        return line;
+    }
+    
+    private static StringBuilder truncated(StringBuilder line, String text, int maxLength) {
+        if (text.length() <= maxLength) return line.append(text);
+        return line.append(text, 0, maxLength - 3).append("...");
+    }
+    
+    // Symbol, then the amount with its currency's own decimals: $12.50, ¥1200, CHF9.90
+    private static StringBuilder amount(StringBuilder line, long minor, String currency) {
+        line.append(Currency.getInstance(currency).getSymbol(Locale.US));
+        if (minor < 0) {
+            line.append('-');
+            minor = -minor;
+        }
+        int digits = Expense.fractionDigits(currency);
+        if (digits == 0) {
+            return line.append(minor);
+        }
+        long unit = (long) Math.pow(10, digits);
+        String fraction = Long.toString(minor % unit);
+        line.append(minor / unit).append('.');
+        for (int i = fraction.length(); i < digits; i++) {
+            line.append('0');
+        }
+        return line.append(fraction);
     }
 }
 
 /**
- * Expense Manager - Handles business logic
+ * Command Processor - Runs one headless command and answers with a line of JSON
+ *
+ * Shared by the one-shot command line, the stdin batch mode and the command server,
+ * so all three accept the same commands:
+ *
+ *   add <description> <amount> [category] [--date yyyy-MM-dd[ HH:mm[:ss]]] [--currency EUR]
+ *   delete <id or unique id prefix>
+ *   search <words...> [OR <words...>] [--any | --substring] [--limit n]
+ *   stats [--from yyyy-MM-dd] [--to yyyy-MM-dd]
+ *   export <file.csv[.gz]> [--from yyyy-MM-dd] [--to yyyy-MM-dd] [--category a,b,...]
+ *   budget [list | set <category|*> <period> <limit> [--alert 80,100] | remove <category|*> <period>]
+ *   recur [list | add <description> <amount> <category> <schedule> [--start ..] [--end ..] | remove <id> | run]
+ *   rule [list | add <keyword|prefix|regex> <pattern> <category> | remove <n> | test <description>]
+ *   metrics
+ *
+ * Without a category, add takes the one the category rules give. Date bounds are local
+ * days and both are inclusive. Amounts are in the ledger's base
+ * currency unless an expense says otherwise, and totals always are. Processing is
+ * stateless, so one processor serves any number of threads.
  */
-class ExpenseManager {
-    private static final String DATA_FILE = "expenses.dat";
-    private List<Expense> expenses;
+class CommandProcessor {
+    private static final DateTimeFormatter DATE_TIME =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final int DEFAULT_SEARCH_LIMIT = 50;
     
-    public ExpenseManager() {
-        expenses = loadExpenses();
+    private final ExpenseManager manager;
+    
+    CommandProcessor(ExpenseManager manager) {
+        this.manager = manager;
     }
     
-    public void addExpense(Expense expense) {
-        expenses.add(expense);
-        saveExpenses();
+    static boolean handles(String command) {
+        return switch (command) {
+            case "add", "delete", "search", "stats", "export", "budget", "recur", "rule", "metrics" -> true;
+            default -> false;
+        };
     }
     
-    public boolean deleteExpense(String id) {
-        boolean removed = expenses.removeIf(e -> e.getId().equals(id));
-        if (removed) {
-            saveExpenses();
+    /** Runs a command line such as {@code add "Lunch out" 12.50 Food}. */
+    String execute(String line) {
+        List<String> args;
+        try {
+            args = split(line);
+        } catch (IllegalArgumentException e) {
+            return error(e.getMessage());
         }
-        return removed;
+        return args.isEmpty() ? error("Empty command") : execute(args);
     }
     
-    public List<Expense> getAllExpenses() {
-        return new ArrayList<>(expenses);
+    String execute(List<String> args) {
+        try {
+            return switch (args.get(0)) {
+                case "add" -> add(args);
+                case "delete" -> delete(args);
+                case "search" -> search(args);
+                case "stats" -> stats(args);
+                case "export" -> export(args);
+                case "budget" -> budget(args);
+                case "recur" -> recur(args);
+                case "rule" -> rule(args);
+                case "metrics" -> parse(args).values.isEmpty()
+                    ? "{\"ok\":true,\"metrics\":" + manager.getMetrics().toJson() + "}" : error("Usage: metrics");
+                default -> error("Unknown command: " + args.get(0));
+            };
+        } catch (IOException | RuntimeException e) {
+            return error(e.getMessage() == null ? e.toString() : e.getMessage());
+        }
     }
     
-    public List<Expense> searchExpenses(String keyword) {
-        return expenses.stream()
-            .filter(e -> e.getDescription().toLowerCase().contains(keyword.toLowerCase()) ||
-                        e.getCategory().toLowerCase().contains(keyword.toLowerCase()))
-            .collect(Collectors.toList());
+    private String add(List<String> args) {
+        Arguments parsed = parse(args, "--date", "--currency");
+        Map<String, String> options = parsed.options;
+        List<String> values = parsed.values;
+        if (values.size() != 2 && values.size() != 3) {
+            return error("Usage: add <description> <amount> [category] [--date yyyy-MM-dd[ HH:mm[:ss]]] [--currency EUR]");
+        }
+        String description = values.get(0).trim();
+        if (description.isEmpty()) {
+            return error("Description cannot be empty");
+        }
+        String currency = options.getOrDefault("--currency", manager.getBaseCurrency()).toUpperCase(Locale.ROOT);
+        long amount;
+        try {
+            amount = Expense.minorUnits(new BigDecimal(values.get(1)), currency);
+        } catch (NumberFormatException e) {
+            return error("Invalid amount: " + values.get(1));
+        } catch (IllegalArgumentException e) {
+            return error("Unknown currency: " + currency);
+        }
+        if (amount <= 0) {
+            return error("Amount must be positive");
+        }
+        Date date = options.containsKey("--date") ? parseDateTime(options.get("--date")) : new Date();
+        String category = values.size() == 3 ? values.get(2) : manager.categorize(description);
+        Expense expense = new Expense(UUID.randomUUID().toString(), description, amount, currency, category, date);
+        manager.addExpense(expense);
+        return new StringBuilder("{\"ok\":true,\"expense\":").append(toJson(expense)).append('}').toString();
     }
     
-    public double getTotalExpenses() {
-        return expenses.stream()
-            .mapToDouble(Expense::getAmount)
-            .sum();
+    private String delete(List<String> args) {
+        List<String> values = parse(args).values;
+        if (values.size() != 1) {
+            return error("Usage: delete <id or unique id prefix>");
+        }
+        List<Expense> matches = manager.findByIdPrefix(values.get(0), 2);
+        if (matches.isEmpty()) {
+            return error("No expense found with that ID");
+        }
+        if (matches.size() > 1) {
+            return error("ID prefix is ambiguous");
+        }
+        if (!manager.deleteExpense(matches.get(0).getId())) {
+            return error("Expense was already deleted");
+        }
+        return new StringBuilder("{\"ok\":true,\"deleted\":").append(toJson(matches.get(0))).append('}').toString();
     }
     
-    public Map<String, Double> getCategoryTotals() {
-        Map<String, Double> totals = new HashMap<>();
-        for (Expense expense : expenses) {
-            totals.merge(expense.getCategory(), expense.getAmount(), Double::sum);
+    private String search(List<String> args) {
+        Arguments parsed = parse(args, Set.of("--limit"), Set.of("--substring", "--any"));
+        Map<String, String> options = parsed.options;
+        String query = String.join(" ", parsed.values);
+        SearchMode mode = options.containsKey("--substring") ? SearchMode.SUBSTRING
+            : options.containsKey("--any") ? SearchMode.ANY : SearchMode.ALL;
+        int limit = options.containsKey("--limit") ? Integer.parseInt(options.get("--limit")) : DEFAULT_SEARCH_LIMIT;
+        List<Expense> results = manager.searchExpenses(query, mode);
+        
+        StringBuilder json = new StringBuilder("{\"ok\":true,\"count\":").append(results.size())
+            .append(",\"expenses\":[");
+        for (int i = 0; i < Math.min(limit, results.size()); i++) {
+            if (i > 0) json.append(',');
+            toJson(json, results.get(i));
         }
-        return totals;
+        return json.append("]}").toString();
     }
     
-    public Map<String, List<Expense>> getExpensesByCategory() {
-        Map<String, List<Expense>> map = new HashMap<>();
-        for (Expense expense : expenses) {
-            map.computeIfAbsent(expense.getCategory(), k -> new ArrayList<>())
-               .add(expense);
+    private String stats(List<String> args) {
+        Map<String, String> options = parse(args, "--from", "--to").options;
+        Date from = startOfDay(options.get("--from"), 0);
+        Date to = startOfDay(options.get("--to"), 1);
+        StringBuilder json = new StringBuilder("{\"ok\":true");
+        quote(json.append(",\"currency\":"), manager.getBaseCurrency());
+        if (from == null && to == null) {
+            Calendar weekAgo = Calendar.getInstance();
+            weekAgo.add(Calendar.DAY_OF_YEAR, -7);
+            ExpenseStatistics stats = manager.getStatistics(weekAgo.getTime());
+            appendTotals(json, stats.count, stats.totalCents);
+            json.append(",\"recent7Days\":").append(stats.recentCount);
+            if (stats.smallest != null && stats.largest != null) {
+                toJson(json.append(",\"smallest\":"), stats.smallest);
+                toJson(json.append(",\"largest\":"), stats.largest);
+            }
+            appendCents(json.append(",\"median\":"), Math.round(stats.median() * 100));
+            appendCents(json.append(",\"standardDeviation\":"), Math.round(stats.standardDeviation() * 100));
+            json.append(",\"percentiles\":{");
+            for (int i = 0; i < ExpenseStatistics.PERCENTILES.length; i++) {
+                int percentile = ExpenseStatistics.PERCENTILES[i];
+                json.append(i == 0 ? "\"p" : ",\"p").append(percentile).append("\":");
+                appendCents(json, Math.round(stats.percentile(percentile) * 100));
+            }
+            json.append('}');
+            Map<String, Double> categories = new TreeMap<>();
+            stats.categories.forEach((category, bucket) -> categories.put(category, bucket.cents / 100.0));
+            appendAmounts(json.append(",\"categories\":"), categories);
+            Map<String, Double> months = new TreeMap<>();
+            stats.months.forEach((month, bucket) ->
+                months.put(String.format("%04d-%02d", month / 100, month % 100), bucket.cents / 100.0));
+            appendAmounts(json.append(",\"months\":"), months);
+            // As entered, before conversion
+            json.append(",\"currencies\":{");
+            boolean first = true;
+            for (Map.Entry<String, BigDecimal> entry : new TreeMap<>(manager.getCurrencyTotals()).entrySet()) {
+                if (!first) json.append(',');
+                first = false;
+                quote(json, entry.getKey()).append(':').append(entry.getValue().toPlainString());
+            }
+            json.append('}');
+        } else {
+            appendTotals(json, manager.countBetween(from, to), Math.round(manager.sumBetween(from, to) * 100));
+            Map<String, Double> months = new TreeMap<>();
+            for (TimeIndex.Period period : manager.rollup(Rollup.MONTH, from, to)) {
+                months.put(String.format("%04d-%02d", period.start.getYear(), period.start.getMonthValue()),
+                    period.total());
+            }
+            appendAmounts(json.append(",\"months\":"), months);
         }
-        return map;
+        return json.append('}').toString();
     }
     
-    public Map<String, Double> getMonthlyTotals() {
-        Map<String, Double> monthly = new HashMap<>();
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM");
-        
-        for (Expense expense : expenses) {
-            String month = sdf.format(expense.getDate());
-            monthly.merge(month, expense.getAmount(), Double::sum);
+    private String export(List<String> args) throws IOException {
+        Arguments parsed = parse(args, "--from", "--to", "--category");
+        Map<String, String> options = parsed.options;
+        List<String> values = parsed.values;
+        if (values.size() != 1) {
+            return error("Usage: export <file.csv[.gz]> [--from yyyy-MM-dd] [--to yyyy-MM-dd] [--category a,b,...]");
         }
-        return monthly;
+        ExpenseFilter filter = ExpenseFilter.between(startOfDay(options.get("--from"), 0),
+            startOfDay(options.get("--to"), 1));
+        if (options.containsKey("--category")) {
+            filter = filter.withCategories(options.get("--category").split(","));
+        }
+        int rows = manager.exportToCSV(values.get(0), filter);
+        StringBuilder json = new StringBuilder("{\"ok\":true,\"rows\":").append(rows).append(",\"file\":");
+        return quote(json, Paths.get(values.get(0)).toAbsolutePath().toString()).append('}').toString();
     }
     
-    public int exportToCSV(String filename) throws IOException {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
-            writer.println("ID,Description,Amount,Category,Date");
-            
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            for (Expense expense : expenses) {
-                writer.printf("%s,\"%s\",%.2f,%s,%s%n",
-                    expense.getId(),
-                    expense.getDescription().replace("\"", "\"\""),
-                    expense.getAmount(),
-                    expense.getCategory(),
-                    sdf.format(expense.getDate()));
+    private static void appendTotals(StringBuilder json, int count, long cents) {
+        json.append(",\"count\":").append(count).append(",\"total\":");
+        appendCents(json, cents).append(",\"average\":");
+        appendCents(json, count == 0 ? 0 : Math.round((double) cents / count));
+    }
+    
+    private static void appendAmounts(StringBuilder json, Map<String, Double> amounts) {
+        json.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Double> entry : amounts.entrySet()) {
+            if (!first) json.append(',');
+            first = false;
+            quote(json, entry.getKey()).append(':');
+            appendCents(json, Math.round(entry.getValue() * 100));
+        }
+        json.append('}');
+    }
+    
+    private String budget(List<String> args) throws IOException {
+        String usage = "Usage: budget [list | set <category|*> <day|week|month|year> <limit> [--alert 80,100]"
+            + " | remove <category|*> <period>]";
+        Arguments parsed = parse(args, "--alert");
+        Map<String, String> options = parsed.options;
+        List<String> values = parsed.values;
+        String action = values.isEmpty() ? "list" : values.get(0);
+        switch (action) {
+            case "list" -> {
+                if (values.size() > 1) return error(usage);
+                StringBuilder json = new StringBuilder("{\"ok\":true");
+                quote(json.append(",\"currency\":"), manager.getBaseCurrency()).append(",\"budgets\":[");
+                boolean first = true;
+                for (BudgetTracker.Status status : manager.getBudgets(new Date())) {
+                    if (!first) json.append(',');
+                    first = false;
+                    quote(json.append("{\"category\":"), status.category);
+                    quote(json.append(",\"period\":"), status.period.name().toLowerCase(Locale.ROOT));
+                    quote(json.append(",\"start\":"), status.start.toString());
+                    appendCents(json.append(",\"limit\":"), status.limitCents);
+                    appendCents(json.append(",\"spent\":"), status.spentCents);
+                    json.append(",\"thresholds\":").append(Arrays.toString(status.thresholds).replace(" ", ""));
+                    json.append('}');
+                }
+                return json.append("]}").toString();
+            }
+            case "set" -> {
+                if (values.size() != 4) return error(usage);
+                Rollup period = BudgetTracker.parsePeriod(values.get(2));
+                long limitCents = BudgetTracker.parseLimit(values.get(3));
+                int[] thresholds = options.containsKey("--alert")
+                    ? BudgetTracker.parseThresholds(options.get("--alert")) : BudgetTracker.DEFAULT_THRESHOLDS;
+                manager.setBudget(values.get(1), period, limitCents, thresholds);
+                return "{\"ok\":true}";
+            }
+            case "remove" -> {
+                if (values.size() != 3) return error(usage);
+                if (!manager.removeBudget(values.get(1), BudgetTracker.parsePeriod(values.get(2)))) {
+                    return error("No such budget");
+                }
+                return "{\"ok\":true}";
+            }
+            default -> {
+                return error(usage);
             }
-            return expenses.size();
         }
     }
     
-    @SuppressWarnings("unchecked")
-    private List<Expense> loadExpenses() {
-        File file = new File(DATA_FILE);
-        if (!file.exists()) {
-            return new ArrayList<>();
+    private String rule(List<String> args) throws IOException {
+        String usage = "Usage: rule [list | add <keyword|prefix|regex> <pattern> <category> | remove <n>"
+            + " | test <description>]";
+        List<String> values = parse(args).values;
+        String action = values.isEmpty() ? "list" : values.get(0);
+        switch (action) {
+            case "list" -> {
+                if (values.size() > 1) return error(usage);
+                StringBuilder json = new StringBuilder("{\"ok\":true,\"rules\":[");
+                List<CategoryRules.Rule> rules = manager.getCategoryRules().rules();
+                for (int i = 0; i < rules.size(); i++) {
+                    if (i > 0) json.append(',');
+                    json.append("{\"n\":").append(i + 1);
+                    quote(json.append(",\"kind\":"), rules.get(i).kind.name().toLowerCase(Locale.ROOT));
+                    quote(json.append(",\"pattern\":"), rules.get(i).pattern);
+                    quote(json.append(",\"category\":"), rules.get(i).category).append('}');
+                }
+                return json.append("]}").toString();
+            }
+            case "add" -> {
+                if (values.size() != 4) return error(usage);
+                CategoryRules.Kind kind = CategoryRules.Kind.valueOf(values.get(1).toUpperCase(Locale.ROOT));
+                manager.addCategoryRule(new CategoryRules.Rule(kind, values.get(3), values.get(2)));
+                return "{\"ok\":true}";
+            }
+            case "remove" -> {
+                if (values.size() != 2) return error(usage);
+                return manager.removeCategoryRule(Integer.parseInt(values.get(1)) - 1)
+                    ? "{\"ok\":true}" : error("No such rule");
+            }
+            case "test" -> {
+                if (values.size() < 2) return error(usage);
+                String description = String.join(" ", values.subList(1, values.size()));
+                return quote(new StringBuilder("{\"ok\":true,\"category\":"), manager.categorize(description))
+                    .append('}').toString();
+            }
+            default -> {
+                return error(usage);
+            }
         }
-        
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-            return (List<Expense>) ois.readObject();
-        } catch (IOException | ClassNotFoundException e) {
-            System.out.println("⚠️  Could not load saved expenses. Starting fresh.");
-            return new ArrayList<>();
+    }
+    
+    private String recur(List<String> args) throws IOException {
+        String usage = "Usage: recur [list | add <description> <amount> <category> <daily|weekly|monthly|yearly|\"cron\">"
+            + " [--start yyyy-MM-dd[ HH:mm]] [--end yyyy-MM-dd] [--currency EUR] | remove <id> | run]";
+        Arguments parsed = parse(args, "--start", "--end", "--currency");
+        Map<String, String> options = parsed.options;
+        List<String> values = parsed.values;
+        String action = values.isEmpty() ? "list" : values.get(0);
+        switch (action) {
+            case "list" -> {
+                if (values.size() > 1) return error(usage);
+                StringBuilder json = new StringBuilder("{\"ok\":true,\"rules\":[");
+                boolean first = true;
+                for (RecurringExpenses.Rule rule : manager.getRecurring()) {
+                    if (!first) json.append(',');
+                    first = false;
+                    quote(json.append("{\"id\":"), rule.id);
+                    quote(json.append(",\"description\":"), rule.description);
+                    json.append(",\"amount\":").append(BigDecimal.valueOf(rule.amountMinor,
+                        Expense.fractionDigits(rule.currency)).toPlainString());
+                    quote(json.append(",\"currency\":"), rule.currency);
+                    quote(json.append(",\"category\":"), rule.category);
+                    quote(json.append(",\"schedule\":"), rule.schedule.toString());
+                    quote(json.append(",\"start\":"), rule.start.toString());
+                    if (rule.end != null) quote(json.append(",\"end\":"), rule.end.toString());
+                    json.append('}');
+                }
+                return json.append("]}").toString();
+            }
+            case "add" -> {
+                if (values.size() != 5) return error(usage);
+                String description = values.get(1).trim();
+                if (description.isEmpty()) {
+                    return error("Description cannot be empty");
+                }
+                String currency = options.getOrDefault("--currency", manager.getBaseCurrency()).toUpperCase(Locale.ROOT);
+                long amount;
+                try {
+                    amount = Expense.minorUnits(new BigDecimal(values.get(2)), currency);
+                } catch (NumberFormatException e) {
+                    return error("Invalid amount: " + values.get(2));
+                } catch (IllegalArgumentException e) {
+                    return error("Unknown currency: " + currency);
+                }
+                if (amount <= 0) {
+                    return error("Amount must be positive");
+                }
+                if (!manager.converts(currency)) {
+                    return error("No exchange rate for " + currency + " in " + ExchangeRates.FILE);
+                }
+                RecurringExpenses.Schedule schedule = RecurringExpenses.Schedule.parse(values.get(4));
+                LocalDateTime start = options.containsKey("--start")
+                    ? LocalDateTime.ofInstant(parseDateTime(options.get("--start")).toInstant(), ZoneId.systemDefault())
+                    : LocalDateTime.now().truncatedTo(ChronoUnit.MINUTES);
+                LocalDate end = options.containsKey("--end") ? LocalDate.parse(options.get("--end")) : null;
+                String id = manager.addRecurring(description, amount, currency, values.get(3), schedule, start, end);
+                return quote(new StringBuilder("{\"ok\":true,\"id\":"), id).append('}').toString();
+            }
+            case "remove" -> {
+                if (values.size() != 2) return error(usage);
+                return manager.removeRecurring(values.get(1)) ? "{\"ok\":true}" : error("No such recurring expense");
+            }
+            case "run" -> {
+                if (values.size() != 1) return error(usage);
+                StringBuilder json = new StringBuilder("{\"ok\":true,\"added\":")
+                    .append(manager.materializeRecurring(new Date())).append(",\"waiting\":[");
+                boolean first = true;
+                for (RecurringExpenses.Rule rule : manager.getWaitingRecurring()) {
+                    if (!first) json.append(',');
+                    first = false;
+                    quote(json, rule.id);
+                }
+                return json.append("]}").toString();
+            }
+            default -> {
+                return error(usage);
+            }
+        }
+    }
+    
+    /** A command's arguments after its name, split once into options and the values between them. */
+    private static final class Arguments {
+        final Map<String, String> options = new HashMap<>();
+        final List<String> values = new ArrayList<>();
+    }
+    
+    private static Arguments parse(List<String> args, String... valued) {
+        return parse(args, Set.of(valued), Set.of());
+    }
+    
+    // The options in valued take the following argument as their value and those in flags
+    // stand alone. Anything else starting with -- is an option the command doesn't have.
+    private static Arguments parse(List<String> args, Set<String> valued, Set<String> flags) {
+        Arguments parsed = new Arguments();
+        for (int i = 1; i < args.size(); i++) {
+            String arg = args.get(i);
+            if (valued.contains(arg)) {
+                if (i + 1 == args.size()) throw new IllegalArgumentException("Missing value for " + arg);
+                parsed.options.put(arg, args.get(++i));
+            } else if (flags.contains(arg)) {
+                parsed.options.put(arg, "");
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option for " + args.get(0) + ": " + arg);
+            } else {
+                parsed.values.add(arg);
+            }
+        }
+        return parsed;
+    }
+    
+    private static Date parseDateTime(String text) {
+        String pattern = text.length() <= 10 ? "yyyy-MM-dd" : text.length() <= 16 ? "yyyy-MM-dd HH:mm" : "yyyy-MM-dd HH:mm:ss";
+        try {
+            return new SimpleDateFormat(pattern).parse(text);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Invalid date: " + text);
+        }
+    }
+    
+    // Start of the given local day, plus extraDays; null stays null (an open bound)
+    private static Date startOfDay(String day, int extraDays) {
+        if (day == null) return null;
+        try {
+            return Date.from(LocalDate.parse(day).plusDays(extraDays).atStartOfDay(ZoneId.systemDefault()).toInstant());
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException("Invalid date: " + day);
+        }
+    }
+    
+    /** Splits a command line on spaces; double quotes group words and \ escapes a character. */
+    static List<String> split(String line) {
+        List<String> args = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        boolean inArg = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length()) {
+                current.append(line.charAt(++i));
+                inArg = true;
+            } else if (c == '"') {
+                quoted = !quoted;
+                inArg = true;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (inArg) {
+                    args.add(current.toString());
+                    current.setLength(0);
+                    inArg = false;
+                }
+            } else {
+                current.append(c);
+                inArg = true;
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quote");
+        }
+        if (inArg) {
+            args.add(current.toString());
+        }
+        return args;
+    }
+    
+    static String error(String message) {
+        return quote(new StringBuilder("{\"ok\":false,\"error\":"), message).append('}').toString();
+    }
+    
+    static String toJson(Expense expense) {
+        return toJson(new StringBuilder(128), expense).toString();
+    }
+    
+    private static StringBuilder toJson(StringBuilder json, Expense expense) {
+        quote(json.append("{\"id\":"), expense.getId());
+        quote(json.append(",\"description\":"), expense.getDescription());
+        json.append(",\"amount\":").append(BigDecimal.valueOf(expense.getAmountMinor(),
+            Expense.fractionDigits(expense.getCurrency())).toPlainString());
+        quote(json.append(",\"currency\":"), expense.getCurrency());
+        quote(json.append(",\"category\":"), expense.getCategory());
+        quote(json.append(",\"date\":"), DATE_TIME.format(expense.getDate().toInstant()));
+        return json.append('}');
+    }
+    
+    // Exact two-decimal JSON number from whole cents
+    private static StringBuilder appendCents(StringBuilder json, long cents) {
+        if (cents < 0) {
+            json.append('-');
+            cents = -cents;
+        }
+        long fraction = cents % 100;
+        return json.append(cents / 100).append('.').append(fraction < 10 ? "0" : "").append(fraction);
+    }
+    
+    private static StringBuilder quote(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        return json.append('"');
+    }
+}
+
+/**
+ * Command Server - Keeps the ledger loaded and answers commands over a loopback socket
+ *
+ * The protocol is one command per line, in the same syntax as the command line, and
+ * one line of JSON back; "quit" ends the connection and "shutdown" stops the server.
+ * Each connection gets its own virtual thread where the JDK has them (21+) and a
+ * pooled platform thread otherwise, so a slow client never holds up the others.
+ */
+class CommandServer implements Closeable {
+    static final int DEFAULT_PORT = 7878;
+    
+    private final CommandProcessor processor;
+    private final ServerSocket socket;
+    private final ExecutorService connections = newConnectionExecutor();
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    
+    CommandServer(ExpenseManager manager, int port) throws IOException {
+        this.processor = new CommandProcessor(manager);
+        this.socket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+    }
+    
+    int port() {
+        return socket.getLocalPort();
+    }
+    
+    /**
+     * Accepts connections until {@link #close()} is called or a client sends "shutdown".
+     * Returns once every connection has finished, so the ledger can be closed after it.
+     */
+    void serve() throws IOException {
+        try {
+            while (!socket.isClosed()) {
+                Socket client;
+                try {
+                    client = socket.accept();
+                } catch (SocketException e) {
+                    break; // closed
+                }
+                clients.add(client);
+                try {
+                    connections.execute(() -> handle(client));
+                } catch (RejectedExecutionException e) {
+                    clients.remove(client);
+                    client.close(); // closing
+                }
+            }
+        } finally {
+            close();
         }
     }
     
-    private void saveExpenses() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(DATA_FILE))) {
-            oos.writeObject(expenses);
+    private void handle(Socket client) {
+        try (client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.trim();
+                if (command.equals("quit")) break;
+                if (command.equals("shutdown")) {
+                    out.write("{\"ok\":true}\n");
+                    out.flush();
+                    // serve() does the rest, and waits for this connection among the others
+                    socket.close();
+                    break;
+                }
+                if (command.isEmpty()) continue;
+                out.write(processor.execute(command));
+                out.write('\n');
+                out.flush();
+            }
         } catch (IOException e) {
-            System.out.println("⚠️  Could not save expenses: " + e.getMessage());
+            // The client went away, or close() hung up on it; nothing to answer
+        } finally {
+            clients.remove(client);
+        }
+    }
+    
+    /**
+     * Stops accepting, hangs up on every client and waits for their connections to
+     * finish. A command already running completes, and is on the ledger's journal, before
+     * this returns; its client just doesn't get the answer.
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        connections.shutdown();
+        for (Socket client : clients) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+        try {
+            while (!connections.awaitTermination(10, TimeUnit.SECONDS)) {
+                System.out.println("⏳ Waiting for " + clients.size() + " connections to finish...");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
-}
\ No newline at end of file
+    
+    // Virtual threads are looked up reflectively so the file still compiles for Java 17
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "expense-client");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
+
+/**
+ * Expense Model Class
+ *
+ * The amount is held exactly, in the minor unit of its ISO 4217 currency (cents for
+ * USD, yen for JPY). Constructors that take a double amount are in dollars.
+ */
+class Expense implements Serializable {
+    private static final long serialVersionUID = 1L;
+    static final String DEFAULT_CURRENCY = "USD";
+    
+    private final String id;
+    private final String description;
+    private final double amount;
+    private final String category;
+    private final Date date;
+    // Null in expenses serialized before currencies, which readResolve turns into dollars
+    private final String currency;
+    private final long amountMinor;
+    
+    public Expense(String description, double amount, String category) {
+        this(UUID.randomUUID().toString(), description.trim(), amount, category, new Date());
+    }
+    
+    Expense(String id, String description, double amount, String category, Date date) {
+        this(id, description, Math.round(amount * 100), DEFAULT_CURRENCY, category, date);
+    }
+    
+    Expense(String id, String description, long amountMinor, String currency, String category, Date date) {
+        this.id = id;
+        this.description = description;
+        this.currency = currency;
+        this.amountMinor = amountMinor;
+        this.amount = amountMinor / Math.pow(10, fractionDigits(currency));
+        this.category = category;
+        this.date = date;
+    }
+    
+    private Object readResolve() {
+        return currency != null ? this : new Expense(id, description, amount, category, date);
+    }
+    
+    /** Decimal places of a currency's minor unit; throws IllegalArgumentException for an unknown code. */
+    static int fractionDigits(String currency) {
+        return Math.max(0, Currency.getInstance(currency).getDefaultFractionDigits());
+    }
+    
+    /**
+     * {@code amount} in minor units of {@code currency}, rounded half up; the code is
+     * upper-cased and checked.
+     */
+    static long minorUnits(BigDecimal amount, String currency) {
+        return amount.setScale(fractionDigits(currency.toUpperCase(Locale.ROOT)), RoundingMode.HALF_UP)
+            .unscaledValue().longValueExact();
+    }
+    
+    /** Symbol and amount, such as $12.50, €9.99 or CHF20.00. */
+    static String format(long amountMinor, String currency) {
+        int digits = fractionDigits(currency);
+        return Currency.getInstance(currency).getSymbol(Locale.US)
+            + BigDecimal.valueOf(amountMinor, digits).toPlainString();
+    }
+    
+    // Getters
+    public String getId() { return id; }
+    public String getDescription() { return description; }
+    public double getAmount() { return amount; }
+    public String getCategory() { return category; }
+    public Date getDate() { return date; }
+    public String getCurrency() { return currency; }
+    public long getAmountMinor() { return amountMinor; }
+    
+    @Override
+    public String toString() {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        return String.format("%s | %s | %s | %s | %s", 
+            id.substring(0, 8), description, format(amountMinor, currency), category, sdf.format(date));
+    }
+}
+
+/**
+ * Expense Manager - Handles business logic
+ *
+ * Safe to share between threads. Mutations are prepared (id parsed, words
+ * tokenized, journal record encoded) before taking the write lock, so the lock is
+ * only held while the store, aggregates and search index are updated. Journal
+ * writes and fsyncs happen under a separate journal lock that is taken before the
+ * write lock is released, keeping the journal in the same order as the store
+ * without making readers wait on the disk. Aggregate and index queries take the
+ * read lock; everything that walks the rows reads a store snapshot with no lock.
+ *
+ * The ledger is kept in {@link LedgerSegments}, and only the segments in use are in
+ * memory: the two most recent after startup, others once a query reaches them, up to
+ * maxLoadedRows before the least recently used are dropped again. A query that needs
+ * a segment loads it under the write lock and downgrades to the read lock, so it can't
+ * be evicted under the query. Totals, counts and date-range sums over segments that
+ * aren't loaded come from the manifest; searches, statistics, exports and any listing
+ * not in date order need all history and load every segment.
+ */
+class ExpenseManager implements Closeable {
+    private static final String LEGACY_DATA_FILE = "expenses.dat";
+    private static final String LEDGER_FILE = "expenses.ledger";
+    private static final String JOURNAL_FILE = "expenses.journal";
+    private static final String SEGMENTS_DIRECTORY = "expenses.segments";
+    private final Path ledgerFile;
+    private final LedgerConfig config;
+    private final LedgerSegments segments;
+    private final ExchangeRates rates;
+    private final ExpenseStore store;
+    private final ExpenseAggregates aggregates;
+    private final SearchIndex searchIndex;
+    private final TimeIndex timeIndex;
+    private final IdPrefixIndex idIndex;
+    private final QueryCache queryCache;
+    private final BudgetTracker budgets;
+    private final RecurringExpenses recurring;    // also the lock for materializing
+    private final Path categoryRulesFile;
+    private volatile CategoryRules categoryRules;   // replaced whole on every edit
+    private ScheduledExecutorService recurringTimer;
+    private Set<String> reportedWaiting = Set.of(); // only touched by materializeDue
+    private final List<BudgetTracker.Listener> budgetListeners = new CopyOnWriteArrayList<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantLock journalLock = new ReentrantLock();
+    private ExpenseJournal journal;
+    private boolean closed; // guarded by journalLock
+    private final LedgerWriter writer; // null when changes are written on the caller's thread
+    private int snapshotSize;
+    // Drops tombstoned rows off the caller's thread; one run at a time
+    private final ExecutorService maintenance = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "expense-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean compactionQueued = new AtomicBoolean();
+    private final ExpenseMetrics metrics;
+    private ObjectName metricsName;
+    private ScheduledExecutorService metricsDump;
+    // Last non-date listing order, reused while the ledger is unchanged (one snapshot)
+    private volatile SortedRows sortedRows;
+    
+    private static final class SortedRows {
+        final ExpenseStore.Snapshot snapshot;
+        final ExpenseSort sort;
+        final String category;
+        final int[] rows;
+        
+        SortedRows(ExpenseStore.Snapshot snapshot, ExpenseSort sort, String category, int[] rows) {
+            this.snapshot = snapshot;
+            this.sort = sort;
+            this.category = category;
+            this.rows = rows;
+        }
+    }
+    
+    // An add with everything that doesn't need the lock already worked out
+    private static final class PreparedAdd {
+        final Expense expense;
+        final UUID id;
+        final List<String> tokens;
+        final byte[] record;
+        
+        PreparedAdd(Expense expense, CategoryRules rules) {
+            if (expense.getCategory().isBlank()) {
+                expense = new Expense(expense.getId(), expense.getDescription(), expense.getAmountMinor(),
+                    expense.getCurrency(), rules.categorize(expense.getDescription(), CategoryRules.FALLBACK),
+                    expense.getDate());
+            }
+            this.expense = expense;
+            this.id = UUID.fromString(expense.getId());
+            this.tokens = SearchIndex.tokens(expense.getDescription() + " " + expense.getCategory());
+            this.record = ExpenseJournal.encodeAdd(expense);
+        }
+    }
+    
+    public ExpenseManager() {
+        this(Paths.get(""), LedgerConfig.fromSystemProperties());
+    }
+    
+    ExpenseManager(Path directory, LedgerConfig config) {
+        this.ledgerFile = directory.resolve(LEDGER_FILE);
+        this.config = config;
+        Path ratesFile = directory.resolve(ExchangeRates.FILE);
+        try {
+            this.rates = ExchangeRates.load(ratesFile, config.baseCurrency);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read " + ratesFile, e);
+        }
+        Path budgetsFile = directory.resolve(BudgetTracker.FILE);
+        try {
+            this.budgets = BudgetTracker.load(budgetsFile, rates.base());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read " + budgetsFile, e);
+        }
+        this.categoryRulesFile = directory.resolve(CategoryRules.FILE);
+        try {
+            this.categoryRules = CategoryRules.load(categoryRulesFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read " + categoryRulesFile, e);
+        }
+        Path recurringFile = directory.resolve(RecurringExpenses.FILE);
+        try {
+            this.recurring = RecurringExpenses.load(recurringFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read " + recurringFile, e);
+        }
+        this.store = new ExpenseStore(config.offHeap, rates);
+        this.aggregates = new ExpenseAggregates(store);
+        this.searchIndex = new SearchIndex(store);
+        this.timeIndex = new TimeIndex(store);
+        this.idIndex = new IdPrefixIndex(store);
+        this.metrics = config.metrics ? new ExpenseMetrics(true) : ExpenseMetrics.DISABLED;
+        this.queryCache = new QueryCache(config.queryCacheRows, metrics);
+        long start = metrics.start();
+        Path segmentDirectory = directory.resolve(SEGMENTS_DIRECTORY);
+        try {
+            this.segments = LedgerSegments.open(segmentDirectory, config.segmentBy, rates);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open " + segmentDirectory, e);
+        }
+        migrateLegacyData(directory.resolve(LEGACY_DATA_FILE));
+        boolean splitting = loadExpenses(directory.resolve(JOURNAL_FILE));
+        int restated = restate();
+        ExpenseStore.Snapshot loaded = store.snapshot();
+        for (int row = 0; row < loaded.size(); row++) {
+            if (loaded.isDeleted(row)) continue;
+            aggregates.add(row);
+            searchIndex.add(row);
+            timeIndex.add(row);
+            idIndex.add(row);
+        }
+        timeIndex.merge();
+        idIndex.merge();
+        writer = config.durability == LedgerConfig.Durability.ASYNC
+            ? new LedgerWriter(config.flushDelayMillis, this::writeQueued) : null;
+        if (splitting || restated > 0 || store.snapshot().liveCount() > config.maxLoadedRows) {
+            // Written out, replayed segments can be evicted again
+            foldJournal();
+            if (splitting && !Files.exists(ledgerFile)) {
+                System.out.println("📦 Split " + LEDGER_FILE + " into " + segments.all().size() + " files under "
+                    + SEGMENTS_DIRECTORY);
+            }
+            if (restated > 0) {
+                System.out.println("💱 Exchange rates changed: totals restated in " + rates.base() + " for "
+                    + restated + (restated == 1 ? " period." : " periods."));
+            }
+        }
+        evict(segments.tick());
+        metrics.record(ExpenseMetrics.Operation.LOAD, start);
+        publishMetrics();
+        if (!recurring.isEmpty()) {
+            materializeDue();
+            scheduleRecurring();
+        }
+    }
+    
+    // Catches up on recurring expenses from now on, once there are rules
+    private synchronized void scheduleRecurring() {
+        if (recurringTimer != null || config.recurringInterval <= 0) return;
+        recurringTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "expense-recurring");
+            thread.setDaemon(true);
+            return thread;
+        });
+        recurringTimer.scheduleWithFixedDelay(this::materializeDue,
+            config.recurringInterval, config.recurringInterval, TimeUnit.SECONDS);
+    }
+    
+    private void materializeDue() {
+        try {
+            int added = materializeRecurring(new Date());
+            if (added > 0) {
+                System.out.println("🔁 Added " + added + (added == 1 ? " recurring expense." : " recurring expenses."));
+            }
+            // Warned about once, not on every run of the timer
+            Set<String> waiting = new LinkedHashSet<>();
+            for (RecurringExpenses.Rule rule : getWaitingRecurring()) {
+                if (!reportedWaiting.contains(rule.id)) {
+                    System.out.println("⚠️  Recurring expense " + rule.id + " (" + rule.description
+                        + ") is waiting for a " + rule.currency + " rate in " + ExchangeRates.FILE);
+                }
+                waiting.add(rule.id);
+            }
+            reportedWaiting = waiting;
+        } catch (IOException | RuntimeException e) {
+            metrics.failed("add recurring expenses", e);
+            System.out.println("⚠️  Could not add recurring expenses: " + e.getMessage());
+        }
+    }
+    
+    private void publishMetrics() {
+        if (!metrics.enabled()) return;
+        if (config.metricsJmx) {
+            try {
+                ObjectName name = new ObjectName("expensetracker:type=ExpenseManager,ledger="
+                    + ObjectName.quote(ledgerFile.toAbsolutePath().toString()));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+                metricsName = name;
+            } catch (JMException e) {
+                System.out.println("⚠️  Could not register metrics with JMX: " + e.getMessage());
+            }
+        }
+        if (config.metricsDumpInterval > 0) {
+            metricsDump = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "expense-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            metricsDump.scheduleAtFixedRate(() -> metrics.dump(config.metricsDumpFile),
+                config.metricsDumpInterval, config.metricsDumpInterval, TimeUnit.SECONDS);
+        }
+    }
+    
+    /** Operation latencies and counters for this ledger. */
+    public ExpenseMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Throws IllegalArgumentException for an expense in a currency without a rate. A blank
+     * category is filled in from the category rules.
+     */
+    public void addExpense(Expense expense) {
+        long start = metrics.start();
+        requireRate(expense);
+        PreparedAdd add = new PreparedAdd(expense, categoryRules);
+        List<byte[]> records = List.of(add.record);
+        List<BudgetTracker.Alert> alerts = new ArrayList<>(0);
+        boolean writeNow;
+        lock.writeLock().lock();
+        try {
+            long since = segments.tick();
+            LedgerSegments.Segment segment = segments.touch(expense.getDate().getTime());
+            ensureLoaded(List.of(segment), since);
+            primeBudgets(List.of(add), since);
+            apply(add, alerts);
+            segment.markDirty();
+            timeIndex.settle();
+            writeNow = handOff(records);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (writeNow) {
+            write(records, false);
+        }
+        announce(alerts);
+        metrics.increment(ExpenseMetrics.Counter.EXPENSES_ADDED);
+        metrics.record(ExpenseMetrics.Operation.ADD, start);
+    }
+    
+    /**
+     * Adds a batch of expenses with a single journal write and fsync. Expenses whose id is
+     * already in the ledger are skipped and returned. If any is in a currency without a
+     * rate, none are added. Blank categories are filled in from the category rules.
+     */
+    public List<Expense> addExpenses(Collection<Expense> batch) {
+        long start = metrics.start();
+        for (Expense expense : batch) {
+            requireRate(expense);
+        }
+        List<PreparedAdd> prepared = new ArrayList<>(batch.size());
+        CategoryRules rules = categoryRules;
+        for (Expense expense : batch) {
+            prepared.add(new PreparedAdd(expense, rules));
+        }
+        List<Expense> skipped = new ArrayList<>();
+        List<byte[]> records = new ArrayList<>(prepared.size());
+        List<BudgetTracker.Alert> alerts = new ArrayList<>(0);
+        LedgerSegments.Segment[] targets = new LedgerSegments.Segment[prepared.size()];
+        boolean writeNow;
+        lock.writeLock().lock();
+        try {
+            // Duplicates are only found once the periods they fall in are loaded
+            long since = segments.tick();
+            Set<LedgerSegments.Segment> needed = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (int i = 0; i < targets.length; i++) {
+                targets[i] = segments.touch(prepared.get(i).expense.getDate().getTime());
+                needed.add(targets[i]);
+            }
+            ensureLoaded(needed, since);
+            primeBudgets(prepared, since);
+            // Checked for the whole batch before any row is applied, so it goes in entirely or not at all
+            store.reserve(prepared.size());
+            for (int i = 0; i < targets.length; i++) {
+                PreparedAdd add = prepared.get(i);
+                if (store.find(add.id.getMostSignificantBits(), add.id.getLeastSignificantBits()) < 0) {
+                    apply(add, alerts);
+                    targets[i].markDirty();
+                    records.add(add.record);
+                } else {
+                    skipped.add(add.expense);
+                }
+            }
+            timeIndex.settle();
+            writeNow = handOff(records);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (writeNow) {
+            write(records, true);
+        }
+        announce(alerts);
+        metrics.add(ExpenseMetrics.Counter.EXPENSES_ADDED, records.size());
+        metrics.record(ExpenseMetrics.Operation.ADD_BATCH, start);
+        return skipped;
+    }
+    
+    private void requireRate(Expense expense) {
+        if (!rates.converts(expense.getCurrency())) {
+            throw new IllegalArgumentException("No exchange rate for " + expense.getCurrency() + " in "
+                + ExchangeRates.FILE);
+        }
+    }
+    
+    private void apply(PreparedAdd add, List<BudgetTracker.Alert> alerts) {
+        Expense expense = add.expense;
+        int row = store.append(add.id.getMostSignificantBits(), add.id.getLeastSignificantBits(),
+            expense.getAmountMinor(), expense.getCurrency(), expense.getDate().getTime(),
+            expense.getDescription(), expense.getCategory());
+        queryCache.changed(expense.getCategory(), expense.getDate().getTime(), expense.getDescription());
+        aggregates.add(row);
+        searchIndex.add(row, add.tokens);
+        timeIndex.add(row);
+        idIndex.add(row);
+        budgets.add(expense.getCategory(), expense.getDate().getTime(), store.snapshot().cents(row), alerts);
+    }
+    
+    // Caller holds the write lock, and the segments the expenses fall in are loaded.
+    // Works out the spending so far in each budget period they count towards that isn't
+    // counted yet, loading the segments only partly inside one.
+    private void primeBudgets(List<PreparedAdd> adds, long since) {
+        if (budgets.isEmpty()) return;
+        Set<BudgetTracker.Window> windows = new HashSet<>();
+        for (PreparedAdd add : adds) {
+            budgets.unprimed(add.expense.getCategory(), add.expense.getDate().getTime(), windows);
+        }
+        primeBudgets(windows, since);
+    }
+    
+    private void primeBudgets(Collection<BudgetTracker.Window> windows, long since) {
+        if (windows.isEmpty()) return;
+        Set<LedgerSegments.Segment> needed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (BudgetTracker.Window window : windows) {
+            needed.addAll(straddling(window.fromMillis, window.toMillis));
+        }
+        ensureLoaded(needed, since);
+        ExpenseStore.Snapshot snapshot = store.snapshot();
+        for (BudgetTracker.Window window : windows) {
+            String category = window.budget.category;
+            boolean all = category.equals(BudgetTracker.ALL);
+            long cents = 0;
+            if (all) {
+                cents = timeIndex.sumCents(window.fromMillis, window.toMillis);
+            } else {
+                IntList rows = timeIndex.rows(window.fromMillis, window.toMillis);
+                for (int i = 0; i < rows.size(); i++) {
+                    if (snapshot.category(rows.get(i)).equals(category)) cents += snapshot.cents(rows.get(i));
+                }
+            }
+            for (LedgerSegments.Segment segment : unloadedWithin(window.fromMillis, window.toMillis)) {
+                ExpenseAggregates.Bucket bucket = all ? null : segment.summary.categories.get(category);
+                cents += all ? segment.summary.cents : bucket == null ? 0 : bucket.cents;
+            }
+            budgets.prime(window, cents);
+        }
+    }
+    
+    // Alerts go out on the caller's thread once the lock is released
+    private void announce(List<BudgetTracker.Alert> alerts) {
+        for (BudgetTracker.Alert alert : alerts) {
+            metrics.increment(ExpenseMetrics.Counter.BUDGET_ALERTS);
+            for (BudgetTracker.Listener listener : budgetListeners) {
+                listener.crossed(alert);
+            }
+        }
+    }
+    
+    public boolean deleteExpense(String id) {
+        long start = metrics.start();
+        List<byte[]> records;
+        boolean writeNow;
+        lock.writeLock().lock();
+        try {
+            long since = segments.tick();
+            int row = locate(id, Long.MIN_VALUE, true);
+            if (row < 0) {
+                return false;
+            }
+            ExpenseStore.Snapshot snapshot = store.snapshot();
+            long millis = snapshot.epochMillis(row);
+            records = List.of(ExpenseJournal.encodeDelete(id, millis));
+            queryCache.changed(snapshot.category(row), millis, snapshot.description(row));
+            aggregates.remove(row);
+            budgets.remove(snapshot.category(row), millis, snapshot.cents(row));
+            timeIndex.remove(row);
+            store.delete(row);
+            segments.at(millis).markDirty();
+            evict(since);
+            writeNow = handOff(records);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (writeNow) {
+            write(records, false);
+        }
+        scheduleCompaction();
+        metrics.increment(ExpenseMetrics.Counter.EXPENSES_DELETED);
+        metrics.record(ExpenseMetrics.Operation.DELETE, start);
+        return true;
+    }
+    
+    /**
+     * The expense with exactly this id, or null; a hash lookup, plus a scan of the id
+     * columns of segments that aren't loaded when it isn't in memory.
+     */
+    public Expense getExpense(String id) {
+        long start = metrics.start();
+        int row;
+        ExpenseStore.Snapshot snapshot;
+        long[] range = idRange(id);
+        readLock(() -> range == null || store.find(id) >= 0 ? List.of() : segments.holding(range[0], range[1], 1));
+        try {
+            row = store.find(id);
+            snapshot = store.snapshot();
+        } finally {
+            lock.readLock().unlock();
+        }
+        Expense expense = row < 0 ? null : snapshot.expense(row);
+        metrics.record(ExpenseMetrics.Operation.LOOKUP, start);
+        return expense;
+    }
+    
+    /**
+     * Up to {@code limit} expenses whose id starts with {@code prefix}. Asking for two
+     * is enough to tell a unique prefix from an ambiguous one.
+     */
+    public List<Expense> findByIdPrefix(String prefix, int limit) {
+        long start = metrics.start();
+        IntList rows;
+        ExpenseStore.Snapshot snapshot;
+        long[] range = IdPrefixIndex.range(prefix.toLowerCase(Locale.ROOT));
+        readLock(() -> range == null ? List.of()
+            : segments.holding(range[0], range[1], limit - idIndex.resolve(prefix, limit).size()));
+        try {
+            rows = idIndex.resolve(prefix, limit);
+            snapshot = store.snapshot();
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<Expense> matches = snapshot.expenses(rows);
+        metrics.record(ExpenseMetrics.Operation.LOOKUP, start);
+        return matches;
+    }
+    
+    // Deletes only tombstone rows; once enough pile up they are dropped in the background
+    // so no single delete pays for renumbering the indexes.
+    private void scheduleCompaction() {
+        ExpenseStore.Snapshot snapshot = store.snapshot();
+        int tombstones = snapshot.size() - snapshot.liveCount();
+        if (tombstones < config.minTombstones || tombstones < snapshot.size() * config.tombstoneRatio
+                || !compactionQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            maintenance.execute(this::dropTombstones);
+        } catch (RejectedExecutionException e) {
+            compactionQueued.set(false); // closing
+        }
+    }
+    
+    private void scheduleEviction() {
+        try {
+            maintenance.execute(() -> {
+                lock.writeLock().lock();
+                try {
+                    evict(segments.tick());
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closing
+        }
+    }
+    
+    private void dropTombstones() {
+        long start = metrics.start();
+        lock.writeLock().lock();
+        try {
+            compactionQueued.set(false);
+            int[] remap = store.compact();
+            aggregates.remap(remap);
+            searchIndex.remap(remap);
+            timeIndex.remap(remap);
+            idIndex.remap(remap);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        metrics.record(ExpenseMetrics.Operation.TOMBSTONE_COMPACTION, start);
+    }
+    
+    /**
+     * Every live expense as an unmodifiable list, segment by segment as
+     * {@link #forEachSegment} reads them, so no segment is loaded to build it. Listing
+     * screens should page through {@link #getPage} instead.
+     */
+    public List<Expense> getAllExpenses() {
+        List<Expense> all = new ArrayList<>();
+        forEachSegment(Long.MIN_VALUE, Long.MAX_VALUE, (snapshot, rows) ->
+            all.addAll(rows == null ? snapshot.asList() : snapshot.expenses(rows)));
+        return Collections.unmodifiableList(all);
+    }
+    
+    /**
+     * One page of the ledger, or of one category when {@code category} is not null.
+     * Plain date order pages straight off the time index and only needs the segments
+     * from the end it counts from to the page; other orders are sorted once and reused
+     * for following pages until the ledger changes. Only the rows on the page are
+     * turned into Expense objects.
+     */
+    public ExpensePage getPage(ExpenseSort sort, boolean descending, String category, int offset, int limit) {
+        long start = metrics.start();
+        IntList rows;
+        int total;
+        ExpenseStore.Snapshot snapshot;
+        boolean byDate = sort == ExpenseSort.DATE && category == null;
+        readLock(() -> byDate ? segmentsFromEnd((long) offset + limit, descending) : segments.all());
+        try {
+            snapshot = store.snapshot();
+            if (byDate) {
+                // Everything from that end through the page is loaded, so positions match
+                rows = timeIndex.page(offset, limit, descending);
+                total = aggregates.count();
+            } else {
+                int[] sorted = sortedRows(snapshot, sort, category);
+                total = sorted.length;
+                rows = new IntList(Math.max(0, Math.min(limit, total - offset)));
+                for (int i = offset; i < total && i < offset + limit; i++) {
+                    rows.add(sorted[descending ? total - 1 - i : i]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        ExpensePage page = new ExpensePage(snapshot.expenses(rows), offset, total);
+        metrics.record(ExpenseMetrics.Operation.PAGE, start);
+        return page;
+    }
+    
+    // The newest (or oldest) segments that together hold at least `rows` expenses
+    private List<LedgerSegments.Segment> segmentsFromEnd(long rows, boolean newest) {
+        List<LedgerSegments.Segment> picked = new ArrayList<>();
+        long covered = 0;
+        for (LedgerSegments.Segment segment : newest ? segments.newestFirst() : segments.all()) {
+            if (covered >= rows) break;
+            picked.add(segment);
+            covered += segment.loaded ? timeIndex.count(segment.start, segment.end) : segment.summary.rows;
+        }
+        return picked;
+    }
+    
+    // Caller holds the read lock
+    private int[] sortedRows(ExpenseStore.Snapshot snapshot, ExpenseSort sort, String category) {
+        SortedRows cached = sortedRows;
+        if (cached != null && cached.snapshot == snapshot && cached.sort == sort
+                && Objects.equals(cached.category, category)) {
+            metrics.increment(ExpenseMetrics.Counter.SORT_CACHE_HITS);
+            return cached.rows;
+        }
+        metrics.increment(ExpenseMetrics.Counter.SORT_CACHE_MISSES);
+        IntList byDate = timeIndex.rows(Long.MIN_VALUE, Long.MAX_VALUE);
+        if (category != null) {
+            IntList inCategory = new IntList();
+            for (int i = 0; i < byDate.size(); i++) {
+                if (snapshot.category(byDate.get(i)).equals(category)) inCategory.add(byDate.get(i));
+            }
+            byDate = inCategory;
+        }
+        int[] rows = byDate.toArray();
+        if (sort != ExpenseSort.DATE) {
+            // Stable sort on top of date order keeps ties by date
+            long[] keys = new long[rows.length];
+            int[] categoryRank = sort == ExpenseSort.CATEGORY ? categoryRanks(snapshot.categoryPool()) : null;
+            for (int i = 0; i < rows.length; i++) {
+                keys[i] = sort == ExpenseSort.AMOUNT ? snapshot.cents(rows[i])
+                    : categoryRank[snapshot.categoryOrdinal(rows[i])];
+            }
+            IntList.sortByKey(keys, rows, rows.length);
+        }
+        sortedRows = new SortedRows(snapshot, sort, category, rows);
+        return rows;
+    }
+    
+    // Position of each category ordinal when the names are sorted
+    private static int[] categoryRanks(StringPool pool) {
+        Integer[] ordinals = new Integer[pool.size()];
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinals[i] = i;
+        }
+        Arrays.sort(ordinals, Comparator.comparing(pool::get));
+        int[] ranks = new int[ordinals.length];
+        for (int i = 0; i < ordinals.length; i++) {
+            ranks[ordinals[i]] = i;
+        }
+        return ranks;
+    }
+    
+    /** Expenses whose description or category contains {@code keyword}, ignoring case. */
+    public List<Expense> searchExpenses(String keyword) {
+        return searchExpenses(keyword, SearchMode.SUBSTRING);
+    }
+    
+    /**
+     * Expenses matching the query, in ledger order, as an unmodifiable list. Results are
+     * cached until an add or delete that could change them.
+     */
+    public List<Expense> searchExpenses(String query, SearchMode mode) {
+        long start = metrics.start();
+        QueryCache.Query cacheKey = QueryCache.Query.search(query, mode);
+        long stamp = queryCache.stamp();
+        List<Expense> cached = queryCache.get(cacheKey);
+        if (cached != null) {
+            metrics.record(ExpenseMetrics.Operation.SEARCH, start);
+            return cached;
+        }
+        if (mode != SearchMode.SUBSTRING) {
+            IntList rows;
+            ExpenseStore.Snapshot snapshot;
+            readLock(segments::all);
+            try {
+                rows = searchIndex.search(SearchIndex.terms(query, mode == SearchMode.ALL));
+                snapshot = store.snapshot();
+            } finally {
+                lock.readLock().unlock();
+            }
+            List<Expense> results = queryCache.put(cacheKey, snapshot.expenses(rows), stamp);
+            metrics.record(ExpenseMetrics.Operation.SEARCH, start);
+            return results;
+        }
+        // Each distinct description and category of a segment is lower-cased once, not once per row
+        String keyword = query.toLowerCase();
+        List<Expense> found = new ArrayList<>();
+        long[] scanned = new long[1];
+        forEachSegment(Long.MIN_VALUE, Long.MAX_VALUE, (snapshot, rows) -> {
+            BitSet descriptionMatches = substringMatches(snapshot.descriptionPool(), keyword);
+            BitSet categoryMatches = substringMatches(snapshot.categoryPool(), keyword);
+            int size = rows == null ? snapshot.size() : rows.size();
+            for (int i = 0; i < size; i++) {
+                int row = rows == null ? i : rows.get(i);
+                if (!snapshot.isDeleted(row) && (descriptionMatches.get(snapshot.descriptionIndex(row))
+                        || categoryMatches.get(snapshot.categoryOrdinal(row)))) {
+                    found.add(snapshot.expense(row));
+                }
+            }
+            scanned[0] += size;
+        });
+        List<Expense> results = queryCache.put(cacheKey, found, stamp);
+        metrics.add(ExpenseMetrics.Counter.ROWS_SCANNED, scanned[0]);
+        metrics.record(ExpenseMetrics.Operation.SEARCH, start);
+        return results;
+    }
+    
+    private static BitSet substringMatches(StringPool pool, String keyword) {
+        int size = pool.size();
+        BitSet matches = new BitSet(size);
+        for (int i = 0; i < size; i++) {
+            if (pool.get(i).toLowerCase().contains(keyword)) matches.set(i);
+        }
+        return matches;
+    }
+    
+    public double getTotalExpenses() {
+        lock.readLock().lock();
+        try {
+            return aggregates.total();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    public int getExpenseCount() {
+        lock.readLock().lock();
+        try {
+            return aggregates.count();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    public Expense getSmallestExpense() {
+        return extreme(false);
+    }
+    
+    public Expense getLargestExpense() {
+        return extreme(true);
+    }
+    
+    private Expense extreme(boolean largest) {
+        int row;
+        ExpenseStore.Snapshot snapshot;
+        readLock(() -> extremeSegment(largest));
+        try {
+            row = largest ? aggregates.largestRow() : aggregates.smallestRow();
+            snapshot = store.snapshot();
+        } finally {
+            lock.readLock().unlock();
+        }
+        return row < 0 ? null : snapshot.expense(row);
+    }
+    
+    // The segment that isn't loaded but beats every loaded row, if there is one
+    private List<LedgerSegments.Segment> extremeSegment(boolean largest) {
+        LedgerSegments.Segment best = null;
+        long bestCents = 0;
+        for (LedgerSegments.Segment segment : segments.all()) {
+            if (segment.loaded || segment.summary.rows == 0) continue;
+            long cents = largest ? segment.summary.largest : segment.summary.smallest;
+            if (best == null || (largest ? cents > bestCents : cents < bestCents)) {
+                best = segment;
+                bestCents = cents;
+            }
+        }
+        if (best == null) {
+            return List.of();
+        }
+        int row = largest ? aggregates.largestRow() : aggregates.smallestRow();
+        if (row >= 0) {
+            long cents = store.snapshot().cents(row);
+            if (largest ? cents >= bestCents : cents <= bestCents) return List.of();
+        }
+        return List.of(best);
+    }
+    
+    public Map<String, Double> getCategoryTotals() {
+        lock.readLock().lock();
+        try {
+            return aggregates.categoryTotals();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Called with each budget threshold an add takes spending past, on the thread that
+     * made the add, once the ledger is unlocked again.
+     */
+    public void addBudgetListener(BudgetTracker.Listener listener) {
+        budgetListeners.add(listener);
+    }
+    
+    /**
+     * Adds or replaces the budget for a category ({@link BudgetTracker#ALL} for every
+     * category) and period, and saves the budgets file. The limit is in hundredths of
+     * the base currency and the thresholds are ascending percentages of it.
+     */
+    public void setBudget(String category, Rollup period, long limitCents, int[] thresholds) throws IOException {
+        lock.writeLock().lock();
+        try {
+            budgets.define(category, period, limitCents, thresholds);
+            budgets.save();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    public boolean removeBudget(String category, Rollup period) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!budgets.remove(category, period)) {
+                return false;
+            }
+            budgets.save();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /** Every budget with what has been spent in its period holding {@code at}. */
+    public List<BudgetTracker.Status> getBudgets(Date at) {
+        lock.writeLock().lock();
+        try {
+            List<BudgetTracker.Window> windows = new ArrayList<>();
+            for (BudgetTracker.Budget budget : budgets.budgets()) {
+                windows.add(budgets.window(budget, at.getTime()));
+            }
+            List<BudgetTracker.Window> unprimed = new ArrayList<>(windows);
+            unprimed.removeIf(window -> window.primed);
+            primeBudgets(unprimed, segments.tick());
+            List<BudgetTracker.Status> statuses = new ArrayList<>(windows.size());
+            for (BudgetTracker.Window window : windows) {
+                statuses.add(new BudgetTracker.Status(window));
+            }
+            return statuses;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /** The category the rules give {@code description}, or {@link CategoryRules#FALLBACK}. */
+    public String categorize(String description) {
+        return categoryRules.categorize(description, CategoryRules.FALLBACK);
+    }
+    
+    /** The current category rules; immutable, so safe to use from any thread. */
+    public CategoryRules getCategoryRules() {
+        return categoryRules;
+    }
+    
+    /** Adds a category rule after the existing ones and saves the rules file. */
+    public void addCategoryRule(CategoryRules.Rule rule) throws IOException {
+        synchronized (categoryRulesFile) {
+            CategoryRules updated = categoryRules.with(rule);
+            updated.save(categoryRulesFile);
+            categoryRules = updated;
+        }
+    }
+    
+    public boolean removeCategoryRule(int index) throws IOException {
+        synchronized (categoryRulesFile) {
+            if (index < 0 || index >= categoryRules.rules().size()) {
+                return false;
+            }
+            CategoryRules updated = categoryRules.without(index);
+            updated.save(categoryRulesFile);
+            categoryRules = updated;
+            return true;
+        }
+    }
+    
+    /**
+     * Adds a recurring expense and saves the rules file; occurrences from {@code start}
+     * up to now are added straight away. {@code end} is the last day, or null.
+     * Returns the rule's id.
+     */
+    public String addRecurring(String description, long amountMinor, String currency, String category,
+                               RecurringExpenses.Schedule schedule, LocalDateTime start, LocalDate end) throws IOException {
+        String id;
+        synchronized (recurring) {
+            id = recurring.add(description, amountMinor, currency, category, schedule, start, end);
+            recurring.save();
+        }
+        materializeRecurring(new Date());
+        scheduleRecurring();
+        return id;
+    }
+    
+    /** Stops a recurring expense; the expenses it already added stay. */
+    public boolean removeRecurring(String id) throws IOException {
+        synchronized (recurring) {
+            if (!recurring.remove(id)) {
+                return false;
+            }
+            recurring.save();
+            return true;
+        }
+    }
+    
+    public List<RecurringExpenses.Rule> getRecurring() {
+        synchronized (recurring) {
+            return new ArrayList<>(recurring.rules());
+        }
+    }
+    
+    /**
+     * The recurring expenses in a currency that has lost its exchange rate. They add
+     * nothing until the rate is back, then catch up on everything they missed.
+     */
+    public List<RecurringExpenses.Rule> getWaitingRecurring() {
+        synchronized (recurring) {
+            return recurring.waiting(rates::converts);
+        }
+    }
+    
+    /**
+     * Adds every occurrence of the recurring expenses due by {@code now} that isn't in
+     * the ledger yet, as one batch, then forces it to disk and saves how far each rule
+     * has got. Returns how many were added. Rules in a currency with no rate are left
+     * where they are; see {@link #getWaitingRecurring}.
+     */
+    public int materializeRecurring(Date now) throws IOException {
+        synchronized (recurring) {
+            long nowMillis = now.getTime();
+            List<Expense> due = recurring.due(nowMillis, rates::converts);
+            int added = due.size() - (due.isEmpty() ? 0 : addExpenses(due).size());
+            recurring.advance(nowMillis, rates::converts);
+            if (!due.isEmpty()) {
+                // The watermark must not reach disk before the occurrences it covers
+                flush();
+                recurring.save();
+            }
+            return added;
+        }
+    }
+    
+    /** ISO 4217 code of the currency every total is in. */
+    public String getBaseCurrency() {
+        return rates.base();
+    }
+    
+    /** Whether expenses in {@code currency} can be added: it is the base currency or has a rate. */
+    public boolean converts(String currency) {
+        return rates.converts(currency);
+    }
+    
+    /** What was spent in each currency as entered, before any conversion. */
+    public Map<String, BigDecimal> getCurrencyTotals() {
+        lock.readLock().lock();
+        try {
+            Map<String, BigDecimal> totals = new HashMap<>();
+            aggregates.currencyTotals().forEach((currency, minor) ->
+                totals.put(currency, BigDecimal.valueOf(minor, Expense.fractionDigits(currency))));
+            return totals;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /** The expense's amount in the base currency, at the rate for its day. */
+    public double toBaseCurrency(Expense expense) {
+        long day = LocalDate.ofInstant(expense.getDate().toInstant(), ZoneId.systemDefault()).toEpochDay();
+        return rates.toBase(expense.getAmountMinor(), expense.getCurrency(), day) / 100.0;
+    }
+    
+    /**
+     * Totals, spread and per-category and per-month breakdowns in one pass over the
+     * ledger; {@code recentSince} starts the recent count. The median and percentiles
+     * need every amount, so segments that aren't loaded are read one at a time, as
+     * {@link #forEachSegment} does, and only their amounts are kept.
+     */
+    public ExpenseStatistics getStatistics(Date recentSince) {
+        long start = metrics.start();
+        ExpenseStatistics.Builder statistics = new ExpenseStatistics.Builder(recentSince.getTime());
+        forEachSegment(Long.MIN_VALUE, Long.MAX_VALUE, statistics::add);
+        metrics.add(ExpenseMetrics.Counter.ROWS_SCANNED, statistics.scanned());
+        metrics.record(ExpenseMetrics.Operation.STATISTICS, start);
+        return statistics.build();
+    }
+    
+    /**
+     * Every expense grouped by category, each list unmodifiable. Lists are cached per
+     * category, so after an add only that category is gathered again, in one pass over
+     * the segments as {@link #forEachSegment} reads them.
+     */
+    public Map<String, List<Expense>> getExpensesByCategory() {
+        long stamp = queryCache.stamp();
+        Map<String, List<Expense>> map = new HashMap<>();
+        Map<String, List<Expense>> missing = new HashMap<>();
+        for (String category : getCategoryTotals().keySet()) {
+            List<Expense> cached = queryCache.get(QueryCache.Query.category(category));
+            if (cached == null) {
+                missing.put(category, new ArrayList<>());
+            } else if (!cached.isEmpty()) {
+                map.put(category, cached);
+            }
+        }
+        if (missing.isEmpty()) {
+            return map;
+        }
+        long[] scanned = new long[1];
+        forEachSegment(Long.MIN_VALUE, Long.MAX_VALUE, (snapshot, rows) -> {
+            StringPool categories = snapshot.categoryPool();
+            List<List<Expense>> byOrdinal = new ArrayList<>(categories.size());
+            for (int ordinal = 0; ordinal < categories.size(); ordinal++) {
+                byOrdinal.add(missing.get(categories.get(ordinal)));
+            }
+            int size = rows == null ? snapshot.size() : rows.size();
+            for (int i = 0; i < size; i++) {
+                int row = rows == null ? i : rows.get(i);
+                if (snapshot.isDeleted(row)) continue;
+                List<Expense> expenses = byOrdinal.get(snapshot.categoryOrdinal(row));
+                if (expenses != null) expenses.add(snapshot.expense(row));
+            }
+            scanned[0] += size;
+        });
+        metrics.add(ExpenseMetrics.Counter.ROWS_SCANNED, scanned[0]);
+        missing.forEach((category, gathered) -> {
+            List<Expense> expenses = queryCache.put(QueryCache.Query.category(category), gathered, stamp);
+            if (!expenses.isEmpty()) map.put(category, expenses);
+        });
+        return map;
+    }
+    
+    public Map<String, Double> getMonthlyTotals() {
+        lock.readLock().lock();
+        try {
+            return aggregates.monthlyTotals();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Total of the expenses dated in [from, to); a null bound leaves that side open.
+     * Segments wholly inside the range count from the manifest, so at most the two
+     * at its ends are loaded.
+     */
+    public double sumBetween(Date from, Date to) {
+        long lo = startMillis(from);
+        long hi = endMillis(to);
+        readLock(() -> straddling(lo, hi));
+        try {
+            long cents = timeIndex.sumCents(lo, hi);
+            for (LedgerSegments.Segment segment : unloadedWithin(lo, hi)) {
+                cents += segment.summary.cents;
+            }
+            return cents / 100.0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    public int countBetween(Date from, Date to) {
+        long lo = startMillis(from);
+        long hi = endMillis(to);
+        readLock(() -> straddling(lo, hi));
+        try {
+            int count = timeIndex.count(lo, hi);
+            for (LedgerSegments.Segment segment : unloadedWithin(lo, hi)) {
+                count += segment.summary.rows;
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    // Segments that are partly inside [from, to)
+    private List<LedgerSegments.Segment> straddling(long from, long to) {
+        List<LedgerSegments.Segment> straddling = segments.overlapping(from, to);
+        straddling.removeIf(segment -> segment.start >= from && segment.end <= to);
+        return straddling;
+    }
+    
+    // Segments that aren't loaded and lie wholly inside [from, to); caller holds the read lock
+    private List<LedgerSegments.Segment> unloadedWithin(long from, long to) {
+        List<LedgerSegments.Segment> within = segments.overlapping(from, to);
+        within.removeIf(segment -> segment.loaded || segment.start < from || segment.end > to);
+        return within;
+    }
+    
+    /** Expenses dated in [from, to), oldest first, as an unmodifiable list; cached like searches. */
+    public List<Expense> listBetween(Date from, Date to) {
+        long start = metrics.start();
+        long lo = startMillis(from);
+        long hi = endMillis(to);
+        QueryCache.Query cacheKey = QueryCache.Query.dates(lo, hi);
+        long stamp = queryCache.stamp();
+        List<Expense> expenses = queryCache.get(cacheKey);
+        if (expenses == null) {
+            IntList rows;
+            ExpenseStore.Snapshot snapshot;
+            readLock(() -> segments.overlapping(lo, hi));
+            try {
+                rows = timeIndex.rows(lo, hi);
+                snapshot = store.snapshot();
+            } finally {
+                lock.readLock().unlock();
+            }
+            expenses = queryCache.put(cacheKey, snapshot.expenses(rows), stamp);
+        }
+        metrics.record(ExpenseMetrics.Operation.RANGE, start);
+        return expenses;
+    }
+    
+    /**
+     * Per-period totals between two dates, skipping periods with no expenses. Months and
+     * years take the months of segments wholly inside the range from the manifest;
+     * days and weeks need every segment the range touches.
+     */
+    public List<TimeIndex.Period> rollup(Rollup unit, Date from, Date to) {
+        long start = metrics.start();
+        long lo = startMillis(from);
+        long hi = endMillis(to);
+        boolean byMonth = unit == Rollup.MONTH || unit == Rollup.YEAR;
+        readLock(() -> byMonth ? straddling(lo, hi) : segments.overlapping(lo, hi));
+        try {
+            List<TimeIndex.Period> periods = timeIndex.rollup(unit, lo, hi);
+            List<LedgerSegments.Segment> unloaded = byMonth ? unloadedWithin(lo, hi) : List.of();
+            if (unloaded.isEmpty()) {
+                return periods;
+            }
+            SortedMap<LocalDate, ExpenseAggregates.Bucket> merged = new TreeMap<>();
+            for (TimeIndex.Period period : periods) {
+                ExpenseAggregates.Bucket bucket = merged.computeIfAbsent(period.start, k -> new ExpenseAggregates.Bucket());
+                bucket.cents += period.cents;
+                bucket.count += period.count;
+            }
+            for (LedgerSegments.Segment segment : unloaded) {
+                segment.summary.months.forEach((month, totals) -> {
+                    ExpenseAggregates.Bucket bucket = merged.computeIfAbsent(
+                        unit.start(LocalDate.of(month / 100, month % 100, 1)), k -> new ExpenseAggregates.Bucket());
+                    bucket.cents += totals.cents;
+                    bucket.count += totals.count;
+                });
+            }
+            List<TimeIndex.Period> combined = new ArrayList<>(merged.size());
+            merged.forEach((periodStart, bucket) -> combined.add(new TimeIndex.Period(periodStart, bucket.cents, bucket.count)));
+            return combined;
+        } finally {
+            lock.readLock().unlock();
+            metrics.record(ExpenseMetrics.Operation.RANGE, start);
+        }
+    }
+    
+    // Returns holding the read lock, with every segment `needed` picks loaded. Missing ones
+    // are loaded under the write lock, which is then downgraded, so nothing the caller
+    // uses is evicted before it lets go.
+    private void readLock(Supplier<Collection<LedgerSegments.Segment>> needed) {
+        long since = segments.tick();
+        lock.readLock().lock();
+        boolean ready = false;
+        try {
+            ready = true;
+            for (LedgerSegments.Segment segment : needed.get()) {
+                segment.lastUsed = since;
+                ready &= segment.loaded;
+            }
+        } finally {
+            if (!ready) lock.readLock().unlock();
+        }
+        if (ready) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            ensureLoaded(needed.get(), since);
+            lock.readLock().lock();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    // Receives the rows of one part of the ledger; rows is null for every row of the snapshot
+    private interface SegmentVisitor<E extends Exception> {
+        void visit(ExpenseStore.Snapshot snapshot, IntList rows) throws E;
+    }
+    
+    // Hands `visitor` the loaded rows, then each segment with any part in [from, to) that
+    // wasn't loaded, oldest first, without loading it: its file is read into a store of
+    // its own, dropped once the visitor returns. The loaded rows are all of them, so the
+    // visitor still checks dates. Each part is whole, but the ledger may change between
+    // parts. Rows may be deleted; the visitor skips those.
+    private <E extends Exception> void forEachSegment(long from, long to, SegmentVisitor<E> visitor) throws E {
+        ExpenseStore.Snapshot loaded;
+        List<LedgerSegments.Segment> unloaded;
+        lock.readLock().lock();
+        try {
+            loaded = store.snapshot();
+            unloaded = segments.overlapping(from, to);
+            unloaded.removeIf(segment -> segment.loaded);
+        } finally {
+            lock.readLock().unlock();
+        }
+        visitor.visit(loaded, null);
+        for (LedgerSegments.Segment segment : unloaded) {
+            ExpenseStore.Snapshot snapshot = null;
+            IntList rows = null;
+            lock.readLock().lock();
+            try {
+                if (segment.loaded) {
+                    // Loaded since, so its rows weren't in the first snapshot
+                    snapshot = store.snapshot();
+                    rows = timeIndex.rows(segment.start, segment.end);
+                } else {
+                    snapshot = read(segment);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (snapshot == null) {
+                // Loading it moves the damaged file aside and reports it
+                readLock(() -> List.of(segment));
+                try {
+                    snapshot = store.snapshot();
+                    rows = timeIndex.rows(segment.start, segment.end);
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+            visitor.visit(snapshot, rows);
+        }
+    }
+    
+    // The rows of a segment's file in a store of their own, or null if the file can't be
+    // read. Caller holds the read lock, so the file isn't replaced meanwhile.
+    private ExpenseStore.Snapshot read(LedgerSegments.Segment segment) {
+        ExpenseStore rows = new ExpenseStore(false, rates);
+        try {
+            LedgerFile.open(segments.file(segment)).loadInto(rows);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        return rows.snapshot();
+    }
+    
+    // Caller holds the write lock. Segments used since `since` are kept when this makes room.
+    private void ensureLoaded(Collection<LedgerSegments.Segment> needed, long since) {
+        boolean loadedAny = false;
+        for (LedgerSegments.Segment segment : needed) {
+            segment.lastUsed = since;
+            if (!segment.loaded) {
+                loadSegment(segment, true);
+                loadedAny = true;
+            }
+        }
+        if (loadedAny) {
+            evict(since);
+        }
+    }
+    
+    // Caller holds the write lock, or is the constructor, which indexes everything once
+    // loading is done
+    private void loadSegment(LedgerSegments.Segment segment, boolean index) {
+        long start = metrics.start();
+        if (segment.generation >= 0) {
+            Path file = segments.file(segment);
+            int first;
+            try {
+                first = LedgerFile.open(file).loadInto(store);
+            } catch (IOException | RuntimeException e) {
+                // Like a damaged snapshot: kept aside, and its rows no longer count
+                metrics.failed("load " + file, e);
+                aggregates.remove(segment.summary);
+                try {
+                    Path aside = segments.quarantine(segment);
+                    System.out.println("⚠️  Could not load " + file.getFileName() + " (" + e.getMessage() + "). "
+                        + (aside == null ? "" : "The file was moved to " + aside + "; ")
+                        + "its expenses are missing from the ledger.");
+                } catch (IOException moveFailed) {
+                    throw new UncheckedIOException("Could not load " + file + " or move it aside", moveFailed);
+                }
+                segment.loaded = true;
+                segment.lastUsed = segments.tick();
+                return;
+            }
+            aggregates.remove(segment.summary);
+            if (segments.stale(segment)) {
+                // The rows were converted again as they loaded; the file and summary follow at the next fold
+                segment.markDirty();
+            }
+            if (index) {
+                ExpenseStore.Snapshot snapshot = store.snapshot();
+                for (int row = first; row < snapshot.size(); row++) {
+                    aggregates.add(row);
+                    searchIndex.add(row);
+                    timeIndex.add(row);
+                    idIndex.add(row);
+                }
+                timeIndex.settle();
+            }
+        }
+        segment.loaded = true;
+        segment.lastUsed = segments.tick();
+        metrics.record(ExpenseMetrics.Operation.SEGMENT_LOAD, start);
+    }
+    
+    // Constructor only: loads every segment whose totals were converted with rates that
+    // have changed since, so no stale summary is counted. Returns how many there were.
+    private int restate() {
+        int restated = 0;
+        for (LedgerSegments.Segment segment : segments.all()) {
+            if (!segments.stale(segment)) continue;
+            if (!segment.loaded) loadSegment(segment, false);
+            // Unless it couldn't be loaded, and no longer counts at all
+            if (segments.stale(segment)) restated++;
+        }
+        return restated;
+    }
+    
+    // Caller holds the write lock. Drops the least recently used segments, oldest period
+    // first among equals, until the loaded rows fit the budget again. Only segments whose
+    // file is up to date can go; their rows are tombstoned without a journal record and
+    // their totals handed back to the manifest summary.
+    private void evict(long since) {
+        int loadedRows = store.snapshot().liveCount();
+        if (loadedRows <= config.maxLoadedRows) {
+            return;
+        }
+        List<LedgerSegments.Segment> candidates = new ArrayList<>();
+        for (LedgerSegments.Segment segment : segments.all()) {
+            if (segment.loaded && segment.lastUsed < since && segment.isClean()) candidates.add(segment);
+        }
+        candidates.sort(Comparator.comparingLong((LedgerSegments.Segment segment) -> segment.lastUsed));
+        int evicted = 0;
+        for (LedgerSegments.Segment segment : candidates) {
+            if (loadedRows <= config.maxLoadedRows) break;
+            IntList rows = timeIndex.rows(segment.start, segment.end);
+            for (int i = 0; i < rows.size(); i++) {
+                aggregates.remove(rows.get(i));
+                timeIndex.remove(rows.get(i));
+            }
+            store.delete(rows);
+            aggregates.add(segment.summary);
+            segment.loaded = false;
+            loadedRows -= rows.size();
+            evicted++;
+        }
+        metrics.add(ExpenseMetrics.Counter.SEGMENTS_EVICTED, evicted);
+        scheduleCompaction();
+    }
+    
+    // Row of the live expense with this id, loading the segment that holds it if need be.
+    // Caller holds the write lock, or is the constructor replaying the journal.
+    private int locate(String id, long epochMillis, boolean index) {
+        int row = store.find(id);
+        long[] range = idRange(id);
+        if (row >= 0 || range == null) {
+            return row;
+        }
+        LedgerSegments.Segment dated = epochMillis == Long.MIN_VALUE ? null : segments.at(epochMillis);
+        for (LedgerSegments.Segment segment : dated != null ? List.of(dated) : segments.holding(range[0], range[1], 1)) {
+            if (!segment.loaded) loadSegment(segment, index);
+        }
+        return store.find(id);
+    }
+    
+    // A full id's sign-flipped top bits as {from, to}, or null if it isn't a full id
+    private static long[] idRange(String id) {
+        return id.length() == 36 ? IdPrefixIndex.range(id.toLowerCase(Locale.ROOT)) : null;
+    }
+    
+    private static long startMillis(Date from) {
+        return from == null ? Long.MIN_VALUE : from.getTime();
+    }
+    
+    private static long endMillis(Date to) {
+        return to == null ? Long.MAX_VALUE : to.getTime();
+    }
+    
+    public int exportToCSV(String filename) throws IOException {
+        return exportToCSV(filename, ExpenseFilter.ALL);
+    }
+    
+    /**
+     * Exports the expenses matching {@code filter}; a filename ending in .gz is gzip-compressed.
+     */
+    public int exportToCSV(String filename, ExpenseFilter filter) throws IOException {
+        long start = metrics.start();
+        Path target = Paths.get(filename);
+        CsvExporter exporter = new CsvExporter(config.exportBufferSize);
+        int count = exporter.export(filter, target,
+            () -> forEachSegment(filter.fromMillis(), filter.toMillis(), exporter::write));
+        if (metrics.enabled()) {
+            metrics.add(ExpenseMetrics.Counter.ROWS_SCANNED, exporter.scanned());
+            metrics.add(ExpenseMetrics.Counter.BYTES_WRITTEN, Files.size(target));
+            metrics.record(ExpenseMetrics.Operation.EXPORT, start);
+        }
+        return count;
+    }
+    
+    /**
+     * Writes any records still queued or group-committed in memory and forces them to disk.
+     */
+    public void flush() {
+        writeQueued();
+    }
+    
+    // Called under the write lock, so records reach the journal in the order their changes
+    // were made. They are queued for the background writer, or journalLock is taken here
+    // and the caller passes them to write() once it has released the write lock.
+    private boolean handOff(List<byte[]> records) {
+        if (writer != null) {
+            writer.submit(records);
+            return false;
+        }
+        journalLock.lock();
+        return true;
+    }
+    
+    private void write(List<byte[]> records, boolean force) {
+        try {
+            log(records, force);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+    
+    // Draining under journalLock keeps a flush() from overtaking records the writer has taken
+    private void writeQueued() {
+        journalLock.lock();
+        try {
+            log(writer == null ? List.of() : writer.drain(), true);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+    
+    @Override
+    public void close() {
+        maintenance.shutdown();
+        synchronized (this) {
+            if (recurringTimer != null) {
+                recurringTimer.shutdown();
+            }
+        }
+        if (writer != null) {
+            writer.close();
+        }
+        if (metricsDump != null) {
+            metricsDump.shutdown();
+            metrics.dump(config.metricsDumpFile);
+        }
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                // Already gone
+            }
+            metricsName = null;
+        }
+        journalLock.lock();
+        try {
+            if (journal != null) {
+                log(writer == null ? List.of() : writer.drain(), true);
+                if (journal.recordCount() > 0 && journalReachesBack()) {
+                    // Keeps the next start down to the recent segments
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        metrics.failed("save expenses", e);
+                        System.out.println("⚠️  Could not save expenses: " + e.getMessage());
+                    }
+                }
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    metrics.failed("close journal", e);
+                    System.out.println("⚠️  Could not close journal: " + e.getMessage());
+                }
+                journal = null;
+            }
+            closed = true;
+        } finally {
+            journalLock.unlock();
+        }
+    }
+    
+    // Caller holds journalLock. After close() changes can't be saved, and saying so beats
+    // letting the caller believe they were.
+    private void log(List<byte[]> records, boolean force) {
+        if (closed) {
+            if (records.isEmpty()) return;
+            throw new IllegalStateException("Ledger is closed; " + records.size() + " changes were not saved");
+        }
+        if (journal == null) {
+            return;
+        }
+        long start = metrics.start();
+        try {
+            for (byte[] record : records) {
+                journal.append(record);
+                metrics.add(ExpenseMetrics.Counter.BYTES_WRITTEN, record.length);
+            }
+            if (force) {
+                journal.sync();
+            } else if (journal.pendingRecords() >= config.groupCommitSize) {
+                journal.commit();
+            }
+            metrics.record(ExpenseMetrics.Operation.JOURNAL_WRITE, start);
+            if (journal.recordCount() >= compactionThreshold()) {
+                compact();
+            }
+        } catch (IOException e) {
+            metrics.failed("save expenses", e);
+            System.out.println("⚠️  Could not save expenses: " + e.getMessage());
+        }
+    }
+    
+    private long compactionThreshold() {
+        return Math.max(config.minCompactionRecords, (long) (snapshotSize * config.compactionRatio));
+    }
+    
+    // Folds the journal into the segments it changed; their manifest is renamed into
+    // place before the journal is truncated, and replay skips records it has already seen.
+    // A writer may already have applied a change it hasn't logged yet; a segment can
+    // include it and the record then lands in the fresh journal, where replay ignores it.
+    private void compact() throws IOException {
+        long start = metrics.start();
+        journal.sync();
+        long written = segments.persist(store);
+        if (Files.exists(ledgerFile)) {
+            // Split into segments now; kept as a backup, like expenses.dat
+            Files.move(ledgerFile, ledgerFile.resolveSibling(LEDGER_FILE + ".migrated"),
+                StandardCopyOption.REPLACE_EXISTING);
+            LedgerFile.syncDirectory(ledgerFile);
+        }
+        journal.reset();
+        int loadedRows = store.snapshot().liveCount();
+        snapshotSize = loadedRows;
+        metrics.add(ExpenseMetrics.Counter.BYTES_WRITTEN, written);
+        metrics.record(ExpenseMetrics.Operation.SNAPSHOT_WRITE, start);
+        if (loadedRows > config.maxLoadedRows) {
+            // Segments it just wrote can be evicted now
+            scheduleEviction();
+        }
+    }
+    
+    // A fold off the write path: at startup, to split a single-file ledger (until that
+    // works it stays the snapshot, and the next fold tries again) or to make replayed
+    // segments evictable
+    private void foldJournal() {
+        if (journal == null) {
+            return;
+        }
+        journalLock.lock();
+        try {
+            compact();
+        } catch (IOException e) {
+            metrics.failed("save expenses", e);
+            System.out.println("⚠️  Could not save expenses: " + e.getMessage());
+        } finally {
+            journalLock.unlock();
+        }
+    }
+    
+    // Whether replaying the journal would load segments besides the two startup loads anyway
+    private boolean journalReachesBack() {
+        List<LedgerSegments.Segment> recent = segments.recent(System.currentTimeMillis(), 2);
+        for (LedgerSegments.Segment segment : segments.all()) {
+            if (segment.isDirty() && !recent.contains(segment)) return true;
+        }
+        return false;
+    }
+    
+    // Returns true if a single-file ledger was loaded and still has to be split
+    private boolean loadExpenses(Path journalFile) {
+        try {
+            // A snapshot that was still being written when the process died
+            Files.deleteIfExists(LedgerFile.temporaryFile(ledgerFile));
+        } catch (IOException e) {
+            // Harmless; the next snapshot overwrites it
+        }
+        boolean splitting = false;
+        if (Files.exists(ledgerFile)) {
+            // From before segments, or its split didn't finish: with the journal it still
+            // holds everything, so segments written from it are dropped and it is split again
+            try {
+                segments.clear();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not clear " + SEGMENTS_DIRECTORY, e);
+            }
+            try {
+                LedgerFile.open(ledgerFile).loadInto(store);
+                splitting = true;
+            } catch (IOException | RuntimeException e) {
+                // Keep the damaged file for recovery instead of overwriting it with the next snapshot
+                metrics.failed("load " + ledgerFile, e);
+                Path aside = ledgerFile.resolveSibling(ledgerFile.getFileName() + ".damaged-" + System.currentTimeMillis());
+                try {
+                    Files.move(ledgerFile, aside);
+                    System.out.println("⚠️  Could not load saved expenses (" + e.getMessage() + "). The file was moved to "
+                        + aside + "; only changes since it was written are loaded.");
+                } catch (IOException moveFailed) {
+                    throw new UncheckedIOException("Could not load " + ledgerFile + " or move it aside", moveFailed);
+                }
+            }
+        }
+        ExpenseStore.Snapshot loaded = store.snapshot();
+        for (int row = 0; row < loaded.size(); row++) {
+            segments.touch(loaded.epochMillis(row)).markDirty();
+        }
+        // Everything else counts from the manifest until a query needs its rows
+        for (LedgerSegments.Segment segment : segments.all()) {
+            if (!segment.loaded) aggregates.add(segment.summary);
+        }
+        for (LedgerSegments.Segment segment : segments.recent(System.currentTimeMillis(), 2)) {
+            if (!segment.loaded) loadSegment(segment, false);
+        }
+        snapshotSize = store.snapshot().liveCount();
+        
+        try {
+            journal = ExpenseJournal.open(journalFile, config, new ExpenseJournal.Visitor() {
+                public void added(Expense expense) {
+                    LedgerSegments.Segment segment = segments.touch(expense.getDate().getTime());
+                    if (!segment.loaded) loadSegment(segment, false);
+                    if (store.find(expense.getId()) < 0) {
+                        store.append(expense);
+                        segment.markDirty();
+                    }
+                }
+                public void deleted(String id, long epochMillis) {
+                    int row = locate(id, epochMillis, false);
+                    if (row >= 0) {
+                        segments.at(store.snapshot().epochMillis(row)).markDirty();
+                        store.delete(row);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            metrics.failed("open journal", e);
+            System.out.println("⚠️  Could not open journal, changes will not be saved: " + e.getMessage());
+        }
+        return splitting;
+    }
+    
+    // Converts an expenses.dat written by older versions (a serialized List<Expense>)
+    // into the columnar ledger; the original is kept next to it as expenses.dat.migrated.
+    @SuppressWarnings("unchecked")
+    private void migrateLegacyData(Path legacyFile) {
+        if (Files.exists(ledgerFile) || segments.exists() || !Files.exists(legacyFile)) {
+            return;
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new BufferedInputStream(Files.newInputStream(legacyFile))) {
+                    // Older versions had no package; the serialVersionUID is unchanged
+                    @Override
+                    protected Class<?> resolveClass(ObjectStreamClass desc)
+                            throws IOException, ClassNotFoundException {
+                        return desc.getName().equals("Expense") ? Expense.class : super.resolveClass(desc);
+                    }
+                }) {
+            List<Expense> legacy = (List<Expense>) ois.readObject();
+            ExpenseStore converted = new ExpenseStore(false, rates);
+            legacy.forEach(converted::append);
+            LedgerFile.write(ledgerFile, converted.snapshot());
+            Files.move(legacyFile, legacyFile.resolveSibling(legacyFile.getFileName() + ".migrated"),
+                StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("📦 Migrated " + legacy.size() + " expenses to " + LEDGER_FILE);
+        } catch (IOException | ClassNotFoundException e) {
+            metrics.failed("migrate " + legacyFile, e);
+            System.out.println("⚠️  Could not migrate " + LEGACY_DATA_FILE + ": " + e.getMessage());
+        }
+    }
+}
+
+/**
+ * Expense Aggregates - Running totals kept in step with every add and delete
+ *
+ * Amounts are summed as whole cents so the result does not depend on the order
+ * expenses were added or removed in. The smallest and largest rows are tracked on
+ * add; deleting one of them marks the extremes stale and the next read rescans the
+ * amount column.
+ *
+ * Segments that aren't loaded are counted from their manifest summaries: they add to
+ * the totals and to the category and month buckets, but have no rows, so the extremes
+ * only cover loaded rows.
+ *
+ * Totals are in hundredths of the base currency, each row converted once as it was
+ * stored. Per-currency buckets hold what was spent in each currency as entered, in its
+ * own minor units.
+ *
+ * Updates must be serialized by the caller, and reads must not overlap them.
+ */
+class ExpenseAggregates {
+    private final ExpenseStore store;
+    private final LocalCalendar calendar = new LocalCalendar(ZoneId.systemDefault());
+    private final Map<String, Bucket> categories = new HashMap<>();
+    private final Map<Integer, Bucket> months = new HashMap<>();
+    private final Map<String, Bucket> currencies = new HashMap<>();
+    private long totalCents;
+    private int count;
+    private int smallestRow = -1;
+    private int largestRow = -1;
+    private boolean extremesStale;
+    
+    static class Bucket {
+        long cents;     // in a per-currency bucket, minor units of that currency
+        int count;
+    }
+    
+    ExpenseAggregates(ExpenseStore store) {
+        this.store = store;
+    }
+    
+    void add(int row) {
+        ExpenseStore.Snapshot rows = store.snapshot();
+        long cents = rows.cents(row);
+        totalCents += cents;
+        count++;
+        if (!extremesStale) {
+            if (smallestRow < 0 || cents < rows.cents(smallestRow)) smallestRow = row;
+            if (largestRow < 0 || cents > rows.cents(largestRow)) largestRow = row;
+        }
+        update(categories.computeIfAbsent(rows.category(row), k -> new Bucket()), cents, 1);
+        update(months.computeIfAbsent(calendar.month(rows.epochMillis(row)), k -> new Bucket()), cents, 1);
+        update(currencies.computeIfAbsent(rows.currency(row), k -> new Bucket()), rows.amount(row), 1);
+    }
+    
+    // Called before the row is tombstoned
+    void remove(int row) {
+        ExpenseStore.Snapshot rows = store.snapshot();
+        long cents = rows.cents(row);
+        totalCents -= cents;
+        count--;
+        if (row == smallestRow || row == largestRow) {
+            extremesStale = true;
+        }
+        String category = rows.category(row);
+        if (update(categories.get(category), -cents, -1)) {
+            categories.remove(category);
+        }
+        int month = calendar.month(rows.epochMillis(row));
+        if (update(months.get(month), -cents, -1)) {
+            months.remove(month);
+        }
+        String currency = rows.currency(row);
+        if (update(currencies.get(currency), -rows.amount(row), -1)) {
+            currencies.remove(currency);
+        }
+    }
+    
+    /** Counts a segment that isn't loaded; remove it again before its rows are added. */
+    void add(LedgerSegments.Summary summary) {
+        adjust(summary, 1);
+    }
+    
+    void remove(LedgerSegments.Summary summary) {
+        adjust(summary, -1);
+    }
+    
+    private void adjust(LedgerSegments.Summary summary, int sign) {
+        totalCents += sign * summary.cents;
+        count += sign * summary.rows;
+        summary.categories.forEach((category, bucket) -> {
+            if (update(categories.computeIfAbsent(category, k -> new Bucket()), sign * bucket.cents, sign * bucket.count)) {
+                categories.remove(category);
+            }
+        });
+        summary.months.forEach((month, bucket) -> {
+            if (update(months.computeIfAbsent(month, k -> new Bucket()), sign * bucket.cents, sign * bucket.count)) {
+                months.remove(month);
+            }
+        });
+        summary.currencies.forEach((currency, bucket) -> {
+            if (update(currencies.computeIfAbsent(currency, k -> new Bucket()), sign * bucket.cents, sign * bucket.count)) {
+                currencies.remove(currency);
+            }
+        });
+    }
+    
+    void remap(int[] remap) {
+        if (smallestRow >= 0) smallestRow = remap[smallestRow];
+        if (largestRow >= 0) largestRow = remap[largestRow];
+        if (smallestRow < 0 || largestRow < 0) extremesStale = true;
+    }
+    
+    double total() { return totalCents / 100.0; }
+    long totalCents() { return totalCents; }
+    int count() { return count; }
+    
+    // Concurrent readers may both find the extremes stale; only one rescans
+    synchronized int smallestRow() {
+        refreshExtremes();
+        return smallestRow;
+    }
+    
+    synchronized int largestRow() {
+        refreshExtremes();
+        return largestRow;
+    }
+    
+    Map<String, Double> categoryTotals() {
+        Map<String, Double> totals = new HashMap<>();
+        categories.forEach((category, bucket) -> totals.put(category, bucket.cents / 100.0));
+        return totals;
+    }
+    
+    /** What was spent in each currency, in its own minor units. */
+    Map<String, Long> currencyTotals() {
+        Map<String, Long> totals = new HashMap<>();
+        currencies.forEach((currency, bucket) -> totals.put(currency, bucket.cents));
+        return totals;
+    }
+    
+    Map<String, Double> monthlyTotals() {
+        Map<String, Double> totals = new HashMap<>();
+        months.forEach((month, bucket) ->
+            totals.put(String.format("%04d-%02d", month / 100, month % 100), bucket.cents / 100.0));
+        return totals;
+    }
+    
+    private void refreshExtremes() {
+        if (!extremesStale) return;
+        smallestRow = -1;
+        largestRow = -1;
+        ExpenseStore.Snapshot rows = store.snapshot();
+        for (int row = 0; row < rows.size(); row++) {
+            if (rows.isDeleted(row)) continue;
+            long cents = rows.cents(row);
+            if (smallestRow < 0 || cents < rows.cents(smallestRow)) smallestRow = row;
+            if (largestRow < 0 || cents > rows.cents(largestRow)) largestRow = row;
+        }
+        extremesStale = false;
+    }
+    
+    // Returns true once the bucket is empty and can be dropped
+    private static boolean update(Bucket bucket, long cents, int count) {
+        bucket.cents += cents;
+        bucket.count += count;
+        return bucket.count == 0;
+    }
+}
+
+/**
+ * Expense Statistics - Everything the statistics screen shows, from one pass over the ledger
+ *
+ * The ledger is added to a {@link Builder} one part at a time, such as one segment, and
+ * only the amounts of the parts already added are kept. The rows of each part are
+ * split across the common fork-join pool. Each task walks its slice of the amount, date
+ * and category columns once, and the slices are merged back in row order.
+ * Sums are whole cents, with the sum of squares kept in 128 bits, so every figure is
+ * exact and comes out the same however the work was split. Median and percentiles are
+ * picked from a copy of the amounts by a bucket count and a selection inside the
+ * buckets that hold the wanted ranks; the copy is dropped once they are known.
+ */
+class ExpenseStatistics {
+    static final int[] PERCENTILES = { 25, 75, 90, 95, 99 };
+    private static final int SLICE_ROWS = 1 << 15;
+    
+    final int count;
+    final long totalCents;
+    final int recentCount;
+    final Expense smallest;
+    final Expense largest;
+    final Map<String, ExpenseAggregates.Bucket> categories;
+    final SortedMap<Integer, ExpenseAggregates.Bucket> months;    // keyed yyyyMM
+    private final long squaresHigh;
+    private final long squaresLow;
+    private final long lowerMedianCents;
+    private final long upperMedianCents;
+    private final long[] percentileCents;
+    
+    /**
+     * Adds up the ledger part by part; parts should come in date order, so that ties
+     * for smallest and largest go to the earliest expense.
+     */
+    static final class Builder {
+        private final long recentSince;
+        private long[] amounts = new long[0];  // live amounts of every part so far, in [0, count)
+        private int count;
+        private long cents;
+        private long squaresHigh;
+        private long squaresLow;
+        private int recent;
+        private long scanned;
+        private Expense smallest;
+        private Expense largest;
+        private long smallestCents;
+        private long largestCents;
+        private final Map<String, ExpenseAggregates.Bucket> categories = new HashMap<>();
+        private final Map<Integer, ExpenseAggregates.Bucket> months = new HashMap<>();
+        
+        /** {@code recentSince} is the epoch millis the recent count starts at. */
+        Builder(long recentSince) {
+            this.recentSince = recentSince;
+        }
+        
+        /** Adds the live rows of {@code snapshot}, or only those listed in {@code rows} unless it is null. */
+        void add(ExpenseStore.Snapshot snapshot, IntList rows) {
+            int size = rows == null ? snapshot.size() : rows.size();
+            long[] part = new long[size];
+            int categoryCount = snapshot.categoryPool().size();
+            Slice slice = new Slice(snapshot, rows, 0, size, recentSince, part, categoryCount).invoke();
+            scanned += size;
+            if (count == 0) {
+                amounts = part;
+            } else {
+                if (count + slice.count > amounts.length) {
+                    amounts = Arrays.copyOf(amounts, Math.max(count + slice.count, 2 * amounts.length));
+                }
+                System.arraycopy(part, 0, amounts, count, slice.count);
+            }
+            count += slice.count;
+            cents += slice.cents;
+            long low = squaresLow + slice.squaresLow;
+            if (Long.compareUnsigned(low, squaresLow) < 0) squaresHigh++;
+            squaresLow = low;
+            squaresHigh += slice.squaresHigh;
+            recent += slice.recent;
+            if (slice.smallestRow >= 0 && (smallest == null || slice.smallestCents < smallestCents)) {
+                smallest = snapshot.expense(slice.smallestRow);
+                smallestCents = slice.smallestCents;
+            }
+            if (slice.largestRow >= 0 && (largest == null || slice.largestCents > largestCents)) {
+                largest = snapshot.expense(slice.largestRow);
+                largestCents = slice.largestCents;
+            }
+            for (int ordinal = 0; ordinal < categoryCount; ordinal++) {
+                if (slice.categoryCounts[ordinal] == 0) continue;
+                ExpenseAggregates.Bucket bucket = categories.computeIfAbsent(snapshot.categoryPool().get(ordinal),
+                    k -> new ExpenseAggregates.Bucket());
+                bucket.cents += slice.categoryCents[ordinal];
+                bucket.count += slice.categoryCounts[ordinal];
+            }
+            slice.months.forEach((key, bucket) -> {
+                ExpenseAggregates.Bucket total = months.computeIfAbsent(key, k -> new ExpenseAggregates.Bucket());
+                total.cents += bucket.cents;
+                total.count += bucket.count;
+            });
+        }
+        
+        /** Rows looked at so far, deleted ones included. */
+        long scanned() {
+            return scanned;
+        }
+        
+        ExpenseStatistics build() {
+            return new ExpenseStatistics(this);
+        }
+    }
+    
+    private ExpenseStatistics(Builder all) {
+        count = all.count;
+        totalCents = all.cents;
+        recentCount = all.recent;
+        smallest = all.smallest;
+        largest = all.largest;
+        squaresHigh = all.squaresHigh;
+        squaresLow = all.squaresLow;
+        categories = new HashMap<>(all.categories);
+        months = new TreeMap<>(all.months);
+        long[] amounts = all.amounts;
+        
+        percentileCents = new long[PERCENTILES.length];
+        if (count == 0) {
+            lowerMedianCents = upperMedianCents = 0;
+            return;
+        }
+        int[] ranks = new int[PERCENTILES.length + 2];
+        ranks[0] = (count - 1) / 2;
+        ranks[1] = count / 2;
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            // Nearest rank: the smallest amount with at least p% of expenses at or below it
+            ranks[i + 2] = (int) Math.max(0, (PERCENTILES[i] * (long) count + 99) / 100 - 1);
+        }
+        int[] ascending = ranks.clone();
+        Arrays.sort(ascending);
+        long[] values = atRanks(amounts, count, all.smallestCents, all.largestCents, ascending);
+        lowerMedianCents = values[Arrays.binarySearch(ascending, ranks[0])];
+        upperMedianCents = values[Arrays.binarySearch(ascending, ranks[1])];
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            percentileCents[i] = values[Arrays.binarySearch(ascending, ranks[i + 2])];
+        }
+    }
+    
+    double total() { return totalCents / 100.0; }
+    
+    double average() {
+        return count == 0 ? 0 : (double) totalCents / count / 100.0;
+    }
+    
+    double median() {
+        return (lowerMedianCents + upperMedianCents) / 200.0;
+    }
+    
+    /** Amount at one of the {@link #PERCENTILES}, by the nearest-rank method. */
+    double percentile(int percentile) {
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            if (PERCENTILES[i] == percentile) return percentileCents[i] / 100.0;
+        }
+        throw new IllegalArgumentException("Percentile not computed: " + percentile);
+    }
+    
+    /** Population standard deviation of the amounts. */
+    double standardDeviation() {
+        if (count == 0) return 0;
+        // n * sum(x^2) - sum(x)^2 is exact in big integers; only the square root rounds
+        BigInteger squares = BigInteger.valueOf(squaresHigh).shiftLeft(64)
+            .add(new BigInteger(Long.toUnsignedString(squaresLow)));
+        BigInteger spread = squares.multiply(BigInteger.valueOf(count))
+            .subtract(BigInteger.valueOf(totalCents).pow(2));
+        return Math.sqrt(spread.doubleValue()) / count / 100.0;
+    }
+    
+    /**
+     * Amounts at the given ascending ranks. One counting pass over at most 2^16 buckets
+     * spanning [smallest, largest] finds the bucket each rank falls in, so only that
+     * bucket's amounts have to be gathered and searched.
+     */
+    private static long[] atRanks(long[] amounts, int count, long smallest, long largest, int[] ranks) {
+        long range = largest - smallest;
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(range) - 16);
+        int[] counts = new int[(int) (range >>> shift) + 1];
+        for (int i = 0; i < count; i++) {
+            counts[(int) ((amounts[i] - smallest) >>> shift)]++;
+        }
+        long[] values = new long[ranks.length];
+        long[] members = null;
+        int bucket = 0;
+        int below = 0;    // amounts in the buckets before this one
+        int gathered = -1;
+        int floor = 0;
+        for (int r = 0; r < ranks.length; r++) {
+            while (below + counts[bucket] <= ranks[r]) {
+                below += counts[bucket++];
+            }
+            if (bucket != gathered) {
+                members = new long[counts[bucket]];
+                int m = 0;
+                for (int i = 0; i < count; i++) {
+                    if ((int) ((amounts[i] - smallest) >>> shift) == bucket) members[m++] = amounts[i];
+                }
+                gathered = bucket;
+                floor = 0;
+            }
+            // Ranks ascend, so each search only has to cover what is above the last one
+            int k = ranks[r] - below;
+            if (k >= floor) {
+                select(members, floor, members.length, k);
+                floor = k + 1;
+            }
+            values[r] = members[k];
+        }
+        return values;
+    }
+    
+    // Quickselect over amounts[from, to); leaves the k-th smallest at k and returns it
+    private static long select(long[] amounts, int from, int to, int k) {
+        if (k == from) {
+            // The smallest of the range, e.g. the upper median right after the lower one
+            int smallest = from;
+            for (int i = from + 1; i < to; i++) {
+                if (amounts[i] < amounts[smallest]) smallest = i;
+            }
+            swap(amounts, from, smallest);
+            return amounts[from];
+        }
+        int low = from;
+        int high = to - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            // Median of three keeps already-sorted ledgers from going quadratic
+            if (amounts[middle] < amounts[low]) swap(amounts, middle, low);
+            if (amounts[high] < amounts[low]) swap(amounts, high, low);
+            if (amounts[high] < amounts[middle]) swap(amounts, high, middle);
+            long pivot = amounts[middle];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (amounts[i] < pivot) i++;
+                while (amounts[j] > pivot) j--;
+                if (i <= j) swap(amounts, i++, j--);
+            }
+            if (k <= j) {
+                high = j;
+            } else if (k >= i) {
+                low = i;
+            } else {
+                break;
+            }
+        }
+        return amounts[k];
+    }
+    
+    private static void swap(long[] amounts, int a, int b) {
+        long t = amounts[a];
+        amounts[a] = amounts[b];
+        amounts[b] = t;
+    }
+    
+    /**
+     * Totals for rows [from, to), or for the rows at positions [from, to) of a row list,
+     * forking halves until they are small enough to walk. Live amounts are packed into
+     * amounts[from, from + count).
+     */
+    private static final class Slice extends RecursiveTask<Slice> {
+        private final ExpenseStore.Snapshot rows;
+        private final IntList list;     // null: the rows themselves
+        private final int from;
+        private final int to;
+        private final long recentSince;
+        private final long[] amounts;
+        private final int categories;
+        
+        int count;
+        long cents;
+        long squaresHigh;
+        long squaresLow;
+        int recent;
+        int smallestRow = -1;
+        int largestRow = -1;
+        long smallestCents;
+        long largestCents;
+        long[] categoryCents;
+        int[] categoryCounts;
+        Map<Integer, ExpenseAggregates.Bucket> months = new HashMap<>();
+        
+        // Every row in the snapshot has a category ordinal below the pool size read up front
+        Slice(ExpenseStore.Snapshot rows, IntList list, int from, int to, long recentSince, long[] amounts,
+              int categories) {
+            this.rows = rows;
+            this.list = list;
+            this.from = from;
+            this.to = to;
+            this.recentSince = recentSince;
+            this.amounts = amounts;
+            this.categories = categories;
+        }
+        
+        @Override
+        protected Slice compute() {
+            if (to - from > SLICE_ROWS) {
+                int middle = (from + to) >>> 1;
+                Slice right = new Slice(rows, list, middle, to, recentSince, amounts, categories);
+                right.fork();
+                Slice left = new Slice(rows, list, from, middle, recentSince, amounts, categories).compute();
+                return left.merge(right.join());
+            }
+            categoryCents = new long[categories];
+            categoryCounts = new int[categories];
+            LocalCalendar calendar = new LocalCalendar(ZoneId.systemDefault());
+            int lastMonth = -1;
+            ExpenseAggregates.Bucket month = null;
+            for (int i = from; i < to; i++) {
+                int row = list == null ? i : list.get(i);
+                if (rows.isDeleted(row)) continue;
+                long amount = rows.cents(row);
+                long millis = rows.epochMillis(row);
+                int category = rows.categoryOrdinal(row);
+                amounts[from + count++] = amount;
+                cents += amount;
+                addSquare(Math.multiplyHigh(amount, amount), amount * amount);
+                if (millis >= recentSince) recent++;
+                // Strict comparisons keep the earliest row on ties, like the running aggregates
+                if (smallestRow < 0 || amount < smallestCents) {
+                    smallestRow = row;
+                    smallestCents = amount;
+                }
+                if (largestRow < 0 || amount > largestCents) {
+                    largestRow = row;
+                    largestCents = amount;
+                }
+                categoryCents[category] += amount;
+                categoryCounts[category]++;
+                // Rows mostly arrive in date order, so the month rarely changes between them
+                int key = calendar.month(millis);
+                if (key != lastMonth) {
+                    month = months.computeIfAbsent(key, k -> new ExpenseAggregates.Bucket());
+                    lastMonth = key;
+                }
+                month.cents += amount;
+                month.count++;
+            }
+            return this;
+        }
+        
+        // Folds the slice just after this one into this one
+        private Slice merge(Slice next) {
+            System.arraycopy(amounts, next.from, amounts, from + count, next.count);
+            count += next.count;
+            cents += next.cents;
+            addSquare(next.squaresHigh, next.squaresLow);
+            recent += next.recent;
+            if (next.smallestRow >= 0 && (smallestRow < 0 || next.smallestCents < smallestCents)) {
+                smallestRow = next.smallestRow;
+                smallestCents = next.smallestCents;
+            }
+            if (next.largestRow >= 0 && (largestRow < 0 || next.largestCents > largestCents)) {
+                largestRow = next.largestRow;
+                largestCents = next.largestCents;
+            }
+            for (int i = 0; i < categoryCents.length; i++) {
+                categoryCents[i] += next.categoryCents[i];
+                categoryCounts[i] += next.categoryCounts[i];
+            }
+            next.months.forEach((key, bucket) -> {
+                ExpenseAggregates.Bucket total = months.computeIfAbsent(key, k -> new ExpenseAggregates.Bucket());
+                total.cents += bucket.cents;
+                total.count += bucket.count;
+            });
+            return this;
+        }
+        
+        // 128-bit add with the carry out of the low word
+        private void addSquare(long high, long low) {
+            long sum = squaresLow + low;
+            if (Long.compareUnsigned(sum, squaresLow) < 0) squaresHigh++;
+            squaresLow = sum;
+            squaresHigh += high;
+        }
+    }
+}
+
+/**
+ * Expense Sort - Orders a page of expenses can be listed in
+ */
+enum ExpenseSort {
+    DATE,
+    AMOUNT,     // ties stay in date order
+    CATEGORY    // by category name, then date
+}
+
+/**
+ * Expense Page - One window of a sorted listing, with the position it came from
+ */
+class ExpensePage {
+    final List<Expense> expenses;
+    final int offset;
+    final int total;
+    
+    ExpensePage(List<Expense> expenses, int offset, int total) {
+        this.expenses = expenses;
+        this.offset = offset;
+        this.total = total;
+    }
+    
+    boolean hasMore() {
+        return offset + expenses.size() < total;
+    }
+}
+
+/**
+ * Search Mode - How the words of a search query are combined
+ */
+enum SearchMode {
+    ALL,        // every word must prefix-match a word of the expense, or of one alternative when joined by OR
+    ANY,        // at least one word must prefix-match
+    SUBSTRING   // original behaviour: linear scan for the raw keyword anywhere in the text
+}
+
+/**
+ * Search Index - Inverted index from lower-cased words of descriptions and categories
+ *
+ * Postings are sorted lists of store rows, so AND / OR queries are linear merges.
+ * Deleted rows are skipped until the store drops its tombstones and the postings
+ * are renumbered. Like the aggregates, updates are serialized by the caller and never overlap reads.
+ */
+class SearchIndex {
+    private static final Pattern OR = Pattern.compile("(?<![\\p{L}\\p{Nd}])(?i:or)(?![\\p{L}\\p{Nd}])");
+    
+    private final ExpenseStore store;
+    private final TreeMap<String, IntList> postings = new TreeMap<>();
+    
+    SearchIndex(ExpenseStore store) {
+        this.store = store;
+    }
+    
+    void add(int row) {
+        ExpenseStore.Snapshot rows = store.snapshot();
+        add(row, tokens(rows.description(row) + " " + rows.category(row)));
+    }
+    
+    void add(int row, List<String> tokens) {
+        for (String token : tokens) {
+            IntList posting = postings.computeIfAbsent(token, k -> new IntList());
+            if (posting.size() == 0 || posting.last() != row) {
+                posting.add(row);
+            }
+        }
+    }
+    
+    // Row numbers only move in order, so every posting stays sorted
+    void remap(int[] remap) {
+        Iterator<IntList> iterator = postings.values().iterator();
+        while (iterator.hasNext()) {
+            IntList posting = iterator.next();
+            posting.remap(remap);
+            if (posting.size() == 0) iterator.remove();
+        }
+    }
+    
+    /** Rows matching every word of at least one of {@code alternatives}; see {@link #terms}. */
+    IntList search(List<List<String>> alternatives) {
+        IntList matches = null;
+        for (List<String> words : alternatives) {
+            IntList all = null;
+            for (String term : words) {
+                all = all == null ? lookup(term) : IntList.intersect(all, lookup(term));
+                if (all.size() == 0) break;
+            }
+            matches = matches == null ? all : IntList.union(matches, all);
+        }
+        ExpenseStore.Snapshot rows = store.snapshot();
+        IntList results = new IntList(matches == null ? 0 : matches.size());
+        for (int i = 0; matches != null && i < matches.size(); i++) {
+            if (!rows.isDeleted(matches.get(i))) results.add(matches.get(i));
+        }
+        return results;
+    }
+    
+    // A term matches every indexed word it is a prefix of
+    private IntList lookup(String term) {
+        SortedMap<String, IntList> range = postings.subMap(term, term + Character.MAX_VALUE);
+        if (range.size() == 1) {
+            return range.values().iterator().next();
+        }
+        IntList merged = new IntList();
+        for (IntList posting : range.values()) {
+            merged.addAll(posting);
+        }
+        merged.sortDistinct();
+        return merged;
+    }
+    
+    /**
+     * The alternatives of a query: the text between the words {@code OR}, in any case,
+     * trimmed and lower-cased, leaving out empty ones.
+     */
+    static List<String> alternatives(String query) {
+        List<String> alternatives = new ArrayList<>();
+        for (String alternative : OR.split(query)) {
+            if (!alternative.isBlank()) alternatives.add(alternative.trim().toLowerCase(Locale.ROOT));
+        }
+        return alternatives;
+    }
+    
+    /**
+     * The words of each alternative of a query, sorted and without repeats. An expense
+     * matches when one alternative's words all prefix-match its words, so
+     * {@code "coffee OR tea shop"} is coffee, or tea and shop. With {@code matchAll}
+     * false each word is an alternative of its own.
+     */
+    static List<List<String>> terms(String query, boolean matchAll) {
+        Set<List<String>> terms = new LinkedHashSet<>();
+        for (String alternative : alternatives(query)) {
+            SortedSet<String> words = new TreeSet<>(tokens(alternative));
+            if (words.isEmpty()) continue;
+            if (matchAll) {
+                terms.add(List.copyOf(words));
+            } else {
+                words.forEach(word -> terms.add(List.of(word)));
+            }
+        }
+        return List.copyOf(terms);
+    }
+    
+    static List<String> tokens(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
+
+/**
+ * Query Cache - Bounded LRU of query results, dropped only by the changes that reach them
+ *
+ * Entries are weighed by the expenses they hold, and each query knows what it depends
+ * on: one category or any, a span of dates, and for searches the words searched for.
+ * An add or delete drops only the entries its expense could be part of, so a new
+ * coffee leaves a cached search for "rent" and the Travel list alone. Entries hold
+ * Expense objects rather than store rows, so dropping tombstones or unloading
+ * segments doesn't touch them.
+ */
+class QueryCache {
+    static final int MAX_ENTRIES = 1_024;
+    
+    private final int maxWeight;
+    private final ExpenseMetrics metrics;
+    private final LinkedHashMap<Query, List<Expense>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Queries on one category are found by name; the rest are checked one by one
+    private final Map<String, Set<Query>> byCategory = new HashMap<>();
+    private final Set<Query> anyCategory = new HashSet<>();
+    private long weight;
+    private long changes;
+    
+    /**
+     * A cacheable query, normalized so that equal results share a key: search words
+     * are split into their alternatives, lower-cased, sorted and deduplicated, since
+     * results come back in ledger order.
+     */
+    static final class Query {
+        private final String category;  // null: any category
+        private final long from;        // results are dated in [from, to)
+        private final long to;
+        private final SearchMode mode;  // null: not a search
+        private final List<List<String>> terms;    // alternatives, each of words that must all match
+        
+        private Query(String category, long from, long to, SearchMode mode, List<List<String>> terms) {
+            this.category = category;
+            this.from = from;
+            this.to = to;
+            this.mode = mode;
+            this.terms = terms;
+        }
+        
+        static Query category(String category) {
+            return new Query(category, Long.MIN_VALUE, Long.MAX_VALUE, null, List.of());
+        }
+        
+        static Query dates(long from, long to) {
+            return new Query(null, from, to, null, List.of());
+        }
+        
+        static Query search(String query, SearchMode mode) {
+            List<List<String>> terms = mode == SearchMode.SUBSTRING ? List.of(List.of(query.toLowerCase()))
+                : SearchIndex.terms(query, mode == SearchMode.ALL);
+            return new Query(null, Long.MIN_VALUE, Long.MAX_VALUE, mode, terms);
+        }
+        
+        // Whether the expense a change added or deleted is, or would be, in the result
+        boolean reaches(Change change) {
+            if (category != null && !category.equals(change.category)) return false;
+            if (change.epochMillis < from || change.epochMillis >= to) return false;
+            if (mode == null) return true;
+            if (mode == SearchMode.SUBSTRING) {
+                String keyword = terms.get(0).get(0);
+                return change.description.toLowerCase().contains(keyword)
+                    || change.category.toLowerCase().contains(keyword);
+            }
+            for (List<String> words : terms) {
+                if (words.stream().allMatch(term -> change.tokens().stream().anyMatch(token -> token.startsWith(term)))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Query)) return false;
+            Query query = (Query) other;
+            return from == query.from && to == query.to && mode == query.mode
+                && Objects.equals(category, query.category) && terms.equals(query.terms);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(category, from, to, mode, terms);
+        }
+    }
+    
+    // An added or deleted expense; its words are only split out if a search needs them
+    private static final class Change {
+        final String category;
+        final long epochMillis;
+        final String description;
+        private List<String> tokens;
+        
+        Change(String category, long epochMillis, String description) {
+            this.category = category;
+            this.epochMillis = epochMillis;
+            this.description = description;
+        }
+        
+        List<String> tokens() {
+            if (tokens == null) tokens = SearchIndex.tokens(description + " " + category);
+            return tokens;
+        }
+    }
+    
+    /** Holds up to {@code maxWeight} expenses across all entries; 0 turns caching off. */
+    QueryCache(int maxWeight, ExpenseMetrics metrics) {
+        this.maxWeight = maxWeight;
+        this.metrics = metrics;
+    }
+    
+    /**
+     * Changes seen so far. Read it before taking the snapshot a result is computed from
+     * and hand it to {@link #put}, so a result that a change slipped past is not kept.
+     */
+    synchronized long stamp() {
+        return changes;
+    }
+    
+    /** The cached result, unmodifiable, or null. */
+    synchronized List<Expense> get(Query query) {
+        if (maxWeight == 0) return null;
+        List<Expense> expenses = entries.get(query);
+        metrics.increment(expenses == null ? ExpenseMetrics.Counter.QUERY_CACHE_MISSES
+            : ExpenseMetrics.Counter.QUERY_CACHE_HITS);
+        return expenses;
+    }
+    
+    /**
+     * Caches a result computed from a snapshot taken after {@link #stamp} returned
+     * {@code stamp}, unless a change has come in since. Returns it unmodifiable either way.
+     */
+    synchronized List<Expense> put(Query query, List<Expense> expenses, long stamp) {
+        List<Expense> result = Collections.unmodifiableList(expenses);
+        if (stamp != changes || expenses.size() + 1 > maxWeight) {
+            return result;
+        }
+        List<Expense> replaced = entries.put(query, result);
+        if (replaced != null) {
+            weight -= replaced.size() + 1;
+        } else if (query.category != null) {
+            byCategory.computeIfAbsent(query.category, k -> new HashSet<>()).add(query);
+        } else {
+            anyCategory.add(query);
+        }
+        weight += expenses.size() + 1;
+        Iterator<Map.Entry<Query, List<Expense>>> eldest = entries.entrySet().iterator();
+        while (weight > maxWeight || entries.size() > MAX_ENTRIES) {
+            Map.Entry<Query, List<Expense>> entry = eldest.next();
+            eldest.remove();
+            unlink(entry.getKey(), entry.getValue());
+            metrics.increment(ExpenseMetrics.Counter.QUERY_CACHE_EVICTIONS);
+        }
+        return result;
+    }
+    
+    /** Drops every entry an added or deleted expense could be part of. */
+    synchronized void changed(String category, long epochMillis, String description) {
+        changes++;
+        if (entries.isEmpty()) return;
+        Change change = new Change(category, epochMillis, description);
+        List<Query> reached = new ArrayList<>();
+        Set<Query> inCategory = byCategory.get(category);
+        if (inCategory != null) {
+            for (Query query : inCategory) {
+                if (query.reaches(change)) reached.add(query);
+            }
+        }
+        for (Query query : anyCategory) {
+            if (query.reaches(change)) reached.add(query);
+        }
+        for (Query query : reached) {
+            unlink(query, entries.remove(query));
+        }
+        metrics.add(ExpenseMetrics.Counter.QUERY_CACHE_INVALIDATIONS, reached.size());
+    }
+    
+    synchronized int size() {
+        return entries.size();
+    }
+    
+    private void unlink(Query query, List<Expense> expenses) {
+        weight -= expenses.size() + 1;
+        if (query.category == null) {
+            anyCategory.remove(query);
+            return;
+        }
+        Set<Query> inCategory = byCategory.get(query.category);
+        inCategory.remove(query);
+        if (inCategory.isEmpty()) byCategory.remove(query.category);
+    }
+}
+
+/**
+ * Rollup - Calendar period that range totals are grouped by
+ */
+enum Rollup {
+    DAY, WEEK, MONTH, YEAR;
+    
+    // Weeks start on Monday, as in ISO-8601
+    LocalDate start(LocalDate date) {
+        return switch (this) {
+            case DAY -> date;
+            case WEEK -> date.minusDays(date.getDayOfWeek().getValue() - 1);
+            case MONTH -> date.withDayOfMonth(1);
+            case YEAR -> date.withDayOfYear(1);
+        };
+    }
+    
+    LocalDate next(LocalDate start) {
+        return switch (this) {
+            case DAY -> start.plusDays(1);
+            case WEEK -> start.plusWeeks(1);
+            case MONTH -> start.plusMonths(1);
+            case YEAR -> start.plusYears(1);
+        };
+    }
+}
+
+/**
+ * Time Index - Expenses in date order with Fenwick trees of amounts and counts
+ *
+ * Rows are kept in arrays sorted by (epoch millis, row), so a date range is two binary
+ * searches and its total and count are two prefix sums from the trees: O(log n) no
+ * matter how many years it spans. Expenses dated after everything indexed are appended
+ * in place; older ones wait in a short pending list that queries scan until it is
+ * merged in. Deleting subtracts the row from the trees and leaves it in the arrays
+ * until the next merge.
+ *
+ * Updates must be serialized by the caller, and reads must not overlap them.
+ */
+class TimeIndex {
+    private static final int MAX_PENDING = 256;
+    
+    private final ExpenseStore store;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private long[] millis = new long[1024];
+    private int[] rows = new int[1024];
+    // 1-based Fenwick trees over positions in the sorted arrays
+    private long[] centsTree = new long[1025];
+    private int[] countTree = new int[1025];
+    private int size;
+    private final IntList pending = new IntList();
+    
+    static final class Period {
+        final LocalDate start;
+        final long cents;
+        final int count;
+        
+        Period(LocalDate start, long cents, int count) {
+            this.start = start;
+            this.cents = cents;
+            this.count = count;
+        }
+        
+        double total() { return cents / 100.0; }
+    }
+    
+    TimeIndex(ExpenseStore store) {
+        this.store = store;
+    }
+    
+    void add(int row) {
+        ExpenseStore.Snapshot snapshot = store.snapshot();
+        long time = snapshot.epochMillis(row);
+        if (size == 0 || time >= millis[size - 1]) {
+            append(time, row, snapshot.cents(row));
+        } else {
+            pending.add(row);
+        }
+    }
+    
+    // Called before the row is tombstoned; pending rows are dropped when they are merged
+    void remove(int row) {
+        ExpenseStore.Snapshot snapshot = store.snapshot();
+        int position = lowerBound(snapshot.epochMillis(row), row);
+        if (position < size && rows[position] == row) {
+            update(position, -snapshot.cents(row), -1);
+        }
+    }
+    
+    /** Renumbers rows after the store dropped its tombstones; (millis, row) order is unchanged. */
+    void remap(int[] remap) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (remap[rows[i]] >= 0) {
+                millis[kept] = millis[i];
+                rows[kept++] = remap[rows[i]];
+            }
+        }
+        size = kept;
+        pending.remap(remap);
+        merge();
+    }
+    
+    /** Merges the pending rows once there are enough of them to slow queries down. */
+    void settle() {
+        if (pending.size() > MAX_PENDING) {
+            merge();
+        }
+    }
+    
+    void merge() {
+        ExpenseStore.Snapshot snapshot = store.snapshot();
+        int count = 0;
+        long[] pendingMillis = new long[pending.size()];
+        int[] pendingRows = new int[pending.size()];
+        for (int i = 0; i < pending.size(); i++) {
+            int row = pending.get(i);
+            if (snapshot.isDeleted(row)) continue;
+            pendingMillis[count] = snapshot.epochMillis(row);
+            pendingRows[count++] = row;
+        }
+        pending.clear();
+        // Pending rows were added in row order, so a stable sort orders them by (millis, row)
+        IntList.sortByKey(pendingMillis, pendingRows, count);
+        
+        int capacity = Math.max(1024, size + count);
+        long[] mergedMillis = new long[capacity];
+        int[] mergedRows = new int[capacity];
+        int merged = 0;
+        for (int i = 0, j = 0; i < size || j < count; ) {
+            boolean takePending = i == size || (j < count && (pendingMillis[j] < millis[i]
+                || (pendingMillis[j] == millis[i] && pendingRows[j] < rows[i])));
+            if (takePending) {
+                mergedMillis[merged] = pendingMillis[j];
+                mergedRows[merged++] = pendingRows[j++];
+            } else {
+                if (!snapshot.isDeleted(rows[i])) {
+                    mergedMillis[merged] = millis[i];
+                    mergedRows[merged++] = rows[i];
+                }
+                i++;
+            }
+        }
+        millis = mergedMillis;
+        rows = mergedRows;
+        size = merged;
+        
+        // Linear Fenwick build: each node passes its total up to its parent
+        centsTree = new long[capacity + 1];
+        countTree = new int[capacity + 1];
+        for (int i = 1; i <= size; i++) {
+            centsTree[i] += snapshot.cents(rows[i - 1]);
+            countTree[i]++;
+            int parent = i + (i & -i);
+            if (parent <= size) {
+                centsTree[parent] += centsTree[i];
+                countTree[parent] += countTree[i];
+            }
+        }
+    }
+    
+    /** Total cents of expenses dated in [from, to). */
+    long sumCents(long from, long to) {
+        long cents = prefixCents(lowerBound(to, 0)) - prefixCents(lowerBound(from, 0));
+        ExpenseStore.Snapshot snapshot = store.snapshot();
+        for (int i = 0; i < pending.size(); i++) {
+            int row = pending.get(i);
+            long time = snapshot.epochMillis(row);
+            if (time >= from && time < to && !snapshot.isDeleted(row)) cents += snapshot.cents(row);
+        }
+        return cents;
+    }
+    
+    /** Number of expenses dated in [from, to). */
+    int count(long from, long to) {
+        int count = prefixCount(lowerBound(to, 0)) - prefixCount(lowerBound(from, 0));
+        ExpenseStore.Snapshot snapshot = store.snapshot();
+        for (int i = 0; i < pending.size(); i++) {
+            int row = pending.get(i);
+            long time = snapshot.epochMillis(row);
+            if (time >= from && time < to && !snapshot.isDeleted(row)) count++;
+        }
+        return count;
+    }
+    
+    /** Rows of the expenses dated in [from, to), oldest first. */
+    IntList rows(long from, long to) {
+        ExpenseStore.Snapshot snapshot = store.snapshot();
+        long[] extraMillis = new long[pending.size()];
+        int[] extraRows = new int[pending.size()];
+        int extra = 0;
+        for (int i = 0; i < pending.size(); i++) {
+            int row = pending.get(i);
+            long time = snapshot.epochMillis(row);
+            if (time >= from && time < to && !snapshot.isDeleted(row)) {
+                extraMillis[extra] = time;
+                extraRows[extra++] = row;
+            }
+        }
+        IntList.sortByKey(extraMillis, extraRows, extra);
+        
+        int end = lowerBound(to, 0);
+        IntList result = new IntList();
+        for (int i = lowerBound(from, 0), j = 0; i < end || j < extra; ) {
+            if (i == end || (j < extra && (extraMillis[j] < millis[i]
+                    || (extraMillis[j] == millis[i] && extraRows[j] < rows[i])))) {
+                result.add(extraRows[j++]);
+            } else {
+                if (!snapshot.isDeleted(rows[i])) result.add(rows[i]);
+                i++;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Rows {@code offset} to {@code offset + limit} in date order (newest first when
+     * {@code descending}). The first row is found by descending the count tree, so a page
+     * costs O(log n + limit) wherever it starts.
+     */
+    IntList page(int offset, int limit, boolean descending) {
+        ExpenseStore.Snapshot snapshot = store.snapshot();
+        long[] extraMillis = new long[pending.size()];
+        int[] extraRows = new int[pending.size()];
+        int extra = 0;
+        for (int i = 0; i < pending.size(); i++) {
+            int row = pending.get(i);
+            if (!snapshot.isDeleted(row)) {
+                extraMillis[extra] = snapshot.epochMillis(row);
+                extraRows[extra++] = row;
+            }
+        }
+        IntList.sortByKey(extraMillis, extraRows, extra);
+        
+        int sortedLive = prefixCount(size);
+        int total = sortedLive + extra;
+        int from = descending ? Math.max(0, total - offset - limit) : offset;
+        int to = descending ? total - offset : Math.min(total, offset + limit);
+        IntList result = new IntList(Math.max(0, to - from));
+        if (from >= to) {
+            return result;
+        }
+        // Pending row j ranks (live sorted rows before it) + j overall; skip those before `from`
+        int j = 0;
+        while (j < extra && prefixCount(lowerBound(extraMillis[j], extraRows[j])) + j < from) {
+            j++;
+        }
+        int p = from - j < sortedLive ? positionOfLive(from - j) : size;
+        for (int k = from; k < to; k++) {
+            if (j < extra && (p == size || extraMillis[j] < millis[p]
+                    || (extraMillis[j] == millis[p] && extraRows[j] < rows[p]))) {
+                result.add(extraRows[j++]);
+            } else {
+                result.add(rows[p]);
+                do {
+                    p++;
+                } while (p < size && snapshot.isDeleted(rows[p]));
+            }
+        }
+        if (descending) {
+            result.reverse();
+        }
+        return result;
+    }
+    
+    /**
+     * Totals for each {@code unit} period overlapping [from, to) that has expenses in it.
+     * Costs two prefix-sum lookups per period, independent of how many rows each holds.
+     */
+    List<Period> rollup(Rollup unit, long from, long to) {
+        List<Period> periods = new ArrayList<>();
+        long first = Math.max(from, earliest());
+        long last = Math.min(to - 1, latest());
+        if (first > last) {
+            return periods;
+        }
+        LocalDate start = unit.start(Instant.ofEpochMilli(first).atZone(zone).toLocalDate());
+        long startMillis = start.atStartOfDay(zone).toInstant().toEpochMilli();
+        while (startMillis <= last) {
+            LocalDate next = unit.next(start);
+            long nextMillis = next.atStartOfDay(zone).toInstant().toEpochMilli();
+            long lo = Math.max(from, startMillis);
+            long hi = Math.min(to, nextMillis);
+            int count = count(lo, hi);
+            if (count > 0) {
+                periods.add(new Period(start, sumCents(lo, hi), count));
+            }
+            start = next;
+            startMillis = nextMillis;
+        }
+        return periods;
+    }
+    
+    private long earliest() {
+        ExpenseStore.Snapshot snapshot = store.snapshot();
+        long earliest = size > 0 ? millis[0] : Long.MAX_VALUE;
+        for (int i = 0; i < pending.size(); i++) {
+            earliest = Math.min(earliest, snapshot.epochMillis(pending.get(i)));
+        }
+        return earliest;
+    }
+    
+    // Everything pending is older than the last sorted row
+    private long latest() {
+        return size > 0 ? millis[size - 1] : Long.MIN_VALUE;
+    }
+    
+    private void append(long time, int row, long cents) {
+        if (size == millis.length) {
+            int capacity = size + (size >> 1);
+            millis = Arrays.copyOf(millis, capacity);
+            rows = Arrays.copyOf(rows, capacity);
+            centsTree = Arrays.copyOf(centsTree, capacity + 1);
+            countTree = Arrays.copyOf(countTree, capacity + 1);
+        }
+        millis[size] = time;
+        rows[size] = row;
+        // A new last node covers itself plus the positions (i - lowbit(i), i - 1]
+        int i = size + 1;
+        int from = i - (i & -i);
+        centsTree[i] = cents + prefixCents(i - 1) - prefixCents(from);
+        countTree[i] = 1 + prefixCount(i - 1) - prefixCount(from);
+        size++;
+    }
+    
+    private void update(int position, long cents, int count) {
+        for (int i = position + 1; i <= size; i += i & -i) {
+            centsTree[i] += cents;
+            countTree[i] += count;
+        }
+    }
+    
+    // Sum over the first n positions
+    private long prefixCents(int n) {
+        long sum = 0;
+        for (int i = n; i > 0; i -= i & -i) {
+            sum += centsTree[i];
+        }
+        return sum;
+    }
+    
+    private int prefixCount(int n) {
+        int sum = 0;
+        for (int i = n; i > 0; i -= i & -i) {
+            sum += countTree[i];
+        }
+        return sum;
+    }
+    
+    // Position of the k-th (0-based) live row in the sorted arrays
+    private int positionOfLive(int k) {
+        int position = 0;
+        int remaining = k + 1;
+        for (int step = Integer.highestOneBit(size); step > 0; step >>= 1) {
+            int next = position + step;
+            if (next <= size && countTree[next] < remaining) {
+                position = next;
+                remaining -= countTree[next];
+            }
+        }
+        return position;
+    }
+    
+    // First position whose (millis, row) is not less than (time, row)
+    private int lowerBound(long time, int row) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (millis[mid] < time || (millis[mid] == time && rows[mid] < row)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
+
+/**
+ * Id Prefix Index - Resolves short id prefixes, as typed in the CLI, to rows
+ *
+ * Rows are kept sorted by the unsigned top 64 bits of their id, which hold the
+ * first 16 hex digits, so a prefix is one binary search to a contiguous range.
+ * Ids are random, so new rows go to an unsorted pending list that lookups scan; it
+ * is merged in once it outgrows a few times the square root of the ledger, which
+ * keeps both the merge cost per add and the scan cost per lookup around O(sqrt n).
+ *
+ * Updates must be serialized by the caller, and reads must not overlap them.
+ */
+class IdPrefixIndex {
+    private static final int MIN_PENDING = 4096;
+    
+    private final ExpenseStore store;
+    private int[] sorted = new int[0];
+    private final IntList pending = new IntList();
+    
+    IdPrefixIndex(ExpenseStore store) {
+        this.store = store;
+    }
+    
+    void add(int row) {
+        pending.add(row);
+        if (pending.size() > Math.max(MIN_PENDING, 4 * (int) Math.sqrt(sorted.length))) {
+            merge();
+        }
+    }
+    
+    void merge() {
+        ExpenseStore.Snapshot snapshot = store.snapshot();
+        long[] keys = new long[pending.size()];
+        int[] rows = new int[pending.size()];
+        int count = 0;
+        for (int i = 0; i < pending.size(); i++) {
+            int row = pending.get(i);
+            if (snapshot.isDeleted(row)) continue;
+            keys[count] = key(snapshot, row);
+            rows[count++] = row;
+        }
+        pending.clear();
+        IntList.sortByKey(keys, rows, count);
+        
+        int[] merged = new int[sorted.length + count];
+        int size = 0;
+        for (int i = 0, j = 0; i < sorted.length || j < count; ) {
+            if (i == sorted.length || (j < count && keys[j] < key(snapshot, sorted[i]))) {
+                merged[size++] = rows[j++];
+            } else {
+                if (!snapshot.isDeleted(sorted[i])) merged[size++] = sorted[i];
+                i++;
+            }
+        }
+        sorted = Arrays.copyOf(merged, size);
+    }
+    
+    /** Renumbers rows after the store dropped its tombstones; order by id is unchanged. */
+    void remap(int[] remap) {
+        IntList kept = new IntList(sorted.length);
+        for (int row : sorted) {
+            if (remap[row] >= 0) kept.add(remap[row]);
+        }
+        sorted = kept.toArray();
+        pending.remap(remap);
+    }
+    
+    /**
+     * Live rows whose id starts with {@code prefix} (case-insensitive, dashes where
+     * {@link UUID#toString()} puts them), at most {@code limit} of them.
+     */
+    IntList resolve(String prefix, int limit) {
+        IntList matches = new IntList();
+        String normalized = prefix.toLowerCase(Locale.ROOT);
+        long[] range = range(normalized);
+        if (range == null) return matches;
+        long from = range[0];
+        long to = range[1];
+        // Prefixes past the top 64 bits are narrowed by their first 16 digits, then compared in full
+        boolean compareText = normalized.length() > 19;
+        
+        ExpenseStore.Snapshot snapshot = store.snapshot();
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (key(snapshot, sorted[mid]) < from) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < sorted.length && matches.size() < limit; i++) {
+            int row = sorted[i];
+            if (key(snapshot, row) > to) break;
+            if (matches(snapshot, row, normalized, compareText)) matches.add(row);
+        }
+        for (int i = 0; i < pending.size() && matches.size() < limit; i++) {
+            int row = pending.get(i);
+            long key = key(snapshot, row);
+            if (key >= from && key <= to && matches(snapshot, row, normalized, compareText)) matches.add(row);
+        }
+        return matches;
+    }
+    
+    /**
+     * {from, to}: the sign-flipped top 64 id bits of every id that starts with
+     * {@code prefix}, or null if no id can.
+     */
+    static long[] range(String prefix) {
+        long bits = 0;
+        int digits = 0;
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            boolean dash = i == 8 || i == 13 || i == 18 || i == 23;
+            if (i >= 36 || dash != (c == '-')) return null;
+            if (dash) continue;
+            int digit = Character.digit(c, 16);
+            if (digit < 0) return null;
+            if (digits < 16) bits |= (long) digit << (60 - 4 * digits);
+            digits++;
+        }
+        long span = digits >= 16 ? 0 : -1L >>> (4 * digits);
+        return new long[] { bits ^ Long.MIN_VALUE, (bits | span) ^ Long.MIN_VALUE };
+    }
+    
+    private static boolean matches(ExpenseStore.Snapshot snapshot, int row, String prefix, boolean compareText) {
+        return !snapshot.isDeleted(row) && (!compareText || snapshot.id(row).startsWith(prefix));
+    }
+    
+    // Signed order of the flipped value is unsigned order of the id bits
+    private static long key(ExpenseStore.Snapshot snapshot, int row) {
+        return snapshot.idHigh(row) ^ Long.MIN_VALUE;
+    }
+}
+
+/**
+ * Expense Store - Struct-of-arrays storage for the ledger
+ *
+ * Every expense is a row across primitive columns: amount in cents, epoch millis,
+ * the 128-bit id as two longs, an interned description index and a category
+ * ordinal. That is about 45 bytes per row including the id hash table, against
+ * several hundred for an Expense with its id string and Date. Expense objects are
+ * only built when a caller asks for one. Deleted rows are tombstoned so row numbers
+ * stay stable for the indexes built on top.
+ *
+ * The cents column is in hundredths of the base currency, converted with
+ * {@link ExchangeRates} once when the row is appended or loaded, so every total and
+ * sort reads one column whatever the currency. The amount as entered is kept in its
+ * own minor units next to a currency ordinal.
+ *
+ * Mutations must be serialized by the caller. Every mutation publishes a new
+ * immutable {@link Snapshot}: rows are never rewritten once appended, so a
+ * snapshot only needs the column buffers and row count of its moment plus its own
+ * copy of the tombstone segments it saw (segments are copied on write).
+ *
+ * With -Dexpenses.store.offHeap=true the columns live in direct buffers outside
+ * the Java heap.
+ */
+class ExpenseStore {
+    private static final int INITIAL_ROWS = 1024;
+    private static final int SEGMENT_SHIFT = 12; // 4096 rows per tombstone segment
+    private static final int MAX_ROWS = Integer.MAX_VALUE / 8; // the widest column in one buffer
+    
+    private final Column cents;
+    private final Column millis;
+    private final Column idHigh;
+    private final Column idLow;
+    private final Column descriptions;
+    private final Column categories;
+    private final Column amounts;
+    private final Column currencies;
+    private StringPool descriptionPool = new StringPool();
+    private final StringPool categoryPool = new StringPool();
+    private final StringPool currencyPool = new StringPool();
+    private final ExchangeRates rates;
+    private final LocalCalendar calendar = new LocalCalendar(ZoneId.systemDefault());
+    private long[][] deleted = new long[1][];
+    private int size;
+    private int live;
+    // Open-addressing table of row + 1 (0 = empty slot), hashed on the id bits
+    private int[] idTable = new int[INITIAL_ROWS * 2];
+    private int idEntries;
+    private volatile Snapshot current;
+    
+    ExpenseStore(boolean offHeap, ExchangeRates rates) {
+        this.rates = rates;
+        cents = new Column(8, INITIAL_ROWS, offHeap);
+        millis = new Column(8, INITIAL_ROWS, offHeap);
+        idHigh = new Column(8, INITIAL_ROWS, offHeap);
+        idLow = new Column(8, INITIAL_ROWS, offHeap);
+        descriptions = new Column(4, INITIAL_ROWS, offHeap);
+        categories = new Column(4, INITIAL_ROWS, offHeap);
+        amounts = new Column(8, INITIAL_ROWS, offHeap);
+        currencies = new Column(4, INITIAL_ROWS, offHeap);
+        publish();
+    }
+    
+    /** The latest published state; safe to read from any thread without locking. */
+    Snapshot snapshot() {
+        return current;
+    }
+    
+    int append(Expense expense) {
+        UUID id = UUID.fromString(expense.getId());
+        return append(id.getMostSignificantBits(), id.getLeastSignificantBits(), expense.getAmountMinor(),
+            expense.getCurrency(), expense.getDate().getTime(), expense.getDescription(), expense.getCategory());
+    }
+    
+    int append(long high, long low, long amountMinor, String currency, long epochMillis,
+               String description, String category) {
+        int ordinal = categoryPool.intern(category);
+        int currencyOrdinal = currencyPool.intern(currency);
+        int row = size;
+        ensureCapacity(row + 1);
+        cents.putLong(row, rates.toBase(amountMinor, currency, calendar.epochDay(epochMillis)));
+        millis.putLong(row, epochMillis);
+        idHigh.putLong(row, high);
+        idLow.putLong(row, low);
+        descriptions.putInt(row, descriptionPool.intern(description));
+        categories.putInt(row, ordinal);
+        amounts.putLong(row, amountMinor);
+        currencies.putInt(row, currencyOrdinal);
+        size++;
+        live++;
+        indexId(row);
+        publish();
+        return row;
+    }
+    
+    boolean delete(int row) {
+        if (row < 0 || row >= size || current.isDeleted(row)) return false;
+        unindexId(row);
+        
+        long[][] segments = deleted.clone();
+        int index = row >>> SEGMENT_SHIFT;
+        long[] segment = segments[index] == null
+            ? new long[1 << (SEGMENT_SHIFT - 6)] : segments[index].clone();
+        segment[(row >>> 6) & ((1 << (SEGMENT_SHIFT - 6)) - 1)] |= 1L << row;
+        segments[index] = segment;
+        deleted = segments;
+        live--;
+        publish();
+        return true;
+    }
+    
+    /** Deletes many rows and publishes once, copying each tombstone segment they touch once. */
+    void delete(IntList rows) {
+        long[][] segments = deleted.clone();
+        boolean[] copied = new boolean[segments.length];
+        for (int i = 0; i < rows.size(); i++) {
+            int row = rows.get(i);
+            int index = row >>> SEGMENT_SHIFT;
+            int word = (row >>> 6) & ((1 << (SEGMENT_SHIFT - 6)) - 1);
+            if (row >= size || (segments[index] != null && (segments[index][word] & (1L << row)) != 0)) continue;
+            if (!copied[index]) {
+                segments[index] = segments[index] == null ? new long[1 << (SEGMENT_SHIFT - 6)] : segments[index].clone();
+                copied[index] = true;
+            }
+            unindexId(row);
+            segments[index][word] |= 1L << row;
+            live--;
+        }
+        deleted = segments;
+        publish();
+    }
+    
+    /**
+     * Drops deleted rows, renumbering the rest without changing their order, and
+     * returns the old-to-new row mapping (-1 for dropped rows) for the indexes built on
+     * top. Columns are copied into new buffers, so existing snapshots stay valid.
+     */
+    int[] compact() {
+        Snapshot before = current;
+        int[] remap = new int[size];
+        int rows = 0;
+        for (int row = 0; row < size; row++) {
+            remap[row] = before.isDeleted(row) ? -1 : rows++;
+        }
+        int capacity = Math.max(INITIAL_ROWS, rows + (rows >> 1));
+        for (Column column : columns()) {
+            column.compact(remap, capacity);
+        }
+        // Descriptions only dropped or evicted rows used would otherwise stay interned for good
+        StringPool kept = new StringPool();
+        for (int row = 0; row < rows; row++) {
+            descriptions.putInt(row, kept.intern(descriptionPool.get(descriptions.getInt(row))));
+        }
+        descriptionPool = kept;
+        size = rows;
+        live = rows;
+        deleted = new long[((capacity - 1) >>> SEGMENT_SHIFT) + 1][];
+        idTable = new int[Math.max(INITIAL_ROWS * 2, Integer.highestOneBit(Math.max(1, rows)) * 4)];
+        for (int row = 0; row < rows; row++) {
+            insertId(row);
+        }
+        idEntries = rows;
+        publish();
+        return remap;
+    }
+    
+    int find(String id) {
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(id);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+        return find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+    
+    /** Row of the live expense with this id, or -1. Must be called under the writer's lock. */
+    int find(long high, long low) {
+        int mask = idTable.length - 1;
+        for (int slot = hash(high, low) & mask; ; slot = (slot + 1) & mask) {
+            int entry = idTable[slot];
+            if (entry == 0) return -1;
+            int row = entry - 1;
+            if (idHigh.getLong(row) == high && idLow.getLong(row) == low) return row;
+        }
+    }
+    
+    /**
+     * Bulk-appends snapshot columns and returns the first new row. The snapshot's
+     * dictionaries are interned first; into an empty store they come out in the same
+     * order, so its description and category indexes are copied as-is, and otherwise
+     * they are translated row by row. The ids must not already be in the store.
+     *
+     * Snapshots written before currencies pass null amount and currency columns: their
+     * cents are US dollars. Rows in any currency that doesn't convert as-is get their
+     * cents worked out again from the rates in effect now.
+     *
+     * Category and currency ordinals are {@code ordinalWidth} bytes each in the source
+     * columns: 1 in snapshots from before version 4, 4 since.
+     */
+    int load(int rows, int ordinalWidth, ByteBuffer centsColumn, ByteBuffer millisColumn, ByteBuffer highColumn,
+             ByteBuffer lowColumn, ByteBuffer descriptionColumn, ByteBuffer categoryColumn,
+             ByteBuffer amountColumn, ByteBuffer currencyColumn, List<String> descriptionDictionary,
+             List<String> categoryDictionary, List<String> currencyDictionary) {
+        int[] descriptionIndexes = new int[descriptionDictionary.size()];
+        boolean descriptionsMatch = true;
+        for (int i = 0; i < descriptionIndexes.length; i++) {
+            descriptionIndexes[i] = descriptionPool.intern(descriptionDictionary.get(i));
+            descriptionsMatch &= descriptionIndexes[i] == i;
+        }
+        int[] ordinals = new int[categoryDictionary.size()];
+        boolean categoriesMatch = true;
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinals[i] = categoryPool.intern(categoryDictionary.get(i));
+            categoriesMatch &= ordinals[i] == i;
+        }
+        int[] currencyOrdinals = new int[currencyDictionary.size()];
+        boolean currenciesMatch = true;
+        boolean converted = false;
+        for (int i = 0; i < currencyOrdinals.length; i++) {
+            currencyOrdinals[i] = currencyPool.intern(currencyDictionary.get(i));
+            currenciesMatch &= currencyOrdinals[i] == i;
+            converted |= !rates.identity(currencyDictionary.get(i));
+        }
+        int first = size;
+        ensureCapacity(first + rows);
+        cents.copyFrom(centsColumn, first, rows);
+        millis.copyFrom(millisColumn, first, rows);
+        idHigh.copyFrom(highColumn, first, rows);
+        idLow.copyFrom(lowColumn, first, rows);
+        if (descriptionsMatch) {
+            descriptions.copyFrom(descriptionColumn, first, rows);
+        } else {
+            for (int i = 0; i < rows; i++) {
+                descriptions.putInt(first + i, descriptionIndexes[descriptionColumn.getInt(descriptionColumn.position() + 4 * i)]);
+            }
+        }
+        if (categoriesMatch && ordinalWidth == 4) {
+            categories.copyFrom(categoryColumn, first, rows);
+        } else {
+            for (int i = 0; i < rows; i++) {
+                categories.putInt(first + i, ordinals[ordinal(categoryColumn, i, ordinalWidth)]);
+            }
+        }
+        if (amountColumn == null) {
+            amounts.copyFrom(centsColumn, first, rows);
+            for (int i = 0; i < rows; i++) {
+                currencies.putInt(first + i, currencyOrdinals[0]);
+            }
+        } else {
+            amounts.copyFrom(amountColumn, first, rows);
+            if (currenciesMatch && ordinalWidth == 4) {
+                currencies.copyFrom(currencyColumn, first, rows);
+            } else {
+                for (int i = 0; i < rows; i++) {
+                    currencies.putInt(first + i, currencyOrdinals[ordinal(currencyColumn, i, ordinalWidth)]);
+                }
+            }
+        }
+        if (converted) {
+            for (int row = first; row < first + rows; row++) {
+                String currency = currencyPool.get(currencies.getInt(row));
+                if (!rates.identity(currency)) {
+                    cents.putLong(row, rates.toBase(amounts.getLong(row), currency, calendar.epochDay(millis.getLong(row))));
+                }
+            }
+        }
+        size += rows;
+        live += rows;
+        if (2 * (idEntries + rows) > idTable.length) {
+            idTable = new int[Integer.highestOneBit(Math.max(1, size)) * 4];
+            for (int row = 0; row < first; row++) {
+                if (!current.isDeleted(row)) insertId(row);
+            }
+        }
+        for (int row = first; row < size; row++) {
+            insertId(row);
+        }
+        idEntries += rows;
+        publish();
+        return first;
+    }
+    
+    private void publish() {
+        current = new Snapshot(this);
+    }
+    
+    private Column[] columns() {
+        return new Column[] { cents, millis, idHigh, idLow, descriptions, categories, amounts, currencies };
+    }
+    
+    private static int ordinal(ByteBuffer column, int i, int width) {
+        return width == 4 ? column.getInt(column.position() + 4 * i) : column.get(column.position() + i) & 0xFF;
+    }
+    
+    /** Makes room for {@code rows} more rows up front, so a batch can't run out partway through. */
+    void reserve(int rows) {
+        if (rows > MAX_ROWS - size) {
+            throw new IllegalStateException("Ledger is full: " + size + " rows, " + rows + " more won't fit");
+        }
+        ensureCapacity(size + rows);
+    }
+    
+    private void ensureCapacity(int rows) {
+        if (rows > cents.capacity()) {
+            int capacity = Math.min(MAX_ROWS, Math.max(rows, cents.capacity() + (cents.capacity() >> 1)));
+            for (Column column : columns()) {
+                column.resize(capacity);
+            }
+        }
+        int segments = ((rows - 1) >>> SEGMENT_SHIFT) + 1;
+        if (segments > deleted.length) {
+            deleted = Arrays.copyOf(deleted, Math.max(segments, deleted.length * 2));
+        }
+    }
+    
+    private void indexId(int row) {
+        if (2 * (idEntries + 1) > idTable.length) {
+            int[] old = idTable;
+            idTable = new int[old.length * 2];
+            for (int entry : old) {
+                if (entry != 0) insertId(entry - 1);
+            }
+        }
+        insertId(row);
+        idEntries++;
+    }
+    
+    private void insertId(int row) {
+        int mask = idTable.length - 1;
+        int slot = hash(idHigh.getLong(row), idLow.getLong(row)) & mask;
+        while (idTable[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        idTable[slot] = row + 1;
+    }
+    
+    // Linear-probing removal: shift later entries of the cluster back into the gap
+    private void unindexId(int row) {
+        int mask = idTable.length - 1;
+        int slot = hash(idHigh.getLong(row), idLow.getLong(row)) & mask;
+        while (idTable[slot] != row + 1) {
+            slot = (slot + 1) & mask;
+        }
+        int gap = slot;
+        for (slot = (gap + 1) & mask; idTable[slot] != 0; slot = (slot + 1) & mask) {
+            int other = idTable[slot] - 1;
+            int home = hash(idHigh.getLong(other), idLow.getLong(other)) & mask;
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                idTable[gap] = idTable[slot];
+                gap = slot;
+            }
+        }
+        idTable[gap] = 0;
+        idEntries--;
+    }
+    
+    private static int hash(long high, long low) {
+        long h = (high ^ Long.rotateLeft(low, 32)) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+    
+    /**
+     * Immutable view of the store at one point in time
+     */
+    static final class Snapshot {
+        private final ByteBuffer cents, millis, idHigh, idLow, descriptions, categories, amounts, currencies;
+        private final StringPool descriptionPool, categoryPool, currencyPool;
+        private final long[][] deleted;
+        private final int size;
+        private final int live;
+        private volatile int[] liveRows;
+        
+        private Snapshot(ExpenseStore store) {
+            cents = store.cents.data();
+            millis = store.millis.data();
+            idHigh = store.idHigh.data();
+            idLow = store.idLow.data();
+            descriptions = store.descriptions.data();
+            categories = store.categories.data();
+            amounts = store.amounts.data();
+            currencies = store.currencies.data();
+            descriptionPool = store.descriptionPool;
+            categoryPool = store.categoryPool;
+            currencyPool = store.currencyPool;
+            deleted = store.deleted;
+            size = store.size;
+            live = store.live;
+        }
+        
+        /** Number of rows ever appended, including deleted ones; valid rows are 0..size-1. */
+        int size() { return size; }
+        int liveCount() { return live; }
+        
+        /** Hundredths of the base currency. */
+        long cents(int row) { return cents.getLong(row << 3); }
+        /** As entered, in minor units of {@link #currency}. */
+        long amount(int row) { return amounts.getLong(row << 3); }
+        long epochMillis(int row) { return millis.getLong(row << 3); }
+        long idHigh(int row) { return idHigh.getLong(row << 3); }
+        long idLow(int row) { return idLow.getLong(row << 3); }
+        int descriptionIndex(int row) { return descriptions.getInt(row << 2); }
+        String description(int row) { return descriptionPool.get(descriptionIndex(row)); }
+        int categoryOrdinal(int row) { return categories.getInt(row << 2); }
+        String category(int row) { return categoryPool.get(categoryOrdinal(row)); }
+        int currencyOrdinal(int row) { return currencies.getInt(row << 2); }
+        String currency(int row) { return currencyPool.get(currencyOrdinal(row)); }
+        String id(int row) { return new UUID(idHigh(row), idLow(row)).toString(); }
+        
+        // Pool entries are append-only, so indexes seen through this snapshot stay valid
+        StringPool descriptionPool() { return descriptionPool; }
+        StringPool categoryPool() { return categoryPool; }
+        StringPool currencyPool() { return currencyPool; }
+        
+        boolean isDeleted(int row) {
+            long[] segment = deleted[row >>> SEGMENT_SHIFT];
+            return segment != null && (segment[(row >>> 6) & ((1 << (SEGMENT_SHIFT - 6)) - 1)] & (1L << row)) != 0;
+        }
+        
+        Expense expense(int row) {
+            return new Expense(id(row), description(row), amount(row), currency(row), category(row),
+                new Date(epochMillis(row)));
+        }
+        
+        List<Expense> expenses(IntList rows) {
+            List<Expense> result = new ArrayList<>(rows.size());
+            for (int i = 0; i < rows.size(); i++) {
+                result.add(expense(rows.get(i)));
+            }
+            return result;
+        }
+        
+        /** Live expenses as an unmodifiable list that builds each Expense on access. */
+        List<Expense> asList() {
+            return new AbstractList<Expense>() {
+                @Override
+                public Expense get(int index) {
+                    Objects.checkIndex(index, live);
+                    return expense(live == size ? index : liveRows()[index]);
+                }
+                
+                @Override
+                public int size() {
+                    return live;
+                }
+            };
+        }
+        
+        private int[] liveRows() {
+            int[] rows = liveRows;
+            if (rows == null) {
+                rows = new int[live];
+                for (int row = 0, i = 0; row < size; row++) {
+                    if (!isDeleted(row)) rows[i++] = row;
+                }
+                liveRows = rows;
+            }
+            return rows;
+        }
+    }
+}
+
+/**
+ * Column - Fixed-width primitive column backed by a heap or direct byte buffer
+ */
+class Column {
+    private final int width;
+    private final boolean direct;
+    private ByteBuffer data;
+    
+    Column(int width, int capacity, boolean direct) {
+        this.width = width;
+        this.direct = direct;
+        this.data = allocate(capacity);
+    }
+    
+    int capacity() { return data.capacity() / width; }
+    ByteBuffer data() { return data; }
+    
+    long getLong(int row) { return data.getLong(row << 3); }
+    int getInt(int row) { return data.getInt(row << 2); }
+    void putLong(int row, long value) { data.putLong(row << 3, value); }
+    void putInt(int row, int value) { data.putInt(row << 2, value); }
+    
+    // Older snapshots keep reading the previous buffer, which is never written again
+    void resize(int rows) {
+        ByteBuffer grown = allocate(rows);
+        grown.put(data.duplicate().clear());
+        data = grown;
+    }
+    
+    // Moves each kept row to remap[row] in a new buffer, copying runs of kept rows at once
+    void compact(int[] remap, int capacity) {
+        ByteBuffer compacted = allocate(capacity);
+        for (int row = 0; row < remap.length; ) {
+            if (remap[row] < 0) {
+                row++;
+                continue;
+            }
+            int start = row;
+            while (row < remap.length && remap[row] >= 0) {
+                row++;
+            }
+            compacted.put(remap[start] * width, data, start * width, (row - start) * width);
+        }
+        data = compacted;
+    }
+    
+    // Copies the first rows values of source to row `at` on; source must use the same byte order
+    void copyFrom(ByteBuffer source, int at, int rows) {
+        data.duplicate().clear().position(at * width).put(source.duplicate().limit(source.position() + rows * width));
+    }
+    
+    private ByteBuffer allocate(int rows) {
+        int bytes = Math.multiplyExact(rows, width);
+        return direct ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+    }
+}
+
+/**
+ * String Pool - Interns strings to dense int indexes
+ *
+ * Interning is single-writer; {@link #get} may run concurrently with it for any
+ * index that was published to the reader through a store snapshot.
+ */
+class StringPool {
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private volatile String[] values = new String[16];
+    private volatile int size;
+    
+    int intern(String value) {
+        Integer index = indexes.get(value);
+        if (index == null) {
+            index = size;
+            String[] current = values;
+            if (index == current.length) {
+                current = Arrays.copyOf(current, index * 2);
+            }
+            current[index] = value;
+            values = current;
+            indexes.put(value, index);
+            size = index + 1;
+        }
+        return index;
+    }
+    
+    String get(int index) { return values[index]; }
+    int size() { return size; }
+}
+
+/**
+ * Int List - Growable primitive int array
+ */
+class IntList {
+    private int[] values;
+    private int size;
+    
+    IntList() {
+        this(8);
+    }
+    
+    IntList(int capacity) {
+        values = new int[Math.max(1, capacity)];
+    }
+    
+    int size() { return size; }
+    int get(int index) { return values[index]; }
+    int last() { return values[size - 1]; }
+    
+    void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+    
+    void addAll(IntList other) {
+        if (size + other.size > values.length) {
+            values = Arrays.copyOf(values, Math.max(size + other.size, size * 2));
+        }
+        System.arraycopy(other.values, 0, values, size, other.size);
+        size += other.size;
+    }
+    
+    void clear() {
+        size = 0;
+    }
+    
+    int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+    
+    void reverse() {
+        for (int i = 0, j = size - 1; i < j; i++, j--) {
+            int value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+    
+    /** Replaces each value v with remap[v], dropping those mapped to -1. Keeps order. */
+    void remap(int[] remap) {
+        int out = 0;
+        for (int i = 0; i < size; i++) {
+            int mapped = remap[values[i]];
+            if (mapped >= 0) values[out++] = mapped;
+        }
+        size = out;
+    }
+    
+    void sortDistinct() {
+        Arrays.sort(values, 0, size);
+        int out = 0;
+        for (int i = 0; i < size; i++) {
+            if (out == 0 || values[out - 1] != values[i]) {
+                values[out++] = values[i];
+            }
+        }
+        size = out;
+    }
+    
+    // Both inputs must be sorted ascending
+    static IntList intersect(IntList a, IntList b) {
+        IntList out = new IntList(Math.min(a.size, b.size));
+        int i = 0, j = 0;
+        while (i < a.size && j < b.size) {
+            int x = a.values[i], y = b.values[j];
+            if (x == y) {
+                out.add(x);
+                i++;
+                j++;
+            } else if (x < y) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return out;
+    }
+    
+    static IntList union(IntList a, IntList b) {
+        IntList out = new IntList(a.size + b.size);
+        int i = 0, j = 0;
+        while (i < a.size || j < b.size) {
+            if (j == b.size || (i < a.size && a.values[i] < b.values[j])) {
+                out.add(a.values[i++]);
+            } else if (i == a.size || b.values[j] < a.values[i]) {
+                out.add(b.values[j++]);
+            } else {
+                out.add(a.values[i++]);
+                j++;
+            }
+        }
+        return out;
+    }
+    
+    // Stable bottom-up merge sort of the first n entries of two parallel arrays by key
+    static void sortByKey(long[] keys, int[] values, int n) {
+        long[] keyBuffer = new long[n];
+        int[] valueBuffer = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + 2 * width, n);
+                int i = lo;
+                int j = mid;
+                for (int k = lo; k < hi; k++) {
+                    if (j >= hi || (i < mid && keys[i] <= keys[j])) {
+                        keyBuffer[k] = keys[i];
+                        valueBuffer[k] = values[i++];
+                    } else {
+                        keyBuffer[k] = keys[j];
+                        valueBuffer[k] = values[j++];
+                    }
+                }
+            }
+            System.arraycopy(keyBuffer, 0, keys, 0, n);
+            System.arraycopy(valueBuffer, 0, values, 0, n);
+        }
+    }
+}
+
+/**
+ * Expense Filter - Date range and category slice of the ledger
+ */
+class ExpenseFilter {
+    static final ExpenseFilter ALL = new ExpenseFilter(Long.MIN_VALUE, Long.MAX_VALUE, null);
+    
+    private final long fromMillis;   // inclusive
+    private final long toMillis;     // exclusive
+    private final Set<String> categories;
+    
+    private ExpenseFilter(long fromMillis, long toMillis, Set<String> categories) {
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+        this.categories = categories;
+    }
+    
+    static ExpenseFilter between(Date from, Date to) {
+        return ALL.withDates(from, to);
+    }
+    
+    static ExpenseFilter inCategories(String... categories) {
+        return ALL.withCategories(categories);
+    }
+    
+    ExpenseFilter withDates(Date from, Date to) {
+        return new ExpenseFilter(from == null ? Long.MIN_VALUE : from.getTime(),
+            to == null ? Long.MAX_VALUE : to.getTime(), categories);
+    }
+    
+    ExpenseFilter withCategories(String... names) {
+        return new ExpenseFilter(fromMillis, toMillis, new HashSet<>(Arrays.asList(names)));
+    }
+    
+    long fromMillis() { return fromMillis; }
+    long toMillis() { return toMillis; }
+    
+    boolean matches(long epochMillis, String category) {
+        return epochMillis >= fromMillis && epochMillis < toMillis
+            && (categories == null || categories.contains(category));
+    }
+}
+
+/**
+ * CSV Exporter - Streams expenses as CSV without per-row formatting objects
+ *
+ * Rows are encoded straight into one reusable byte buffer (amounts from whole minor
+ * units, dates through {@link LocalCalendar}) which is handed to a file channel, or to a
+ * gzip stream for {@code .gz} targets, whenever it fills up. Amounts are written as
+ * entered, followed by their currency. The rows can come in parts, such as one segment
+ * at a time, so the ledger never has to be in memory at once.
+ */
+class CsvExporter {
+    static final String HEADER = "ID,Description,Amount,Category,Date,Currency";
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    
+    private final int bufferSize;
+    private final LocalCalendar calendar = new LocalCalendar(ZoneId.systemDefault());
+    private final byte[] newline = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    // Decimal places per currency ordinal of the part being written, looked up the first time each is seen
+    private int[] fractionDigits;
+    private byte[] buffer;
+    private int position;
+    private OutputStream out;
+    private FileChannel channel;
+    private ExpenseFilter filter;
+    private int count;
+    private long scanned;
+    
+    /** Hands the exporter the rows to write, by calling {@link #write} once per part. */
+    interface Source {
+        void writeParts() throws IOException;
+    }
+    
+    CsvExporter(int bufferSize) {
+        this.bufferSize = Math.max(4096, bufferSize);
+    }
+    
+    /** Writes the header and then the parts {@code source} writes; returns how many rows matched. */
+    int export(ExpenseFilter filter, Path target, Source source) throws IOException {
+        buffer = new byte[bufferSize];
+        position = 0;
+        this.filter = filter;
+        count = 0;
+        scanned = 0;
+        try (FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (target.getFileName().toString().endsWith(".gz")) {
+                out = new GZIPOutputStream(Channels.newOutputStream(file), bufferSize);
+            } else {
+                channel = file;
+            }
+            writeAscii(HEADER);
+            writeNewline();
+            source.writeParts();
+            drain();
+            if (out != null) {
+                out.close();
+            }
+        } finally {
+            out = null;
+            channel = null;
+            buffer = null;
+            filter = null;
+        }
+        return count;
+    }
+    
+    /** Writes the live rows of {@code store} that match, or only those listed in {@code rows} unless it is null. */
+    void write(ExpenseStore.Snapshot store, IntList rows) throws IOException {
+        fractionDigits = new int[store.currencyPool().size()];
+        Arrays.fill(fractionDigits, -1);
+        int size = rows == null ? store.size() : rows.size();
+        for (int i = 0; i < size; i++) {
+            int row = rows == null ? i : rows.get(i);
+            if (store.isDeleted(row) || !filter.matches(store.epochMillis(row), store.category(row))) {
+                continue;
+            }
+            writeRow(store, row);
+            count++;
+        }
+        scanned += size;
+    }
+    
+    /** Rows looked at by the last export, deleted ones included. */
+    long scanned() {
+        return scanned;
+    }
+    
+    private void writeRow(ExpenseStore.Snapshot store, int row) throws IOException {
+        String description = store.description(row);
+        String category = store.category(row);
+        // id, quotes, amount, category and date fit comfortably in 128 bytes
+        ensure(128 + 3 * 2 * description.length() + 3 * category.length());
+        writeId(store.idHigh(row), store.idLow(row));
+        buffer[position++] = ',';
+        buffer[position++] = '"';
+        writeUtf8(description, true);
+        buffer[position++] = '"';
+        buffer[position++] = ',';
+        int currency = store.currencyOrdinal(row);
+        if (fractionDigits[currency] < 0) {
+            fractionDigits[currency] = Expense.fractionDigits(store.currency(row));
+        }
+        writeAmount(store.amount(row), fractionDigits[currency]);
+        buffer[position++] = ',';
+        writeUtf8(category, false);
+        buffer[position++] = ',';
+        position = calendar.formatDateTime(store.epochMillis(row), buffer, position);
+        buffer[position++] = ',';
+        writeAscii(store.currency(row));
+        writeNewline();
+    }
+    
+    // Same text as UUID.toString(): 8-4-4-4-12 lower-case hex digits
+    private void writeId(long high, long low) {
+        writeHex(high >>> 32, 8);
+        buffer[position++] = '-';
+        writeHex(high >>> 16, 4);
+        buffer[position++] = '-';
+        writeHex(high, 4);
+        buffer[position++] = '-';
+        writeHex(low >>> 48, 4);
+        buffer[position++] = '-';
+        writeHex(low, 12);
+    }
+    
+    private void writeHex(long value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[position + i] = HEX[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+        position += digits;
+    }
+    
+    private void writeAmount(long minor, int digits) {
+        if (minor < 0) {
+            buffer[position++] = '-';
+            minor = -minor;
+        }
+        int start = position;
+        // Least significant digit first, then reversed: the fraction, the point, the whole part
+        for (int i = 0; i < digits; i++) {
+            buffer[position++] = (byte) ('0' + minor % 10);
+            minor /= 10;
+        }
+        if (digits > 0) {
+            buffer[position++] = '.';
+        }
+        do {
+            buffer[position++] = (byte) ('0' + minor % 10);
+            minor /= 10;
+        } while (minor > 0);
+        for (int i = start, j = position - 1; i < j; i++, j--) {
+            byte b = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = b;
+        }
+    }
+    
+    private void writeUtf8(String text, boolean escapeQuotes) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if (c == '"' && escapeQuotes) buffer[position++] = '"';
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | c >> 6);
+                buffer[position++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | cp >> 18);
+                buffer[position++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                buffer[position++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                buffer[position++] = (byte) (0x80 | cp & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                buffer[position++] = '?';
+            } else {
+                buffer[position++] = (byte) (0xE0 | c >> 12);
+                buffer[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buffer[position++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+    }
+    
+    private void writeAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            buffer[position++] = (byte) text.charAt(i);
+        }
+    }
+    
+    private void writeNewline() {
+        for (byte b : newline) {
+            buffer[position++] = b;
+        }
+    }
+    
+    private void ensure(int bytes) throws IOException {
+        if (position + bytes > buffer.length) {
+            drain();
+            if (bytes > buffer.length) {
+                buffer = new byte[bytes];
+            }
+        }
+    }
+    
+    private void drain() throws IOException {
+        if (out != null) {
+            out.write(buffer, 0, position);
+        } else {
+            ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, position);
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+        }
+        position = 0;
+    }
+}
+
+/**
+ * CSV Column Mapping - Which CSV columns feed which expense fields
+ *
+ * Columns are given by header name (case-insensitive) or by zero-based index. The
+ * defaults read the layout written by {@link CsvExporter}.
+ */
+class CsvColumnMapping {
+    String id = "ID";
+    String description = "Description";
+    String amount = "Amount";
+    String category = "Category";
+    String date = "Date";
+    String currency = "Currency";
+    // For rows without a currency column or value
+    String defaultCurrency = Expense.DEFAULT_CURRENCY;
+    String datePattern = "yyyy-MM-dd HH:mm:ss";
+    boolean header = true;
+    
+    /** Applies overrides such as {@code description=Memo,amount=3,date=Posted}. */
+    CsvColumnMapping with(String spec) {
+        for (String pair : spec.split(",")) {
+            String[] parts = pair.split("=", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected field=column but got: " + pair);
+            }
+            String column = parts[1].trim();
+            switch (parts[0].trim().toLowerCase(Locale.ROOT)) {
+                case "id" -> id = column;
+                case "description" -> description = column;
+                case "amount" -> amount = column;
+                case "category" -> category = column;
+                case "date" -> date = column;
+                case "currency" -> currency = column;
+                default -> throw new IllegalArgumentException("Unknown field: " + parts[0]);
+            }
+        }
+        return this;
+    }
+    
+    // Resolves a column reference against the header row; -1 when the column is absent
+    int resolve(String column, List<String> headerRow) {
+        if (column == null || column.isEmpty()) return -1;
+        if (column.chars().allMatch(Character::isDigit)) return Integer.parseInt(column);
+        for (int i = 0; headerRow != null && i < headerRow.size(); i++) {
+            if (headerRow.get(i).trim().equalsIgnoreCase(column)) return i;
+        }
+        return -1;
+    }
+}
+
+/**
+ * CSV Importer - Parses large CSV files in parallel into validated expenses
+ *
+ * The file is memory-mapped and cut into chunks at record boundaries (a quick
+ * sequential scan that respects quoted fields), then each chunk is parsed on the
+ * fork-join pool, which also categorizes rows that have no category. Valid rows are
+ * committed to the ledger in one batch. A row in a currency the ledger has no exchange
+ * rate for is rejected like any other invalid row.
+ */
+class CsvImporter {
+    private static final int CHUNK_SIZE = 1 << 20;
+    
+    private final CsvColumnMapping mapping;
+    private final DateTimeFormatter dateFormat;
+    private final CategoryRules categoryRules;
+    
+    CsvImporter(CsvColumnMapping mapping) {
+        this(mapping, CategoryRules.NONE);
+    }
+    
+    /** Rows without a category get the one {@code categoryRules} give their description. */
+    CsvImporter(CsvColumnMapping mapping, CategoryRules categoryRules) {
+        this.mapping = mapping;
+        this.dateFormat = DateTimeFormatter.ofPattern(mapping.datePattern);
+        this.categoryRules = categoryRules;
+    }
+    
+    static class Rejection {
+        final long line;
+        final String reason;
+        
+        Rejection(long line, String reason) {
+            this.line = line;
+            this.reason = reason;
+        }
+        
+        @Override
+        public String toString() {
+            return "line " + line + ": " + reason;
+        }
+    }
+    
+    static class Report {
+        long rows;
+        int imported;
+        final List<Rejection> rejected = new ArrayList<>();
+        long parseNanos;
+        long commitNanos;
+        
+        double rowsPerSecond() {
+            long nanos = parseNanos + commitNanos;
+            return nanos == 0 ? 0 : rows * 1e9 / nanos;
+        }
+    }
+    
+    Report importFile(Path file, ExpenseManager manager) throws IOException {
+        Report report = new Report();
+        long start = System.nanoTime();
+        List<Expense> parsed = parse(file, report, manager::converts);
+        long parsedAt = System.nanoTime();
+        report.parseNanos = parsedAt - start;
+        
+        List<Expense> duplicates = manager.addExpenses(parsed);
+        for (Expense duplicate : duplicates) {
+            report.rejected.add(new Rejection(0, "id " + duplicate.getId() + " is already in the ledger"));
+        }
+        report.imported = parsed.size() - duplicates.size();
+        report.commitNanos = System.nanoTime() - parsedAt;
+        return report;
+    }
+    
+    List<Expense> parse(Path file, Report report) throws IOException {
+        return parse(file, report, currency -> true);
+    }
+    
+    /** Rows in a currency {@code rated} refuses are rejected. */
+    List<Expense> parse(Path file, Report report, Predicate<String> rated) throws IOException {
+        byte[] gzipped = null;
+        ByteBuffer data;
+        if (file.getFileName().toString().endsWith(".gz")) {
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(file), 1 << 16)) {
+                gzipped = in.readAllBytes();
+            }
+            data = ByteBuffer.wrap(gzipped);
+        } else {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("CSV files over 2 GB are not supported");
+                }
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        
+        int begin = hasBom(data) ? 3 : 0;
+        List<String> headerRow = null;
+        long firstLine = 1;
+        if (mapping.header) {
+            Chunk head = new Chunk(data, begin, data.limit(), 1);
+            headerRow = head.nextRecord();
+            begin = head.position;
+            firstLine = 2;
+        }
+        int[] columns = {
+            mapping.resolve(mapping.id, headerRow),
+            mapping.resolve(mapping.description, headerRow),
+            mapping.resolve(mapping.amount, headerRow),
+            mapping.resolve(mapping.category, headerRow),
+            mapping.resolve(mapping.date, headerRow),
+            mapping.resolve(mapping.currency, headerRow)
+        };
+        if (columns[1] < 0 || columns[2] < 0) {
+            throw new IOException("CSV needs description and amount columns (see --map)");
+        }
+        
+        List<ParseTask> tasks = new ArrayList<>();
+        for (Chunk chunk : split(data, begin, firstLine)) {
+            tasks.add(new ParseTask(chunk, columns, rated));
+        }
+        ForkJoinTask.invokeAll(tasks);
+        
+        List<Expense> expenses = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (ParseTask task : tasks) {
+            report.rows += task.rows;
+            report.rejected.addAll(task.rejected);
+            for (int i = 0; i < task.expenses.size(); i++) {
+                Expense expense = task.expenses.get(i);
+                if (seen.add(expense.getId())) {
+                    expenses.add(expense);
+                } else {
+                    report.rejected.add(new Rejection(task.lines.get(i), "duplicate id in file"));
+                }
+            }
+        }
+        report.rejected.sort(Comparator.comparingLong(r -> r.line));
+        return expenses;
+    }
+    
+    // Cuts the data into roughly CHUNK_SIZE pieces that end on a newline outside quotes
+    private static List<Chunk> split(ByteBuffer data, int begin, long firstLine) {
+        List<Chunk> chunks = new ArrayList<>();
+        boolean quoted = false;
+        long line = firstLine;
+        long chunkLine = firstLine;
+        int chunkStart = begin;
+        for (int i = begin; i < data.limit(); i++) {
+            byte b = data.get(i);
+            if (b == '"') {
+                quoted = !quoted;
+            } else if (b == '\n') {
+                line++;
+                if (!quoted && i + 1 - chunkStart >= CHUNK_SIZE) {
+                    chunks.add(new Chunk(data, chunkStart, i + 1, chunkLine));
+                    chunkStart = i + 1;
+                    chunkLine = line;
+                }
+            }
+        }
+        if (chunkStart < data.limit()) {
+            chunks.add(new Chunk(data, chunkStart, data.limit(), chunkLine));
+        }
+        return chunks;
+    }
+    
+    private static boolean hasBom(ByteBuffer data) {
+        return data.limit() >= 3 && data.get(0) == (byte) 0xEF
+            && data.get(1) == (byte) 0xBB && data.get(2) == (byte) 0xBF;
+    }
+    
+    private class ParseTask extends RecursiveAction {
+        private final Chunk chunk;
+        private final int[] columns;
+        private final Predicate<String> rated;
+        final List<Expense> expenses = new ArrayList<>();
+        final List<Long> lines = new ArrayList<>();
+        final List<Rejection> rejected = new ArrayList<>();
+        long rows;
+        
+        ParseTask(Chunk chunk, int[] columns, Predicate<String> rated) {
+            this.chunk = chunk;
+            this.columns = columns;
+            this.rated = rated;
+        }
+        
+        @Override
+        protected void compute() {
+            List<String> record;
+            while (true) {
+                long line = chunk.line;
+                if ((record = chunk.nextRecord()) == null) break;
+                if (record.size() == 1 && record.get(0).isBlank()) continue;
+                rows++;
+                try {
+                    expenses.add(toExpense(record));
+                    lines.add(line);
+                } catch (IllegalArgumentException | DateTimeException e) {
+                    rejected.add(new Rejection(line, e.getMessage()));
+                }
+            }
+        }
+        
+        private Expense toExpense(List<String> record) {
+            String description = field(record, columns[1]).trim();
+            if (description.isEmpty()) {
+                throw new IllegalArgumentException("empty description");
+            }
+            
+            String currency = field(record, columns[5]).trim().toUpperCase(Locale.ROOT);
+            if (currency.isEmpty()) {
+                currency = mapping.defaultCurrency;
+            }
+            String amountText = field(record, columns[2]).trim().replace("$", "");
+            long amount;
+            try {
+                amount = Expense.minorUnits(new BigDecimal(amountText), currency);
+            } catch (NumberFormatException | ArithmeticException e) {
+                throw new IllegalArgumentException("invalid amount '" + amountText + "'");
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("unknown currency '" + currency + "'");
+            }
+            if (amount <= 0) {
+                throw new IllegalArgumentException("amount must be positive");
+            }
+            if (!rated.test(currency)) {
+                throw new IllegalArgumentException("no exchange rate for " + currency);
+            }
+            
+            String idText = field(record, columns[0]).trim();
+            String id;
+            try {
+                id = idText.isEmpty() ? UUID.randomUUID().toString() : UUID.fromString(idText).toString();
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("invalid id '" + idText + "'");
+            }
+            
+            String category = field(record, columns[3]).trim();
+            if (category.isEmpty()) {
+                category = categoryRules.categorize(description, CategoryRules.FALLBACK);
+            }
+            
+            String dateText = field(record, columns[4]).trim();
+            Date date = dateText.isEmpty() ? new Date() : parseDate(dateText);
+            return new Expense(id, description, amount, currency, category, date);
+        }
+        
+        private Date parseDate(String text) {
+            TemporalAccessor parsed = dateFormat.parseBest(text, LocalDateTime::from, LocalDate::from);
+            LocalDateTime local = parsed instanceof LocalDate d ? d.atStartOfDay() : (LocalDateTime) parsed;
+            return Date.from(local.atZone(ZoneId.systemDefault()).toInstant());
+        }
+        
+        private String field(List<String> record, int column) {
+            return column >= 0 && column < record.size() ? record.get(column) : "";
+        }
+    }
+    
+    /**
+     * Byte range of the input with an RFC 4180 record reader; quoted fields may hold
+     * commas, doubled quotes and newlines.
+     */
+    private static class Chunk {
+        private final ByteBuffer data;
+        private final int end;
+        private byte[] scratch = new byte[256];
+        int position;
+        long line;
+        
+        Chunk(ByteBuffer data, int start, int end, long line) {
+            this.data = data;
+            this.position = start;
+            this.end = end;
+            this.line = line;
+        }
+        
+        List<String> nextRecord() {
+            if (position >= end) return null;
+            List<String> fields = new ArrayList<>(8);
+            while (true) {
+                int length = 0;
+                boolean quoted = position < end && data.get(position) == '"';
+                if (quoted) position++;
+                while (position < end) {
+                    byte b = data.get(position);
+                    if (quoted) {
+                        if (b == '"') {
+                            if (position + 1 < end && data.get(position + 1) == '"') {
+                                position++;
+                            } else {
+                                quoted = false;
+                                position++;
+                                continue;
+                            }
+                        } else if (b == '\n') {
+                            line++;
+                        }
+                    } else if (b == ',' || b == '\n' || b == '\r') {
+                        break;
+                    }
+                    if (length == scratch.length) scratch = Arrays.copyOf(scratch, length * 2);
+                    scratch[length++] = b;
+                    position++;
+                }
+                fields.add(new String(scratch, 0, length, StandardCharsets.UTF_8));
+                
+                if (position >= end) return fields;
+                byte b = data.get(position++);
+                if (b == '\r' && position < end && data.get(position) == '\n') {
+                    b = data.get(position++);
+                }
+                if (b != ',') {
+                    line++;
+                    return fields;
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Local Calendar - Epoch millis to local calendar fields without allocating
+ *
+ * The zone offset is cached together with the window between the surrounding
+ * transitions, so only rows that cross a DST change go back to {@link ZoneRules}.
+ * Not thread-safe; give each thread its own instance.
+ */
+class LocalCalendar {
+    static final long MILLIS_PER_DAY = 86_400_000L;
+    
+    private final ZoneRules rules;
+    private long offsetFrom = Long.MAX_VALUE;
+    private long offsetUntil = Long.MIN_VALUE;
+    private long offsetMillis;
+    private long cachedDay = Long.MIN_VALUE;
+    private int cachedDate;
+    
+    LocalCalendar(ZoneId zone) {
+        this.rules = zone.getRules();
+    }
+    
+    long localMillis(long epochMillis) {
+        if (epochMillis < offsetFrom || epochMillis >= offsetUntil) {
+            Instant instant = Instant.ofEpochMilli(epochMillis);
+            offsetMillis = rules.getOffset(instant).getTotalSeconds() * 1000L;
+            ZoneOffsetTransition previous = rules.previousTransition(instant.plusMillis(1));
+            ZoneOffsetTransition next = rules.nextTransition(instant);
+            offsetFrom = previous == null ? Long.MIN_VALUE : previous.toEpochSecond() * 1000;
+            offsetUntil = next == null ? Long.MAX_VALUE : next.toEpochSecond() * 1000;
+        }
+        return epochMillis + offsetMillis;
+    }
+    
+    long epochDay(long epochMillis) {
+        return Math.floorDiv(localMillis(epochMillis), MILLIS_PER_DAY);
+    }
+    
+    /** Local date packed as yyyyMMdd. */
+    int date(long epochMillis) {
+        long day = epochDay(epochMillis);
+        if (day != cachedDay) {
+            cachedDate = civilDate(day);
+            cachedDay = day;
+        }
+        return cachedDate;
+    }
+    
+    /** Local month packed as yyyyMM. */
+    int month(long epochMillis) {
+        return date(epochMillis) / 100;
+    }
+    
+    /** Writes {@code yyyy-MM-dd HH:mm:ss} and returns the new position. */
+    int formatDateTime(long epochMillis, byte[] out, int pos) {
+        int date = date(epochMillis);
+        int seconds = (int) (Math.floorMod(localMillis(epochMillis), MILLIS_PER_DAY) / 1000);
+        pos = formatDate(date, out, pos);
+        out[pos++] = ' ';
+        pos = twoDigits(seconds / 3600, out, pos);
+        out[pos++] = ':';
+        pos = twoDigits(seconds / 60 % 60, out, pos);
+        out[pos++] = ':';
+        return twoDigits(seconds % 60, out, pos);
+    }
+    
+    static int formatDate(int date, byte[] out, int pos) {
+        int year = date / 10000;
+        out[pos++] = (byte) ('0' + year / 1000 % 10);
+        out[pos++] = (byte) ('0' + year / 100 % 10);
+        pos = twoDigits(year % 100, out, pos);
+        out[pos++] = '-';
+        pos = twoDigits(date / 100 % 100, out, pos);
+        out[pos++] = '-';
+        return twoDigits(date % 100, out, pos);
+    }
+    
+    private static int twoDigits(int value, byte[] out, int pos) {
+        out[pos++] = (byte) ('0' + value / 10);
+        out[pos++] = (byte) ('0' + value % 10);
+        return pos;
+    }
+    
+    // Days since 1970-01-01 to a proleptic Gregorian yyyyMMdd (Hinnant's civil_from_days)
+    static int civilDate(long epochDay) {
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long day = doy - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        return (int) (year * 10000 + month * 100 + day);
+    }
+}
+
+/**
+ * Exchange Rates - Daily rates into the ledger's base currency, read from a local file
+ *
+ * The rates file has one rate per line, {@code yyyy-MM-dd,currency,rate}, where one unit
+ * of the currency is worth {@code rate} units of the base currency; blank lines, lines
+ * starting with {@code #} and a {@code date,...} header are skipped. Each currency's rates
+ * become a table with one factor per day from its first rate to its last, each day
+ * taking the latest rate on or before it. Days before the first rate use the first and
+ * days after the last use the last, so a conversion is one array lookup and a multiply.
+ *
+ * A factor goes straight from the currency's minor unit to hundredths of the base
+ * currency, the unit of the store's amount column and of every total. Immutable.
+ */
+class ExchangeRates {
+    static final String FILE = "expenses.rates";
+    
+    private final String base;
+    private final double baseFactor;
+    private final Map<String, Table> tables;
+    // Currencies converted at par for want of a rate, warned about once
+    private final Set<String> unrated = ConcurrentHashMap.newKeySet();
+    
+    private static final class Table {
+        final long firstDay;
+        final double[] factors;
+        
+        Table(long firstDay, double[] factors) {
+            this.firstDay = firstDay;
+            this.factors = factors;
+        }
+        
+        double factor(long epochDay) {
+            long day = epochDay - firstDay;
+            return factors[day <= 0 ? 0 : (int) Math.min(day, factors.length - 1)];
+        }
+    }
+    
+    /** Only the base currency, for a ledger without a rates file. */
+    ExchangeRates(String base) {
+        this(base, Map.of());
+    }
+    
+    private ExchangeRates(String base, Map<String, Table> tables) {
+        this.base = base;
+        this.baseFactor = scale(base);
+        this.tables = tables;
+    }
+    
+    /** Reads {@code file}; without one, only the base currency is known. */
+    static ExchangeRates load(Path file, String base) throws IOException {
+        if (!Files.exists(file)) {
+            return new ExchangeRates(base);
+        }
+        Map<String, TreeMap<Long, Double>> rates = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            int number = 0;
+            for (String line; (line = reader.readLine()) != null; ) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#") || (number == 1 && line.toLowerCase(Locale.ROOT).startsWith("date"))) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                try {
+                    if (fields.length != 3) {
+                        throw new IllegalArgumentException("expected date,currency,rate");
+                    }
+                    long day = LocalDate.parse(fields[0].trim()).toEpochDay();
+                    String currency = Currency.getInstance(fields[1].trim().toUpperCase(Locale.ROOT)).getCurrencyCode();
+                    double rate = Double.parseDouble(fields[2].trim());
+                    if (!(rate > 0) || Double.isInfinite(rate)) {
+                        throw new IllegalArgumentException("rate must be positive");
+                    }
+                    if (!currency.equals(base)) {
+                        rates.computeIfAbsent(currency, k -> new TreeMap<>()).put(day, rate);
+                    }
+                } catch (RuntimeException e) {
+                    throw new IOException(file.getFileName() + " line " + number + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        Map<String, Table> tables = new HashMap<>();
+        rates.forEach((currency, byDay) -> {
+            long first = byDay.firstKey();
+            long span = byDay.lastKey() - first + 1;
+            if (span > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Rates for " + currency + " span too many days");
+            }
+            double[] factors = new double[(int) span];
+            double scale = scale(currency);
+            Iterator<Map.Entry<Long, Double>> entries = byDay.entrySet().iterator();
+            Map.Entry<Long, Double> entry = entries.next();
+            for (Map.Entry<Long, Double> next = entries.hasNext() ? entries.next() : null; ; ) {
+                int from = (int) (entry.getKey() - first);
+                int to = next == null ? factors.length : (int) (next.getKey() - first);
+                Arrays.fill(factors, from, to, entry.getValue() * scale);
+                if (next == null) break;
+                entry = next;
+                next = entries.hasNext() ? entries.next() : null;
+            }
+            tables.put(currency, new Table(first, factors));
+        });
+        return new ExchangeRates(base, tables);
+    }
+    
+    String base() {
+        return base;
+    }
+    
+    /** Whether amounts in {@code currency} can be converted. */
+    boolean converts(String currency) {
+        return currency.equals(base) || tables.containsKey(currency);
+    }
+    
+    /** Whether amounts in {@code currency} come out as they are, so a column can be copied. */
+    boolean identity(String currency) {
+        return currency.equals(base) && baseFactor == 1;
+    }
+    
+    /**
+     * {@code amountMinor} of {@code currency} on the given day, in hundredths of the base
+     * currency. A currency with no rate is taken at par, with one warning.
+     */
+    long toBase(long amountMinor, String currency, long epochDay) {
+        if (currency.equals(base)) {
+            return baseFactor == 1 ? amountMinor : Math.round(amountMinor * baseFactor);
+        }
+        Table table = tables.get(currency);
+        if (table == null) {
+            if (unrated.add(currency)) {
+                System.out.println("⚠️  No exchange rate for " + currency + " in " + FILE + "; counting it at par with "
+                    + base + ".");
+            }
+            return Math.round(amountMinor * scale(currency));
+        }
+        return Math.round(amountMinor * table.factor(epochDay));
+    }
+    
+    /**
+     * A CRC of the base currency and of the factors {@code currencies} use over the days
+     * [fromDay, toDay]. Totals worked out for those days are still right as long as it
+     * doesn't change.
+     */
+    long checksum(Collection<String> currencies, long fromDay, long toDay) {
+        CRC32C crc = new CRC32C();
+        crc.update(base.getBytes(StandardCharsets.US_ASCII));
+        ByteBuffer factor = ByteBuffer.allocate(8);
+        for (String currency : new TreeSet<>(currencies)) {
+            if (currency.equals(base)) continue;
+            crc.update(currency.getBytes(StandardCharsets.US_ASCII));
+            Table table = tables.get(currency);
+            if (table == null) continue;
+            // Past the table's ends every day has the same factor, so one stands for them all
+            long low = table.firstDay - 1;
+            long high = table.firstDay + table.factors.length;
+            long to = Math.max(low, Math.min(toDay, high));
+            for (long day = Math.max(low, Math.min(fromDay, high)); day <= to; day++) {
+                crc.update(factor.putDouble(0, table.factor(day)).array());
+            }
+        }
+        return crc.getValue();
+    }
+    
+    // Minor units of `currency` to hundredths of a unit
+    private static double scale(String currency) {
+        return Math.pow(10, 2 - Expense.fractionDigits(currency));
+    }
+}
+
+/**
+ * Budget Tracker - Spending limits per category and period, checked as expenses arrive
+ *
+ * A budget caps one category, or all of them ({@code *}), per day, week, month or year,
+ * and alerts at percentages of its limit. Spending is kept in one running counter per
+ * budget and period: the counter is primed with a range total the first time its
+ * period is touched, and from then on each add and delete moves it by the row's
+ * amount, so checking an expense is a counter update per budget that applies. A counter
+ * moving up past a threshold raises an {@link Alert}; priming never does.
+ *
+ * Definitions live in {@code expenses.budgets} next to the ledger, one per line as
+ * {@code category,period,limit,thresholds}, the limit in the base currency and the
+ * thresholds separated by {@code ;}. Amounts are in hundredths of the base currency.
+ *
+ * Updates must be serialized by the caller, and reads must not overlap them.
+ */
+class BudgetTracker {
+    static final String FILE = "expenses.budgets";
+    static final String ALL = "*";
+    static final int[] DEFAULT_THRESHOLDS = { 80, 100 };
+    
+    private final Path file;
+    private final String currency;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final LocalCalendar calendar = new LocalCalendar(zone);
+    private final List<Budget> budgets = new ArrayList<>();
+    private final List<Budget> overall = new ArrayList<>();
+    private final Map<String, List<Budget>> byCategory = new HashMap<>();
+    
+    interface Listener {
+        void crossed(Alert alert);
+    }
+    
+    static final class Budget {
+        final String category;
+        final Rollup period;
+        final long limitCents;
+        final int[] thresholds;     // ascending percentages of the limit
+        // Spending per period, by the period's key; the last one used is kept at hand
+        private final Map<Long, Window> windows = new HashMap<>();
+        private Window last;
+        
+        Budget(String category, Rollup period, long limitCents, int[] thresholds) {
+            this.category = category;
+            this.period = period;
+            this.limitCents = limitCents;
+            this.thresholds = thresholds;
+        }
+        
+        // Thresholds that `cents` reaches
+        int level(long cents) {
+            int level = 0;
+            while (level < thresholds.length && cents * 100 >= limitCents * thresholds[level]) {
+                level++;
+            }
+            return level;
+        }
+    }
+    
+    /** One budget's spending in one period, [fromMillis, toMillis). */
+    static final class Window {
+        final Budget budget;
+        final long key;
+        final LocalDate start;
+        final long fromMillis;
+        final long toMillis;
+        long cents;
+        int level;
+        boolean primed;
+        
+        Window(Budget budget, long key, LocalDate start, ZoneId zone) {
+            this.budget = budget;
+            this.key = key;
+            this.start = start;
+            this.fromMillis = start.atStartOfDay(zone).toInstant().toEpochMilli();
+            this.toMillis = budget.period.next(start).atStartOfDay(zone).toInstant().toEpochMilli();
+        }
+    }
+    
+    /** A budget and what has been spent in one of its periods. */
+    static final class Status {
+        final String category;
+        final Rollup period;
+        final LocalDate start;
+        final long limitCents;
+        final long spentCents;
+        final int[] thresholds;
+        
+        Status(Window window) {
+            this.category = window.budget.category;
+            this.period = window.budget.period;
+            this.start = window.start;
+            this.limitCents = window.budget.limitCents;
+            this.spentCents = window.cents;
+            this.thresholds = window.budget.thresholds;
+        }
+    }
+    
+    /** A budget's spending reaching one of its thresholds. */
+    static final class Alert {
+        final String category;
+        final Rollup period;
+        final LocalDate start;
+        final int threshold;
+        final long limitCents;
+        final long spentCents;
+        final String currency;
+        
+        Alert(Window window, int threshold, String currency) {
+            this.category = window.budget.category;
+            this.period = window.budget.period;
+            this.start = window.start;
+            this.threshold = threshold;
+            this.limitCents = window.budget.limitCents;
+            this.spentCents = window.cents;
+            this.currency = currency;
+        }
+        
+        @Override
+        public String toString() {
+            String symbol = Currency.getInstance(currency).getSymbol(Locale.US);
+            return String.format("%s %s budget from %s: %d%% reached (%s%.2f of %s%.2f)",
+                category.equals(ALL) ? "Overall" : category, period.name().toLowerCase(Locale.ROOT), start,
+                threshold, symbol, spentCents / 100.0, symbol, limitCents / 100.0);
+        }
+    }
+    
+    private BudgetTracker(Path file, String currency) {
+        this.file = file;
+        this.currency = currency;
+    }
+    
+    /** Reads the budgets in {@code file}; without one there are none. */
+    static BudgetTracker load(Path file, String currency) throws IOException {
+        BudgetTracker tracker = new BudgetTracker(file, currency);
+        if (!Files.exists(file)) {
+            return tracker;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            int number = 0;
+            for (String line; (line = reader.readLine()) != null; ) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] fields = line.split(",");
+                try {
+                    if (fields.length != 4) {
+                        throw new IllegalArgumentException("expected category,period,limit,thresholds");
+                    }
+                    tracker.define(fields[0].trim(), parsePeriod(fields[1]),
+                        parseLimit(fields[2]), parseThresholds(fields[3].replace(';', ',')));
+                } catch (RuntimeException e) {
+                    throw new IOException(file.getFileName() + " line " + number + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        return tracker;
+    }
+    
+    static Rollup parsePeriod(String text) {
+        return Rollup.valueOf(text.trim().toUpperCase(Locale.ROOT));
+    }
+    
+    /** A limit in the base currency, as hundredths. */
+    static long parseLimit(String text) {
+        long cents = new BigDecimal(text.trim()).movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact();
+        if (cents <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        return cents;
+    }
+    
+    /** Percentages such as {@code 50,80,100}, sorted. */
+    static int[] parseThresholds(String text) {
+        int[] thresholds = Arrays.stream(text.split(",")).map(String::trim).mapToInt(Integer::parseInt)
+            .sorted().distinct().toArray();
+        if (thresholds.length == 0 || thresholds[0] <= 0) {
+            throw new IllegalArgumentException("thresholds must be positive percentages");
+        }
+        return thresholds;
+    }
+    
+    boolean isEmpty() {
+        return budgets.isEmpty();
+    }
+    
+    List<Budget> budgets() {
+        return Collections.unmodifiableList(budgets);
+    }
+    
+    /** Adds or replaces the budget for a category and period; its counters start over. */
+    void define(String category, Rollup period, long limitCents, int[] thresholds) {
+        if (category.isBlank() || category.contains(",") || category.contains("\n")) {
+            throw new IllegalArgumentException("Budget categories can't be blank or contain commas");
+        }
+        remove(category, period);
+        Budget budget = new Budget(category, period, limitCents, thresholds);
+        budgets.add(budget);
+        if (category.equals(ALL)) {
+            overall.add(budget);
+        } else {
+            byCategory.computeIfAbsent(category, k -> new ArrayList<>()).add(budget);
+        }
+    }
+    
+    boolean remove(String category, Rollup period) {
+        Predicate<Budget> same = budget -> budget.category.equals(category) && budget.period == period;
+        overall.removeIf(same);
+        List<Budget> list = byCategory.get(category);
+        if (list != null && list.removeIf(same) && list.isEmpty()) {
+            byCategory.remove(category);
+        }
+        return budgets.removeIf(same);
+    }
+    
+    /** Writes the definitions back to the budgets file, replacing it in one step. */
+    void save() throws IOException {
+        StringBuilder text = new StringBuilder("# category,period,limit,thresholds\n");
+        for (Budget budget : budgets) {
+            text.append(budget.category).append(',').append(budget.period.name().toLowerCase(Locale.ROOT))
+                .append(',').append(BigDecimal.valueOf(budget.limitCents, 2).toPlainString()).append(',');
+            for (int i = 0; i < budget.thresholds.length; i++) {
+                text.append(i == 0 ? "" : ";").append(budget.thresholds[i]);
+            }
+            text.append('\n');
+        }
+        LedgerFile.replace(file, ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    /**
+     * Adds the windows an expense in {@code category} at {@code epochMillis} counts
+     * towards that haven't been primed yet. Prime them before the expense is counted.
+     */
+    void unprimed(String category, long epochMillis, Set<Window> unprimed) {
+        collectUnprimed(overall, epochMillis, unprimed);
+        List<Budget> applicable = byCategory.get(category);
+        if (applicable != null) {
+            collectUnprimed(applicable, epochMillis, unprimed);
+        }
+    }
+    
+    private void collectUnprimed(List<Budget> applicable, long epochMillis, Set<Window> unprimed) {
+        for (Budget budget : applicable) {
+            Window window = window(budget, epochMillis);
+            if (!window.primed) unprimed.add(window);
+        }
+    }
+    
+    /** Sets a window's spending so far, without raising alerts. */
+    void prime(Window window, long cents) {
+        window.cents = cents;
+        window.level = window.budget.level(cents);
+        window.primed = true;
+    }
+    
+    /** Counts an added expense, adding an alert for each threshold it takes a budget past. */
+    void add(String category, long epochMillis, long cents, List<Alert> alerts) {
+        count(overall, epochMillis, cents, alerts);
+        List<Budget> applicable = byCategory.get(category);
+        if (applicable != null) {
+            count(applicable, epochMillis, cents, alerts);
+        }
+    }
+    
+    /** Takes a deleted expense off; a budget dropping below a threshold can raise it again. */
+    void remove(String category, long epochMillis, long cents) {
+        count(overall, epochMillis, -cents, null);
+        List<Budget> applicable = byCategory.get(category);
+        if (applicable != null) {
+            count(applicable, epochMillis, -cents, null);
+        }
+    }
+    
+    private void count(List<Budget> applicable, long epochMillis, long cents, List<Alert> alerts) {
+        for (int i = 0; i < applicable.size(); i++) {
+            Window window = window(applicable.get(i), epochMillis);
+            // Unprimed windows are worked out from the rows when they are first needed
+            if (!window.primed) continue;
+            window.cents += cents;
+            int level = window.budget.level(window.cents);
+            if (alerts != null) {
+                for (int passed = window.level; passed < level; passed++) {
+                    alerts.add(new Alert(window, window.budget.thresholds[passed], currency));
+                }
+            }
+            window.level = level;
+        }
+    }
+    
+    /** The window holding {@code epochMillis}, created unprimed if it's new. */
+    Window window(Budget budget, long epochMillis) {
+        long key = switch (budget.period) {
+            case DAY -> calendar.epochDay(epochMillis);
+            case WEEK -> {
+                // 1970-01-01 was a Thursday; weeks start on Monday
+                long day = calendar.epochDay(epochMillis);
+                yield day - Math.floorMod(day + 3, 7);
+            }
+            case MONTH -> calendar.month(epochMillis);
+            case YEAR -> calendar.date(epochMillis) / 10000;
+        };
+        Window last = budget.last;
+        if (last != null && last.key == key) {
+            return last;
+        }
+        Window window = budget.windows.computeIfAbsent(key, k -> new Window(budget, k, start(budget.period, k), zone));
+        budget.last = window;
+        return window;
+    }
+    
+    private static LocalDate start(Rollup period, long key) {
+        return switch (period) {
+            case DAY, WEEK -> LocalDate.ofEpochDay(key);
+            case MONTH -> LocalDate.of((int) (key / 100), (int) (key % 100), 1);
+            case YEAR -> LocalDate.of((int) key, 1, 1);
+        };
+    }
+}
+
+/**
+ * Recurring Expenses - Rules that add an expense on a schedule, materialized in batches
+ *
+ * A rule repeats daily, weekly, monthly or yearly from its start, or follows a
+ * five-field cron expression ({@code minute hour day-of-month month day-of-week},
+ * with {@code *}, lists, ranges and {@code /step}). Monthly and yearly rules count from
+ * the start each time, so one on the 31st lands on the last day of shorter months.
+ *
+ * {@link #due} works out every occurrence since a rule was last materialized, up to
+ * now, so a ledger left alone for a year catches up in one batch. Each occurrence gets
+ * an id derived from its rule and time: if the batch was committed but the rules file
+ * wasn't saved, running again produces the same ids, and the ledger skips them.
+ *
+ * Rules live in {@code expenses.recurring} next to the ledger, one per line as
+ * {@code id,schedule,start,end,through,amount,currency,category,description}, with the
+ * commas of a cron list written as {@code ;}. Times are local, {@code through} is the epoch millisecond materialized up to and {@code -}
+ * leaves an end or watermark unset. Not thread-safe; callers serialize access.
+ */
+class RecurringExpenses {
+    static final String FILE = "expenses.recurring";
+    private static final DateTimeFormatter START = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm");
+    
+    private final Path file;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final Map<String, Rule> rules = new LinkedHashMap<>();
+    
+    static final class Rule {
+        final String id;
+        final String description;
+        final long amountMinor;
+        final String currency;
+        final String category;
+        final Schedule schedule;
+        final LocalDateTime start;
+        final LocalDate end;            // last day included; null runs forever
+        long through = Long.MIN_VALUE;  // occurrences up to here are in the ledger
+        
+        Rule(String id, String description, long amountMinor, String currency, String category,
+             Schedule schedule, LocalDateTime start, LocalDate end) {
+            this.id = id;
+            this.description = description;
+            this.amountMinor = amountMinor;
+            this.currency = currency;
+            this.category = category;
+            this.schedule = schedule;
+            this.start = start;
+            this.end = end;
+        }
+    }
+    
+    /** When a rule falls due. */
+    abstract static class Schedule {
+        /** Reads {@code daily}, {@code weekly}, {@code monthly}, {@code yearly} or a cron expression. */
+        static Schedule parse(String text) {
+            String trimmed = text.trim();
+            return switch (trimmed.toLowerCase(Locale.ROOT)) {
+                case "daily" -> new Every(ChronoUnit.DAYS, trimmed);
+                case "weekly" -> new Every(ChronoUnit.WEEKS, trimmed);
+                case "monthly" -> new Every(ChronoUnit.MONTHS, trimmed);
+                case "yearly" -> new Every(ChronoUnit.YEARS, trimmed);
+                default -> new Cron(trimmed);
+            };
+        }
+        
+        /** Calls {@code action} for each occurrence at or after {@code start} in (after, until], in order. */
+        abstract void occurrences(LocalDateTime start, LocalDateTime after, LocalDateTime until,
+                                  Consumer<LocalDateTime> action);
+    }
+    
+    private static final class Every extends Schedule {
+        private final ChronoUnit unit;
+        private final String text;
+        
+        Every(ChronoUnit unit, String text) {
+            this.unit = unit;
+            this.text = text.toLowerCase(Locale.ROOT);
+        }
+        
+        @Override
+        void occurrences(LocalDateTime start, LocalDateTime after, LocalDateTime until,
+                         Consumer<LocalDateTime> action) {
+            // Straight to the last occurrence before `after`, then step from the start
+            long n = after.isBefore(start) ? 0 : Math.max(0, unit.between(start, after) - 1);
+            for (LocalDateTime time = start.plus(n, unit); !time.isAfter(until); time = start.plus(++n, unit)) {
+                if (time.isAfter(after)) action.accept(time);
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+    
+    // Cron fields as bit sets; a day matches on day-of-month or day-of-week when both are restricted
+    private static final class Cron extends Schedule {
+        private final String text;
+        private final long minutes;
+        private final long hours;
+        private final long daysOfMonth;
+        private final long months;
+        private final long daysOfWeek;      // bit 0 is Sunday, as is 7
+        private final boolean anyDayOfMonth;
+        private final boolean anyDayOfWeek;
+        
+        Cron(String text) {
+            String[] fields = text.split("\\s+");
+            if (fields.length != 5) {
+                throw new IllegalArgumentException("Expected daily, weekly, monthly, yearly or a cron expression"
+                    + " (minute hour day month weekday) but got: " + text);
+            }
+            this.text = text;
+            minutes = field(fields[0], 0, 59);
+            hours = field(fields[1], 0, 23);
+            daysOfMonth = field(fields[2], 1, 31);
+            months = field(fields[3], 1, 12);
+            long weekdays = field(fields[4], 0, 7);
+            daysOfWeek = (weekdays | weekdays >>> 7) & 0x7F;
+            anyDayOfMonth = fields[2].equals("*");
+            anyDayOfWeek = fields[4].equals("*");
+        }
+        
+        private static long field(String text, int min, int max) {
+            long bits = 0;
+            for (String part : text.split(",")) {
+                String[] stepped = part.split("/", 2);
+                int step = stepped.length == 2 ? Integer.parseInt(stepped[1]) : 1;
+                int from;
+                int to;
+                if (stepped[0].equals("*")) {
+                    from = min;
+                    to = max;
+                } else {
+                    String[] range = stepped[0].split("-", 2);
+                    from = Integer.parseInt(range[0]);
+                    to = range.length == 2 ? Integer.parseInt(range[1]) : stepped.length == 2 ? max : from;
+                }
+                if (from < min || to > max || from > to || step < 1) {
+                    throw new IllegalArgumentException("Cron field out of range: " + text);
+                }
+                for (int value = from; value <= to; value += step) {
+                    bits |= 1L << value;
+                }
+            }
+            return bits;
+        }
+        
+        private boolean matches(LocalDate date) {
+            if ((months & 1L << date.getMonthValue()) == 0) return false;
+            boolean dayOfMonth = (daysOfMonth & 1L << date.getDayOfMonth()) != 0;
+            boolean dayOfWeek = (daysOfWeek & 1L << (date.getDayOfWeek().getValue() % 7)) != 0;
+            if (anyDayOfMonth || anyDayOfWeek) return dayOfMonth && dayOfWeek;
+            return dayOfMonth || dayOfWeek;
+        }
+        
+        @Override
+        void occurrences(LocalDateTime start, LocalDateTime after, LocalDateTime until,
+                         Consumer<LocalDateTime> action) {
+            LocalDateTime from = after.isBefore(start) ? start.minusNanos(1) : after;
+            for (LocalDate date = from.toLocalDate(); !date.isAfter(until.toLocalDate()); date = date.plusDays(1)) {
+                if (!matches(date)) continue;
+                for (long h = hours; h != 0; h &= h - 1) {
+                    for (long m = minutes; m != 0; m &= m - 1) {
+                        LocalDateTime time = date.atTime(Long.numberOfTrailingZeros(h), Long.numberOfTrailingZeros(m));
+                        if (time.isAfter(from) && !time.isAfter(until)) action.accept(time);
+                    }
+                }
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+    
+    private RecurringExpenses(Path file) {
+        this.file = file;
+    }
+    
+    /** Reads the rules in {@code file}; without one there are none. */
+    static RecurringExpenses load(Path file) throws IOException {
+        RecurringExpenses recurring = new RecurringExpenses(file);
+        if (!Files.exists(file)) {
+            return recurring;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            int number = 0;
+            for (String line; (line = reader.readLine()) != null; ) {
+                number++;
+                if (line.isBlank() || line.startsWith("#")) continue;
+                String[] fields = line.split(",", 9);
+                try {
+                    if (fields.length != 9) {
+                        throw new IllegalArgumentException(
+                            "expected id,schedule,start,end,through,amount,currency,category,description");
+                    }
+                    String currency = fields[6].trim();
+                    Rule rule = new Rule(fields[0].trim(), fields[8],
+                        Expense.minorUnits(new BigDecimal(fields[5].trim()), currency), currency, fields[7].trim(),
+                        Schedule.parse(fields[1].replace(';', ',')), LocalDateTime.parse(fields[2].trim(), START),
+                        fields[3].trim().equals("-") ? null : LocalDate.parse(fields[3].trim()));
+                    rule.through = fields[4].trim().equals("-") ? Long.MIN_VALUE : Long.parseLong(fields[4].trim());
+                    recurring.rules.put(rule.id, rule);
+                } catch (RuntimeException e) {
+                    throw new IOException(file.getFileName() + " line " + number + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        return recurring;
+    }
+    
+    /** Writes the rules and their watermarks back to the file, replacing it in one step. */
+    void save() throws IOException {
+        StringBuilder text = new StringBuilder("# id,schedule,start,end,through,amount,currency,category,description\n");
+        for (Rule rule : rules.values()) {
+            text.append(rule.id).append(',').append(rule.schedule.toString().replace(',', ';')).append(',').append(START.format(rule.start))
+                .append(',').append(rule.end == null ? "-" : rule.end.toString())
+                .append(',').append(rule.through == Long.MIN_VALUE ? "-" : Long.toString(rule.through))
+                .append(',').append(BigDecimal.valueOf(rule.amountMinor, Expense.fractionDigits(rule.currency)).toPlainString())
+                .append(',').append(rule.currency).append(',').append(rule.category)
+                .append(',').append(rule.description).append('\n');
+        }
+        LedgerFile.replace(file, ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    boolean isEmpty() {
+        return rules.isEmpty();
+    }
+    
+    Collection<Rule> rules() {
+        return Collections.unmodifiableCollection(rules.values());
+    }
+    
+    /** Adds a rule under a new short id, which is returned. */
+    String add(String description, long amountMinor, String currency, String category, Schedule schedule,
+               LocalDateTime start, LocalDate end) {
+        if (description.contains("\n") || category.contains(",")) {
+            throw new IllegalArgumentException("Category can't contain commas, nor description line breaks");
+        }
+        String id;
+        do {
+            id = UUID.randomUUID().toString().substring(0, 8);
+        } while (rules.containsKey(id));
+        rules.put(id, new Rule(id, description, amountMinor, currency, category, schedule, start, end));
+        return id;
+    }
+    
+    boolean remove(String id) {
+        return rules.remove(id) != null;
+    }
+    
+    /**
+     * Every occurrence after each rule's watermark up to {@code nowMillis}, oldest first
+     * within a rule, for the rules whose currency is {@code rated}. Call {@link #advance}
+     * with the same test once they are committed.
+     */
+    List<Expense> due(long nowMillis, Predicate<String> rated) {
+        LocalDateTime now = LocalDateTime.ofInstant(Instant.ofEpochMilli(nowMillis), zone);
+        List<Expense> due = new ArrayList<>();
+        for (Rule rule : rules.values()) {
+            if (!rated.test(rule.currency)) continue;
+            LocalDateTime after = rule.through == Long.MIN_VALUE ? rule.start.minusNanos(1)
+                : LocalDateTime.ofInstant(Instant.ofEpochMilli(rule.through), zone);
+            LocalDateTime until = rule.end != null && rule.end.atTime(LocalTime.MAX).isBefore(now)
+                ? rule.end.atTime(LocalTime.MAX) : now;
+            String prefix = rule.id + "@";
+            rule.schedule.occurrences(rule.start, after, until, time -> {
+                long millis = time.atZone(zone).toInstant().toEpochMilli();
+                String id = UUID.nameUUIDFromBytes((prefix + millis).getBytes(StandardCharsets.UTF_8)).toString();
+                due.add(new Expense(id, rule.description, rule.amountMinor, rule.currency, rule.category, new Date(millis)));
+            });
+        }
+        return due;
+    }
+    
+    /**
+     * Marks everything up to {@code nowMillis} as materialized for the rules whose currency
+     * is {@code rated}. The others keep their watermark and catch up once it has a rate.
+     */
+    void advance(long nowMillis, Predicate<String> rated) {
+        for (Rule rule : rules.values()) {
+            if (rated.test(rule.currency)) rule.through = Math.max(rule.through, nowMillis);
+        }
+    }
+    
+    /** The rules whose currency is not {@code rated}, in the order they were added. */
+    List<Rule> waiting(Predicate<String> rated) {
+        List<Rule> waiting = new ArrayList<>();
+        for (Rule rule : rules.values()) {
+            if (!rated.test(rule.currency)) waiting.add(rule);
+        }
+        return waiting;
+    }
+}
+
+/**
+ * Category Rules - Picks a category for an expense from its description
+ *
+ * Rules are tried in order and the first that matches wins. A keyword rule matches a
+ * whole word or phrase anywhere in the description, a prefix rule matches its start
+ * (merchant names such as "AMZN Mktp"), and a regex rule matches anywhere, as
+ * {@link Matcher#find} does. All three ignore case, accented letters included.
+ *
+ * Keywords and prefixes compile into one Aho-Corasick automaton with every failure link
+ * resolved into a flat transition table, so one pass over the description, a table
+ * lookup per character, finds every one of them that occurs however many there are.
+ * Each state lists the rules ending there in rule order, so the first that passes its
+ * boundary check is the best at that position. Regex rules are compiled one by one, as
+ * they are added, and only the ones before the best automaton match are tried, in order.
+ *
+ * Rules live in {@code expenses.categories} next to the ledger, one per line as
+ * {@code kind,category,pattern}. Immutable, so one instance serves any number of threads.
+ */
+class CategoryRules {
+    static final String FILE = "expenses.categories";
+    static final String FALLBACK = "Other";
+    static final CategoryRules NONE = new CategoryRules(List.of());
+    
+    enum Kind { KEYWORD, PREFIX, REGEX }
+    
+    static final class Rule {
+        final Kind kind;
+        final String category;
+        final String pattern;
+        final Pattern regex;    // null unless kind is REGEX
+        
+        /** @throws PatternSyntaxException if a regex rule's pattern doesn't compile */
+        Rule(Kind kind, String category, String pattern) {
+            if (category.isBlank() || category.contains(",") || pattern.isEmpty()) {
+                throw new IllegalArgumentException("Rules need a pattern and a category without commas");
+            }
+            this.kind = kind;
+            this.category = category;
+            this.pattern = pattern;
+            this.regex = kind == Kind.REGEX
+                ? Pattern.compile(pattern, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE) : null;
+        }
+    }
+    
+    private final List<Rule> rules;
+    // Automaton: state * width + symbol -> state, where symbol 0 stands for every character no pattern uses
+    private final int[] symbols;
+    private final int width;
+    private final int[] next;
+    // Rules ending in each state, in rule order: outputs[outputStart[state] .. outputStart[state + 1])
+    private final int[] outputStart;
+    private final int[] outputs;
+    private final int[] lengths;
+    private final boolean[] prefix;
+    // Regex rules in rule order
+    private final int[] regexRules;
+    private final Pattern[] regexes;
+    
+    CategoryRules(List<Rule> rules) {
+        this.rules = List.copyOf(rules);
+        int n = this.rules.size();
+        lengths = new int[n];
+        prefix = new boolean[n];
+        
+        // Alphabet of the characters the patterns use
+        int maxChar = 0;
+        int totalLength = 0;
+        for (Rule rule : this.rules) {
+            if (rule.kind == Kind.REGEX) continue;
+            for (int i = 0; i < rule.pattern.length(); i++) {
+                maxChar = Math.max(maxChar, lower(rule.pattern.charAt(i)));
+            }
+            totalLength += rule.pattern.length();
+        }
+        symbols = new int[maxChar + 1];
+        int alphabet = 0;
+        for (Rule rule : this.rules) {
+            if (rule.kind == Kind.REGEX) continue;
+            for (int i = 0; i < rule.pattern.length(); i++) {
+                char c = lower(rule.pattern.charAt(i));
+                if (symbols[c] == 0) symbols[c] = ++alphabet;
+            }
+        }
+        width = alphabet + 1;
+        
+        // Trie, with -1 for a missing edge
+        int[] trie = new int[(totalLength + 1) * width];
+        Arrays.fill(trie, -1);
+        List<IntList> ending = new ArrayList<>();
+        ending.add(new IntList());
+        int states = 1;
+        List<Integer> regexIndexes = new ArrayList<>();
+        for (int r = 0; r < n; r++) {
+            Rule rule = this.rules.get(r);
+            if (rule.kind == Kind.REGEX) {
+                regexIndexes.add(r);
+                continue;
+            }
+            int state = 0;
+            for (int i = 0; i < rule.pattern.length(); i++) {
+                int edge = state * width + symbols[lower(rule.pattern.charAt(i))];
+                if (trie[edge] < 0) {
+                    trie[edge] = states++;
+                    ending.add(new IntList());
+                }
+                state = trie[edge];
+            }
+            ending.get(state).add(r);
+            lengths[r] = rule.pattern.length();
+            prefix[r] = rule.kind == Kind.PREFIX;
+        }
+        
+        // Breadth first, so a state's failure target is finished before the state
+        next = Arrays.copyOf(trie, states * width);
+        int[] fail = new int[states];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for (int symbol = 0; symbol < width; symbol++) {
+            if (next[symbol] < 0) {
+                next[symbol] = 0;
+            } else {
+                queue[tail++] = next[symbol];
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            if (state != 0 && fail[state] != 0) {
+                ending.get(state).addAll(ending.get(fail[state]));
+            }
+            ending.get(state).sortDistinct();
+            for (int symbol = 0; symbol < width; symbol++) {
+                int edge = state * width + symbol;
+                if (next[edge] < 0) {
+                    next[edge] = next[fail[state] * width + symbol];
+                } else {
+                    fail[next[edge]] = next[fail[state] * width + symbol];
+                    queue[tail++] = next[edge];
+                }
+            }
+        }
+        outputStart = new int[states + 1];
+        for (int state = 0; state < states; state++) {
+            outputStart[state + 1] = outputStart[state] + ending.get(state).size();
+        }
+        outputs = new int[outputStart[states]];
+        for (int state = 0; state < states; state++) {
+            IntList list = ending.get(state);
+            for (int i = 0; i < list.size(); i++) {
+                outputs[outputStart[state] + i] = list.get(i);
+            }
+        }
+        
+        regexRules = regexIndexes.stream().mapToInt(Integer::intValue).toArray();
+        regexes = new Pattern[regexRules.length];
+        for (int i = 0; i < regexRules.length; i++) {
+            regexes[i] = this.rules.get(regexRules[i]).regex;
+        }
+    }
+    
+    /** Reads the rules in {@code file}; without one there are none. */
+    static CategoryRules load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return NONE;
+        }
+        List<Rule> rules = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            int number = 0;
+            for (String line; (line = reader.readLine()) != null; ) {
+                number++;
+                if (line.isBlank() || line.startsWith("#")) continue;
+                String[] fields = line.split(",", 3);
+                try {
+                    if (fields.length != 3) {
+                        throw new IllegalArgumentException("expected kind,category,pattern");
+                    }
+                    rules.add(new Rule(Kind.valueOf(fields[0].trim().toUpperCase(Locale.ROOT)), fields[1].trim(), fields[2]));
+                } catch (RuntimeException e) {
+                    throw new IOException(file.getFileName() + " line " + number + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        return new CategoryRules(rules);
+    }
+    
+    /** Writes the rules to {@code file}, replacing it in one step. */
+    void save(Path file) throws IOException {
+        StringBuilder text = new StringBuilder("# kind,category,pattern\n");
+        for (Rule rule : rules) {
+            text.append(rule.kind.name().toLowerCase(Locale.ROOT)).append(',').append(rule.category)
+                .append(',').append(rule.pattern).append('\n');
+        }
+        LedgerFile.replace(file, ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    List<Rule> rules() {
+        return rules;
+    }
+    
+    /** A copy with {@code rule} added last. */
+    CategoryRules with(Rule rule) {
+        List<Rule> more = new ArrayList<>(rules);
+        more.add(rule);
+        return new CategoryRules(more);
+    }
+    
+    /** A copy without the rule at {@code index}. */
+    CategoryRules without(int index) {
+        List<Rule> fewer = new ArrayList<>(rules);
+        fewer.remove(index);
+        return new CategoryRules(fewer);
+    }
+    
+    /** The category of the first rule matching {@code description}, or {@code fallback}. */
+    String categorize(String description, String fallback) {
+        int best = match(description);
+        return best < 0 ? fallback : rules.get(best).category;
+    }
+    
+    /** Index of the first rule matching {@code description}, or -1. */
+    int match(String description) {
+        int best = Integer.MAX_VALUE;
+        int state = 0;
+        int length = description.length();
+        for (int i = 0; i < length && best > 0; i++) {
+            char c = lower(description.charAt(i));
+            state = next[state * width + (c < symbols.length ? symbols[c] : 0)];
+            for (int o = outputStart[state], end = outputStart[state + 1]; o < end; o++) {
+                int rule = outputs[o];
+                if (rule >= best) break;
+                int start = i - lengths[rule] + 1;
+                if (prefix[rule] ? start == 0 : isWordStart(description, start) && isWordEnd(description, i)) {
+                    best = rule;
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < regexRules.length && regexRules[i] < best; i++) {
+            if (regexes[i].matcher(description).find()) {
+                best = regexRules[i];
+            }
+        }
+        return best == Integer.MAX_VALUE ? -1 : best;
+    }
+    
+    private static boolean isWordStart(String text, int start) {
+        return start == 0 || !Character.isLetterOrDigit(text.charAt(start - 1))
+            || !Character.isLetterOrDigit(text.charAt(start));
+    }
+    
+    private static boolean isWordEnd(String text, int end) {
+        return end == text.length() - 1 || !Character.isLetterOrDigit(text.charAt(end + 1))
+            || !Character.isLetterOrDigit(text.charAt(end));
+    }
+    
+    private static char lower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + 32) : c < 0x80 ? c : Character.toLowerCase(c);
+    }
+}
+
+/**
+ * Ledger File - Versioned columnar snapshot of the expense store
+ *
+ * Layout: a fixed header followed by 8-byte aligned columns (amount in cents, epoch
+ * millis, id high/low bits, description index, category ordinal) and the description
+ * and category dictionaries. The file is memory-mapped on open and its columns are
+ * bulk-copied into an {@link ExpenseStore} without building per-row objects.
+ *
+ * Since version 2 the header also records the file length and a CRC32C of the rest of
+ * the header and everything after it, so a damaged snapshot is refused on open rather
+ * than loaded. Version 1 files are still read, unchecked.
+ *
+ * Version 3 adds each row's amount as entered, in minor units, after the id columns
+ * and its currency ordinal after the category, with a currency dictionary at the end.
+ * Older files are read as US dollars.
+ *
+ * Version 4 widens the category and currency ordinals from one byte to four, so a
+ * ledger is no longer limited to 256 of either. Older files are widened on load.
+ *
+ * The same format holds the whole ledger (the single-file layout from before segments)
+ * or just the rows of one {@link LedgerSegments} period.
+ */
+class LedgerFile {
+    static final int MAGIC = 0x4558504C; // "EXPL"
+    static final int VERSION = 4;
+    private static final int HEADER_SIZE = 64;
+    private static final int LENGTH_OFFSET = 24;
+    private static final int CHECKSUM_OFFSET = 32;
+    
+    private final MappedByteBuffer buffer;
+    private final int rows;
+    private final Dictionary descriptions;
+    private final Dictionary categories;
+    private final Dictionary currencies; // null before version 3
+    private final int ordinalWidth;
+    
+    private LedgerFile(MappedByteBuffer buffer, boolean verify) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an expense ledger file");
+        }
+        int version = buffer.getInt(4);
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported ledger version " + version);
+        }
+        if (version >= 2 && verify) {
+            if (buffer.getLong(LENGTH_OFFSET) != buffer.capacity()) {
+                throw new IOException("Ledger file is truncated");
+            }
+            if (checksum(buffer) != buffer.getInt(CHECKSUM_OFFSET)) {
+                throw new IOException("Ledger file is damaged (checksum mismatch)");
+            }
+        }
+        rows = buffer.getInt(8);
+        descriptions = new Dictionary(buffer, buffer.getInt(12));
+        categories = new Dictionary(buffer, buffer.getInt(16));
+        currencies = version >= 3 ? new Dictionary(buffer, buffer.getInt(20)) : null;
+        ordinalWidth = version >= 4 ? 4 : 1;
+    }
+    
+    static LedgerFile open(Path path) throws IOException {
+        return open(path, true);
+    }
+    
+    /** Without {@code verify} the checksum is skipped, for a quick look at the columns. */
+    static LedgerFile open(Path path, boolean verify) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new LedgerFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), verify);
+        }
+    }
+    
+    int rows() { return rows; }
+    
+    /** Appends the rows to {@code store} and returns the first of them. */
+    int loadInto(ExpenseStore store) {
+        int offset = HEADER_SIZE;
+        ByteBuffer cents = column(offset);
+        ByteBuffer millis = column(offset += 8 * rows);
+        ByteBuffer high = column(offset += 8 * rows);
+        ByteBuffer low = column(offset += 8 * rows);
+        ByteBuffer amount = currencies == null ? null : column(offset += 8 * rows);
+        ByteBuffer description = column(offset += 8 * rows);
+        ByteBuffer category = column(offset += 4 * rows);
+        ByteBuffer currency = currencies == null ? null : column(offset + ordinalWidth * rows);
+        return store.load(rows, ordinalWidth, cents, millis, high, low, description, category, amount, currency,
+            descriptions.values(), categories.values(),
+            currencies == null ? List.of(Expense.DEFAULT_CURRENCY) : currencies.values());
+    }
+    
+    /**
+     * Rows whose top 64 id bits, sign-flipped as {@link IdPrefixIndex} orders them, fall in
+     * [from, to]; read straight from the mapped column.
+     */
+    int countIds(long from, long to) {
+        int offset = HEADER_SIZE + 16 * rows;
+        int count = 0;
+        for (int row = 0; row < rows; row++) {
+            long key = buffer.getLong(offset + 8 * row) ^ Long.MIN_VALUE;
+            if (key >= from && key <= to) count++;
+        }
+        return count;
+    }
+    
+    private ByteBuffer column(int offset) {
+        return buffer.duplicate().position(offset);
+    }
+    
+    static void write(Path path, ExpenseStore.Snapshot store) throws IOException {
+        IntList liveRows = new IntList(store.liveCount());
+        for (int row = 0; row < store.size(); row++) {
+            if (!store.isDeleted(row)) liveRows.add(row);
+        }
+        write(path, store, liveRows);
+    }
+    
+    /** Writes the given live rows of {@code store}, in that order. */
+    static void write(Path path, ExpenseStore.Snapshot store, IntList selected) throws IOException {
+        int rows = selected.size();
+        int[] liveRows = selected.toArray();
+        
+        long dataSize = HEADER_SIZE + 40L * rows + 4L * rows + 8L * rows;
+        if (align(dataSize) > Integer.MAX_VALUE) {
+            throw new IOException("Ledger too large for a single snapshot file");
+        }
+        ByteBuffer columns = ByteBuffer.allocate((int) align(dataSize));
+        columns.position(HEADER_SIZE);
+        for (int row : liveRows) columns.putLong(store.cents(row));
+        for (int row : liveRows) columns.putLong(store.epochMillis(row));
+        for (int row : liveRows) columns.putLong(store.idHigh(row));
+        for (int row : liveRows) columns.putLong(store.idLow(row));
+        for (int row : liveRows) columns.putLong(store.amount(row));
+        
+        // Only descriptions still referenced by a live row are written out
+        int[] remap = new int[store.descriptionPool().size()];
+        Arrays.fill(remap, -1);
+        List<String> descList = new ArrayList<>();
+        for (int row : liveRows) {
+            int index = store.descriptionIndex(row);
+            if (remap[index] < 0) {
+                remap[index] = descList.size();
+                descList.add(store.description(row));
+            }
+            columns.putInt(remap[index]);
+        }
+        for (int row : liveRows) columns.putInt(store.categoryOrdinal(row));
+        for (int row : liveRows) columns.putInt(store.currencyOrdinal(row));
+        
+        byte[] descDict = Dictionary.encode(descList);
+        byte[] categoryDict = Dictionary.encode(values(store.categoryPool()));
+        byte[] currencyDict = Dictionary.encode(values(store.currencyPool()));
+        columns.putInt(0, MAGIC)
+            .putInt(4, VERSION)
+            .putInt(8, rows)
+            .putInt(12, columns.capacity())
+            .putInt(16, columns.capacity() + descDict.length)
+            .putInt(20, columns.capacity() + descDict.length + categoryDict.length)
+            .putLong(LENGTH_OFFSET, (long) columns.capacity() + descDict.length + categoryDict.length + currencyDict.length);
+        CRC32C crc = new CRC32C();
+        crc.update(columns.duplicate().position(0).limit(CHECKSUM_OFFSET));
+        crc.update(columns.duplicate().position(HEADER_SIZE));
+        crc.update(descDict);
+        crc.update(categoryDict);
+        crc.update(currencyDict);
+        columns.putInt(CHECKSUM_OFFSET, (int) crc.getValue());
+        columns.position(0);
+        replace(path, columns, ByteBuffer.wrap(descDict), ByteBuffer.wrap(categoryDict), ByteBuffer.wrap(currencyDict));
+    }
+    
+    /**
+     * Writes {@code parts} aside, forces them, then renames them over {@code path}: a crash
+     * at any point leaves either the old file or the new one, never a mix.
+     */
+    static void replace(Path path, ByteBuffer... parts) throws IOException {
+        Path temp = temporaryFile(path);
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (parts[parts.length - 1].hasRemaining()) {
+                out.write(parts);
+            }
+            out.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(path);
+    }
+    
+    /** Where {@link #replace} stages a file; one left over from a crash can be deleted. */
+    static Path temporaryFile(Path path) {
+        return path.resolveSibling(path.getFileName() + ".tmp");
+    }
+    
+    // The journal is truncated right after the rename, so the rename has to be on disk first
+    static void syncDirectory(Path path) {
+        try (FileChannel channel = FileChannel.open(path.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not every platform can open a directory to sync it (Windows can't, and a
+            // rename there is durable once it returns)
+        }
+    }
+    
+    private static int checksum(ByteBuffer file) {
+        CRC32C crc = new CRC32C();
+        crc.update(file.duplicate().position(0).limit(CHECKSUM_OFFSET));
+        crc.update(file.duplicate().position(HEADER_SIZE));
+        return (int) crc.getValue();
+    }
+    
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+    
+    private static List<String> values(StringPool pool) {
+        List<String> values = new ArrayList<>(pool.size());
+        for (int i = 0; i < pool.size(); i++) {
+            values.add(pool.get(i));
+        }
+        return values;
+    }
+    
+    /**
+     * String table stored as {@code [count][offsets...][utf-8 bytes]}.
+     */
+    private static class Dictionary {
+        private final ByteBuffer buffer;
+        private final int base;
+        private final int count;
+        
+        Dictionary(ByteBuffer buffer, int base) {
+            this.buffer = buffer;
+            this.base = base;
+            this.count = buffer.getInt(base);
+        }
+        
+        List<String> values() {
+            List<String> values = new ArrayList<>(count);
+            int table = base + 4;
+            int blob = table + 4 * (count + 1);
+            for (int i = 0; i < count; i++) {
+                int start = buffer.getInt(table + 4 * i);
+                byte[] bytes = new byte[buffer.getInt(table + 4 * (i + 1)) - start];
+                buffer.get(blob + start, bytes);
+                values.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            return values;
+        }
+        
+        static byte[] encode(List<String> values) {
+            ByteArrayOutputStream blob = new ByteArrayOutputStream();
+            int[] offsets = new int[values.size() + 1];
+            for (int i = 0; i < values.size(); i++) {
+                blob.writeBytes(values.get(i).getBytes(StandardCharsets.UTF_8));
+                offsets[i + 1] = blob.size();
+            }
+            ByteBuffer out = ByteBuffer.allocate(4 + 4 * offsets.length + blob.size());
+            out.putInt(values.size());
+            for (int offset : offsets) out.putInt(offset);
+            out.put(blob.toByteArray());
+            return out.array();
+        }
+    }
+}
+
+/**
+ * Ledger Segments - The ledger as one snapshot file per month, listed in a manifest
+ *
+ * Each period that has expenses is a {@link LedgerFile} named after its first day and
+ * the generation that wrote it, e.g. 2024-03-01.g17.seg; the period is a month unless
+ * the ledger was created with another {@link Rollup}. The manifest records the current
+ * file of every period with its row count, total, extremes and per-category and
+ * per-month totals, so whole-ledger totals need no segment in memory.
+ *
+ * A journal fold rewrites only the periods changed since the last one. The new files
+ * are written next to the old ones, then the manifest is replaced (written aside,
+ * forced, renamed) and only then are the files it no longer lists deleted, so a crash
+ * leaves the old manifest with all of its files. Files it doesn't list are removed on
+ * open; a damaged manifest is rebuilt from the newest file of each period.
+ *
+ * Totals in the manifest are in the base currency, converted with the rates in effect
+ * when the segment was written, and each summary keeps a checksum of those rates. A
+ * segment whose checksum no longer matches the rates file is {@link #stale} and has
+ * to be loaded and written again before its totals can be used.
+ *
+ * The segment map can be read from any thread. Whether a segment is loaded changes
+ * under the manager's write lock; its dirty and writing flags are atomic, so a fold can
+ * claim the dirty segments without that lock.
+ */
+class LedgerSegments {
+    static final int MAGIC = 0x4558504D; // "EXPM"
+    static final int VERSION = 2;
+    private static final String MANIFEST = "manifest";
+    private static final Pattern SEGMENT_FILE = Pattern.compile("(\\d{4}-\\d{2}-\\d{2})\\.g(\\d+)\\.seg");
+    
+    private final Path directory;
+    private final Path manifest;
+    private final ExchangeRates rates;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private Rollup unit;
+    // Keyed by the first instant of each period
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private long generation;
+    private boolean committed;
+    
+    /** What one segment file holds, as the manifest records it. */
+    static final class Summary {
+        static final Summary EMPTY = new Summary(0, 0, Long.MAX_VALUE, Long.MIN_VALUE, Map.of(), Map.of(), Map.of(), 0);
+        
+        final int rows;
+        final long cents;
+        final long smallest;
+        final long largest;
+        final Map<String, ExpenseAggregates.Bucket> categories;
+        final Map<Integer, ExpenseAggregates.Bucket> months; // by yyyyMM
+        final Map<String, ExpenseAggregates.Bucket> currencies; // in each currency's minor units
+        final long rates; // ExchangeRates.checksum over the currencies and days of the segment
+        
+        Summary(int rows, long cents, long smallest, long largest,
+                Map<String, ExpenseAggregates.Bucket> categories, Map<Integer, ExpenseAggregates.Bucket> months,
+                Map<String, ExpenseAggregates.Bucket> currencies, long rates) {
+            this.rows = rows;
+            this.cents = cents;
+            this.smallest = smallest;
+            this.largest = largest;
+            this.categories = categories;
+            this.months = months;
+            this.currencies = currencies;
+            this.rates = rates;
+        }
+        
+        static Summary of(ExpenseStore.Snapshot snapshot, IntList rows, LocalCalendar calendar,
+                          ExchangeRates exchangeRates, long fromDay, long toDay) {
+            long cents = 0;
+            long smallest = Long.MAX_VALUE;
+            long largest = Long.MIN_VALUE;
+            Map<String, ExpenseAggregates.Bucket> categories = new HashMap<>();
+            Map<Integer, ExpenseAggregates.Bucket> months = new HashMap<>();
+            Map<String, ExpenseAggregates.Bucket> currencies = new HashMap<>();
+            for (int i = 0; i < rows.size(); i++) {
+                int row = rows.get(i);
+                long amount = snapshot.cents(row);
+                cents += amount;
+                smallest = Math.min(smallest, amount);
+                largest = Math.max(largest, amount);
+                add(categories.computeIfAbsent(snapshot.category(row), k -> new ExpenseAggregates.Bucket()), amount, 1);
+                add(months.computeIfAbsent(calendar.month(snapshot.epochMillis(row)), k -> new ExpenseAggregates.Bucket()), amount, 1);
+                add(currencies.computeIfAbsent(snapshot.currency(row), k -> new ExpenseAggregates.Bucket()), snapshot.amount(row), 1);
+            }
+            return new Summary(rows.size(), cents, smallest, largest, categories, months, currencies,
+                exchangeRates.checksum(currencies.keySet(), fromDay, toDay));
+        }
+        
+        private static ExpenseAggregates.Bucket add(ExpenseAggregates.Bucket bucket, long cents, int count) {
+            bucket.cents += cents;
+            bucket.count += count;
+            return bucket;
+        }
+    }
+    
+    /** One period of the ledger. */
+    static final class Segment {
+        private static final int DIRTY = 1;    // changed since its file was written
+        private static final int WRITING = 2;  // claimed by a fold that hasn't committed yet
+        
+        final LocalDate period;
+        final long start;
+        final long end;
+        // The current file and what it holds; only a fold replaces them
+        volatile long generation = -1; // -1: nothing on disk
+        volatile Summary summary = Summary.EMPTY;
+        // Guarded by the manager's lock; a period with no file counts as loaded
+        boolean loaded;
+        volatile long lastUsed;
+        private final AtomicInteger state = new AtomicInteger();
+        
+        Segment(LocalDate period, long start, long end) {
+            this.period = period;
+            this.start = start;
+            this.end = end;
+        }
+        
+        /** Called after each change to the rows of this period, before it is journaled. */
+        void markDirty() {
+            if ((state.get() & DIRTY) == 0) {
+                state.getAndAccumulate(DIRTY, (flags, bit) -> flags | bit);
+            }
+        }
+        
+        boolean isDirty() {
+            return (state.get() & DIRTY) != 0;
+        }
+        
+        /** Unchanged since its file was written and not being written; only such segments are evicted. */
+        boolean isClean() {
+            return state.get() == 0;
+        }
+        
+        private boolean claim() {
+            for (int flags = state.get(); (flags & DIRTY) != 0; flags = state.get()) {
+                if (state.compareAndSet(flags, (flags & ~DIRTY) | WRITING)) return true;
+            }
+            return false;
+        }
+        
+        private void release(boolean written) {
+            state.getAndAccumulate(written ? 0 : DIRTY, (flags, dirty) -> (flags & ~WRITING) | dirty);
+        }
+    }
+    
+    private LedgerSegments(Path directory, Rollup unit, ExchangeRates rates) {
+        this.directory = directory;
+        this.manifest = directory.resolve(MANIFEST);
+        this.unit = unit;
+        this.rates = rates;
+    }
+    
+    /**
+     * Reads the manifest in {@code directory}, if there is one, and deletes files it
+     * doesn't list. {@code unit} only applies if the ledger has no segments yet.
+     */
+    static LedgerSegments open(Path directory, Rollup unit, ExchangeRates rates) throws IOException {
+        LedgerSegments ledger = new LedgerSegments(directory, unit, rates);
+        if (Files.exists(ledger.manifest)) {
+            byte[] bytes = Files.readAllBytes(ledger.manifest);
+            try {
+                ledger.readManifest(bytes);
+            } catch (IOException | RuntimeException e) {
+                Path aside = ledger.manifest.resolveSibling(MANIFEST + ".damaged-" + System.currentTimeMillis());
+                Files.move(ledger.manifest, aside);
+                System.out.println("⚠️  The segment manifest could not be read (" + e.getMessage() + "). It was moved to "
+                    + aside + " and rebuilt from the segment files.");
+                ledger.rebuild();
+            }
+        } else if (ledger.hasSegmentFiles()) {
+            System.out.println("⚠️  The segment manifest is missing; rebuilding it from the segment files.");
+            ledger.rebuild();
+        }
+        ledger.removeUnlisted();
+        return ledger;
+    }
+    
+    /** Whether a manifest has been written, by this run or an earlier one. */
+    boolean exists() {
+        return committed;
+    }
+    
+    Rollup unit() {
+        return unit;
+    }
+    
+    /** Every period with expenses (or that had some this run), oldest first. */
+    Collection<Segment> all() {
+        return segments.values();
+    }
+    
+    Collection<Segment> newestFirst() {
+        return segments.descendingMap().values();
+    }
+    
+    /** A number that grows with every call, for least-recently-used order. */
+    long tick() {
+        return clock.incrementAndGet();
+    }
+    
+    /** The segment holding {@code epochMillis}, or null if that period has no segment. */
+    Segment at(long epochMillis) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(epochMillis);
+        return entry != null && epochMillis < entry.getValue().end ? entry.getValue() : null;
+    }
+    
+    /** The segment holding {@code epochMillis}, created empty if need be. Caller holds the write lock. */
+    Segment touch(long epochMillis) {
+        Segment segment = at(epochMillis);
+        if (segment == null) {
+            segment = segment(unit.start(Instant.ofEpochMilli(epochMillis).atZone(zone).toLocalDate()));
+            segment.loaded = true;
+            segments.put(segment.start, segment);
+        }
+        return segment;
+    }
+    
+    /** Segments with any part in [from, to), oldest first. */
+    List<Segment> overlapping(long from, long to) {
+        Long first = segments.floorKey(from);
+        List<Segment> overlapping = new ArrayList<>();
+        for (Segment segment : segments.subMap(first == null ? Long.MIN_VALUE : first, true, to, false).values()) {
+            if (segment.end > from) overlapping.add(segment);
+        }
+        return overlapping;
+    }
+    
+    /** Up to {@code count} segments starting at or before {@code epochMillis}, newest first. */
+    List<Segment> recent(long epochMillis, int count) {
+        List<Segment> recent = new ArrayList<>(count);
+        for (Segment segment : segments.headMap(epochMillis, true).descendingMap().values()) {
+            if (recent.size() == count) break;
+            recent.add(segment);
+        }
+        return recent;
+    }
+    
+    /**
+     * Segments that aren't loaded and hold ids whose top 64 bits, sign-flipped as
+     * {@link IdPrefixIndex} orders them, fall in [from, to]. Newest first, and no more
+     * than it takes to find {@code wanted} such ids. Only the id column of each file is
+     * read. Caller holds the manager's lock.
+     */
+    List<Segment> holding(long from, long to, int wanted) {
+        List<Segment> holding = new ArrayList<>();
+        for (Segment segment : newestFirst()) {
+            if (wanted <= 0) break;
+            if (segment.loaded || segment.generation < 0) continue;
+            int matches;
+            try {
+                matches = LedgerFile.open(file(segment), false).countIds(from, to);
+            } catch (IOException e) {
+                matches = 1; // loading it reports the problem
+            }
+            if (matches > 0) {
+                holding.add(segment);
+                wanted -= matches;
+            }
+        }
+        return holding;
+    }
+    
+    Path file(Segment segment) {
+        return file(segment.period, segment.generation);
+    }
+    
+    /** Whether the segment's totals were converted with rates that have changed since. */
+    boolean stale(Segment segment) {
+        Summary summary = segment.summary;
+        return summary.rows > 0 && summary.rates != checksum(rates, summary.currencies.keySet(), segment.period);
+    }
+    
+    /**
+     * Writes the segments changed since the last call from the rows {@code store} holds
+     * now, commits them in a new manifest and deletes the files they replace. Returns the
+     * bytes written. Calls must not overlap.
+     */
+    synchronized long persist(ExpenseStore store) throws IOException {
+        List<Segment> claimed = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (segment.claim()) claimed.add(segment);
+        }
+        if (claimed.isEmpty() && committed) {
+            return 0;
+        }
+        boolean written = false;
+        try {
+            // Claimed segments can't be evicted, so all of their rows are in the store
+            ExpenseStore.Snapshot snapshot = store.snapshot();
+            Map<Segment, IntList> rows = new HashMap<>();
+            Segment segment = null;
+            for (int row = 0; row < snapshot.size(); row++) {
+                if (snapshot.isDeleted(row)) continue;
+                long millis = snapshot.epochMillis(row);
+                if (segment == null || millis < segment.start || millis >= segment.end) {
+                    segment = at(millis);
+                }
+                if (segment != null && (segment.state.get() & Segment.WRITING) != 0) {
+                    rows.computeIfAbsent(segment, k -> new IntList()).add(row);
+                }
+            }
+            
+            long next = generation + 1;
+            long bytes = 0;
+            LocalCalendar calendar = new LocalCalendar(zone);
+            Map<Segment, Summary> summaries = new HashMap<>();
+            Files.createDirectories(directory);
+            for (Segment changed : claimed) {
+                IntList segmentRows = rows.getOrDefault(changed, new IntList(0));
+                if (segmentRows.size() > 0) {
+                    Path file = file(changed.period, next);
+                    LedgerFile.write(file, snapshot, segmentRows);
+                    bytes += Files.size(file);
+                }
+                summaries.put(changed, summarize(snapshot, segmentRows, calendar, changed.period));
+            }
+            bytes += writeManifest(next, summaries);
+            generation = next;
+            committed = true;
+            
+            for (Segment changed : claimed) {
+                long replaced = changed.generation;
+                Summary summary = summaries.get(changed);
+                changed.summary = summary;
+                changed.generation = summary.rows > 0 ? next : -1;
+                if (replaced >= 0) {
+                    try {
+                        Files.deleteIfExists(file(changed.period, replaced));
+                    } catch (IOException e) {
+                        // Removed as unlisted on the next open
+                    }
+                }
+            }
+            written = true;
+            return bytes;
+        } finally {
+            for (Segment changed : claimed) {
+                changed.release(written);
+            }
+        }
+    }
+    
+    /**
+     * Moves a segment's file aside as {@code <name>.damaged-<time>} and treats the
+     * segment as empty, dropping it from the manifest. Returns null if the file was
+     * already gone.
+     */
+    synchronized Path quarantine(Segment segment) throws IOException {
+        Path file = file(segment);
+        Path aside = file.resolveSibling(file.getFileName() + ".damaged-" + System.currentTimeMillis());
+        if (Files.exists(file)) {
+            Files.move(file, aside);
+        } else {
+            aside = null;
+        }
+        segment.generation = -1;
+        segment.summary = Summary.EMPTY;
+        writeManifest(generation, Map.of());
+        return aside;
+    }
+    
+    /** Forgets every segment and deletes the files. */
+    void clear() throws IOException {
+        segments.clear();
+        committed = false;
+        Files.deleteIfExists(manifest);
+        removeUnlisted();
+    }
+    
+    private Segment segment(LocalDate period) {
+        return new Segment(period, period.atStartOfDay(zone).toInstant().toEpochMilli(),
+            unit.next(period).atStartOfDay(zone).toInstant().toEpochMilli());
+    }
+    
+    private Path file(LocalDate period, long generation) {
+        return directory.resolve(period + ".g" + generation + ".seg");
+    }
+    
+    private Summary summarize(ExpenseStore.Snapshot snapshot, IntList rows, LocalCalendar calendar, LocalDate period) {
+        return Summary.of(snapshot, rows, calendar, rates, period.toEpochDay(), unit.next(period).toEpochDay() - 1);
+    }
+    
+    private long checksum(ExchangeRates exchangeRates, Set<String> currencies, LocalDate period) {
+        return exchangeRates.checksum(currencies, period.toEpochDay(), unit.next(period).toEpochDay() - 1);
+    }
+    
+    // Layout: magic, version, unit, generation, segment count, then per segment its first
+    // day, generation, rows, cents, smallest, largest, categories, months, currencies and
+    // rates checksum; a CRC32C of all of that last. Version 1 had no currencies: it was
+    // all dollars, with nothing to convert.
+    private void readManifest(byte[] bytes) throws IOException {
+        if (bytes.length < 4) {
+            throw new IOException("Manifest is truncated");
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(bytes).getInt(bytes.length - 4)) {
+            throw new IOException("Manifest is damaged (checksum mismatch)");
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a segment manifest");
+        }
+        int version = in.readInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported manifest version " + version);
+        }
+        ExchangeRates dollars = new ExchangeRates(Expense.DEFAULT_CURRENCY);
+        unit = Rollup.values()[in.readByte()];
+        generation = in.readLong();
+        for (int count = in.readInt(); count > 0; count--) {
+            Segment segment = segment(LocalDate.ofEpochDay(in.readLong()));
+            segment.generation = in.readLong();
+            int rows = in.readInt();
+            long cents = in.readLong();
+            long smallest = in.readLong();
+            long largest = in.readLong();
+            Map<String, ExpenseAggregates.Bucket> categories = new HashMap<>();
+            for (int n = in.readInt(); n > 0; n--) {
+                categories.put(in.readUTF(), Summary.add(new ExpenseAggregates.Bucket(), in.readLong(), in.readInt()));
+            }
+            Map<Integer, ExpenseAggregates.Bucket> months = new HashMap<>();
+            for (int n = in.readInt(); n > 0; n--) {
+                months.put(in.readInt(), Summary.add(new ExpenseAggregates.Bucket(), in.readLong(), in.readInt()));
+            }
+            Map<String, ExpenseAggregates.Bucket> currencies = new HashMap<>();
+            long checksum;
+            if (version >= 2) {
+                for (int n = in.readInt(); n > 0; n--) {
+                    currencies.put(in.readUTF(), Summary.add(new ExpenseAggregates.Bucket(), in.readLong(), in.readInt()));
+                }
+                checksum = in.readLong();
+            } else {
+                currencies.put(Expense.DEFAULT_CURRENCY, Summary.add(new ExpenseAggregates.Bucket(), cents, rows));
+                checksum = checksum(dollars, currencies.keySet(), segment.period);
+            }
+            segment.summary = new Summary(rows, cents, smallest, largest, categories, months, currencies, checksum);
+            segments.put(segment.start, segment);
+        }
+        committed = true;
+    }
+    
+    // Summaries in `changed` are about to replace the ones the segments have now
+    private long writeManifest(long generation, Map<Segment, Summary> changed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        List<Segment> listed = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            Summary summary = changed.getOrDefault(segment, segment.summary);
+            if (summary.rows > 0) listed.add(segment);
+        }
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeByte(unit.ordinal());
+        out.writeLong(generation);
+        out.writeInt(listed.size());
+        for (Segment segment : listed) {
+            Summary summary = changed.getOrDefault(segment, segment.summary);
+            out.writeLong(segment.period.toEpochDay());
+            out.writeLong(changed.containsKey(segment) ? generation : segment.generation);
+            out.writeInt(summary.rows);
+            out.writeLong(summary.cents);
+            out.writeLong(summary.smallest);
+            out.writeLong(summary.largest);
+            out.writeInt(summary.categories.size());
+            for (Map.Entry<String, ExpenseAggregates.Bucket> category : summary.categories.entrySet()) {
+                out.writeUTF(category.getKey());
+                out.writeLong(category.getValue().cents);
+                out.writeInt(category.getValue().count);
+            }
+            out.writeInt(summary.months.size());
+            for (Map.Entry<Integer, ExpenseAggregates.Bucket> month : summary.months.entrySet()) {
+                out.writeInt(month.getKey());
+                out.writeLong(month.getValue().cents);
+                out.writeInt(month.getValue().count);
+            }
+            out.writeInt(summary.currencies.size());
+            for (Map.Entry<String, ExpenseAggregates.Bucket> currency : summary.currencies.entrySet()) {
+                out.writeUTF(currency.getKey());
+                out.writeLong(currency.getValue().cents);
+                out.writeInt(currency.getValue().count);
+            }
+            out.writeLong(summary.rates);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        Files.createDirectories(directory);
+        LedgerFile.replace(manifest, ByteBuffer.wrap(bytes.toByteArray()));
+        return bytes.size();
+    }
+    
+    // Takes the newest readable file of each period, as the last fold left them
+    private void rebuild() throws IOException {
+        segments.clear();
+        Map<LocalDate, TreeMap<Long, Path>> files = new TreeMap<>();
+        try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory)) {
+            for (Path file : listing) {
+                Matcher name = SEGMENT_FILE.matcher(file.getFileName().toString());
+                if (!name.matches()) continue;
+                long fileGeneration = Long.parseLong(name.group(2));
+                files.computeIfAbsent(LocalDate.parse(name.group(1)), k -> new TreeMap<>()).put(fileGeneration, file);
+                generation = Math.max(generation, fileGeneration);
+            }
+        }
+        LocalCalendar calendar = new LocalCalendar(zone);
+        for (Map.Entry<LocalDate, TreeMap<Long, Path>> period : files.entrySet()) {
+            for (Map.Entry<Long, Path> file : period.getValue().descendingMap().entrySet()) {
+                ExpenseStore rows = new ExpenseStore(false, rates);
+                try {
+                    LedgerFile.open(file.getValue()).loadInto(rows);
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("⚠️  Skipping unreadable segment " + file.getValue() + ": " + e.getMessage());
+                    continue;
+                }
+                ExpenseStore.Snapshot snapshot = rows.snapshot();
+                IntList all = new IntList(snapshot.size());
+                for (int row = 0; row < snapshot.size(); row++) {
+                    all.add(row);
+                }
+                Segment segment = segment(period.getKey());
+                segment.generation = file.getKey();
+                segment.summary = summarize(snapshot, all, calendar, period.getKey());
+                segments.put(segment.start, segment);
+                break;
+            }
+        }
+        writeManifest(generation, Map.of());
+        committed = true;
+    }
+    
+    private boolean hasSegmentFiles() throws IOException {
+        if (!Files.isDirectory(directory)) return false;
+        try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory, "*.seg")) {
+            return listing.iterator().hasNext();
+        }
+    }
+    
+    // Files a fold wrote but never committed, and ones it replaced but didn't get to delete
+    private void removeUnlisted() throws IOException {
+        if (!Files.isDirectory(directory)) return;
+        Set<Path> listed = new HashSet<>();
+        for (Segment segment : segments.values()) {
+            if (segment.generation >= 0) listed.add(file(segment));
+        }
+        try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory)) {
+            for (Path file : listing) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp") || (SEGMENT_FILE.matcher(name).matches() && !listed.contains(file))) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Expense Journal - Append-only log of add and delete records
+ *
+ * Each record is framed as {@code [length][crc32][payload]} so a torn write at the
+ * tail is detected on replay and cut off instead of poisoning the ledger. Deletes carry
+ * the expense's date, so replay can go straight to the segment it is in.
+ */
+class ExpenseJournal implements Closeable {
+    private static final byte ADD = 1;          // written before currencies; dollars as a double
+    private static final byte DELETE = 2;       // written before segments; id only
+    private static final byte DELETE_DATED = 3;
+    private static final byte ADD_EXACT = 4;
+    
+    interface Visitor {
+        void added(Expense expense);
+        // epochMillis is Long.MIN_VALUE for records that don't carry the date
+        void deleted(String id, long epochMillis);
+    }
+    
+    private final FileChannel channel;
+    private final int fsyncInterval;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(4096);
+    private int pendingRecords;
+    private int unsyncedCommits;
+    private long recordCount;
+    
+    private ExpenseJournal(FileChannel channel, int fsyncInterval, long recordCount) {
+        this.channel = channel;
+        this.fsyncInterval = fsyncInterval;
+        this.recordCount = recordCount;
+    }
+    
+    static ExpenseJournal open(Path path, LedgerConfig config, Visitor visitor) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            long[] replayed = replay(path, visitor);
+            long records = replayed[0];
+            long validEnd = replayed[1];
+            if (validEnd < channel.size()) {
+                System.out.println("⚠️  Discarding torn journal tail after " + records + " records.");
+                channel.truncate(validEnd);
+            }
+            channel.position(validEnd);
+            return new ExpenseJournal(channel, config.fsyncInterval, records);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    // Returns {records replayed, byte offset of the end of the last intact record}
+    private static long[] replay(Path path, Visitor visitor) throws IOException {
+        long records = 0;
+        long validEnd = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            CRC32 check = new CRC32();
+            while (true) {
+                int length;
+                long crc;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    crc = in.readInt() & 0xFFFFFFFFL;
+                    if (length <= 0 || length > (1 << 24)) break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                check.reset();
+                check.update(payload);
+                if (check.getValue() != crc) break;
+                
+                DataInputStream body = new DataInputStream(new ByteArrayInputStream(payload));
+                switch (body.readByte()) {
+                    case ADD -> visitor.added(new Expense(body.readUTF(), body.readUTF(),
+                        body.readDouble(), body.readUTF(), new Date(body.readLong())));
+                    case ADD_EXACT -> visitor.added(new Expense(body.readUTF(), body.readUTF(),
+                        body.readLong(), body.readUTF(), body.readUTF(), new Date(body.readLong())));
+                    case DELETE -> visitor.deleted(body.readUTF(), Long.MIN_VALUE);
+                    case DELETE_DATED -> visitor.deleted(body.readUTF(), body.readLong());
+                    default -> throw new IOException("Unknown journal record type");
+                }
+                records++;
+                validEnd += 8 + length;
+            }
+        }
+        return new long[] { records, validEnd };
+    }
+    
+    /** Encodes a framed ADD record; needs no journal, so it can run before any lock is taken. */
+    static byte[] encodeAdd(Expense expense) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(ADD_EXACT);
+            out.writeUTF(expense.getId());
+            out.writeUTF(expense.getDescription());
+            out.writeLong(expense.getAmountMinor());
+            out.writeUTF(expense.getCurrency());
+            out.writeUTF(expense.getCategory());
+            out.writeLong(expense.getDate().getTime());
+            return frame(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    static byte[] encodeDelete(String id, long epochMillis) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(DELETE_DATED);
+            out.writeUTF(id);
+            out.writeLong(epochMillis);
+            return frame(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private static byte[] frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return ByteBuffer.allocate(8 + payload.length)
+            .putInt(payload.length)
+            .putInt((int) crc.getValue())
+            .put(payload)
+            .array();
+    }
+    
+    /** Buffers a record from {@link #encodeAdd} or {@link #encodeDelete} until the next commit. */
+    void append(byte[] record) {
+        pending.writeBytes(record);
+        pendingRecords++;
+        recordCount++;
+    }
+    
+    int pendingRecords() { return pendingRecords; }
+    long recordCount() { return recordCount; }
+    
+    /**
+     * Hands buffered records to the OS in a single write; every {@code fsyncInterval}
+     * commits the channel is also forced to disk.
+     */
+    void commit() throws IOException {
+        if (pendingRecords == 0) return;
+        ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (pending.size() > (1 << 20)) {
+            // Don't hold on to the buffer a large batch grew
+            pending = new ByteArrayOutputStream(4096);
+        } else {
+            pending.reset();
+        }
+        pendingRecords = 0;
+        if (fsyncInterval > 0 && ++unsyncedCommits >= fsyncInterval) {
+            channel.force(false);
+            unsyncedCommits = 0;
+        }
+    }
+    
+    void sync() throws IOException {
+        commit();
+        if (unsyncedCommits > 0 || fsyncInterval <= 0) {
+            channel.force(false);
+            unsyncedCommits = 0;
+        }
+    }
+    
+    void reset() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+        recordCount = 0;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+/**
+ * Ledger Writer - Background thread that gets journal records onto disk
+ *
+ * Writers queue their records in the order they changed the store and return at once.
+ * The thread waits until the oldest queued record is {@code delayMillis} old, or a burst
+ * has queued a lot, and then runs the flush action, which drains the queue into one
+ * journal write and fsync. A burst of adds therefore costs one disk round trip, and a
+ * crash loses at most what was queued within the delay and the write after it.
+ */
+class LedgerWriter implements Closeable {
+    private static final int WAKE_AT_RECORDS = 4_096;    // don't sit out the delay with this many queued
+    
+    private final Runnable flush;
+    private final long delayNanos;
+    private final Thread thread;
+    private List<byte[]> queued = new ArrayList<>();
+    private long oldestNanos;
+    private boolean closed;
+    
+    LedgerWriter(long delayMillis, Runnable flush) {
+        this.flush = flush;
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        this.thread = new Thread(this::run, "expense-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /** Queues records to be written after everything queued before them. */
+    synchronized void submit(List<byte[]> records) {
+        if (records.isEmpty()) return;
+        if (closed) {
+            throw new IllegalStateException("Ledger is closed; " + records.size() + " changes were not saved");
+        }
+        if (queued.isEmpty()) {
+            oldestNanos = System.nanoTime();
+        }
+        queued.addAll(records);
+        if (queued.size() == records.size() || queued.size() >= WAKE_AT_RECORDS) {
+            notifyAll();
+        }
+    }
+    
+    /** Takes everything queued so far, oldest first. */
+    synchronized List<byte[]> drain() {
+        List<byte[]> records = queued;
+        queued = new ArrayList<>();
+        return records;
+    }
+    
+    private void run() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (queued.isEmpty() && !closed) {
+                        wait();
+                    }
+                    if (queued.isEmpty()) return;
+                    long remaining;
+                    while (!closed && queued.size() < WAKE_AT_RECORDS
+                            && (remaining = oldestNanos + delayNanos - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            try {
+                flush.run();
+            } catch (RuntimeException e) {
+                System.out.println("⚠️  Could not save expenses: " + e);
+            }
+        }
+    }
+    
+    /** Writes out what is still queued and stops the thread. */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+/**
+ * Expense Metrics - Counters and latency histograms for the ledger's operations
+ *
+ * Counters are LongAdders and each histogram is a fixed array of log-spaced buckets
+ * (eight per power of two, so a reading is within 12.5% of its true value), updated
+ * with plain atomic increments. Nothing is allocated on the recording path, and when
+ * metrics are turned off it reduces to a field check: no clock reads, no updates.
+ *
+ * The same figures are available as JMX attributes and as a text or JSON dump.
+ */
+class ExpenseMetrics implements DynamicMBean {
+    static final ExpenseMetrics DISABLED = new ExpenseMetrics(false);
+    
+    enum Operation {
+        ADD, ADD_BATCH, DELETE, LOOKUP, PAGE, SEARCH, STATISTICS, RANGE, EXPORT,
+        JOURNAL_WRITE, SNAPSHOT_WRITE, LOAD, SEGMENT_LOAD, TOMBSTONE_COMPACTION
+    }
+    
+    enum Counter {
+        EXPENSES_ADDED, EXPENSES_DELETED, ROWS_SCANNED, BYTES_WRITTEN,
+        SORT_CACHE_HITS, SORT_CACHE_MISSES, QUERY_CACHE_HITS, QUERY_CACHE_MISSES, QUERY_CACHE_EVICTIONS,
+        QUERY_CACHE_INVALIDATIONS, SEGMENTS_EVICTED, PERSISTENCE_FAILURES, BUDGET_ALERTS
+    }
+    
+    // Hit and miss counters of each cache, reported together as a hit rate
+    private static final Counter[][] CACHES = {
+        { Counter.SORT_CACHE_HITS, Counter.SORT_CACHE_MISSES },
+        { Counter.QUERY_CACHE_HITS, Counter.QUERY_CACHE_MISSES }
+    };
+    
+    private final boolean enabled;
+    private final long startedMillis = System.currentTimeMillis();
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    private final Histogram[] latencies = new Histogram[Operation.values().length];
+    private volatile String lastFailure;
+    private MBeanInfo info;
+    
+    ExpenseMetrics(boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new Histogram();
+        }
+    }
+    
+    boolean enabled() { return enabled; }
+    
+    /** Start time to hand back to {@link #record}; 0 without reading the clock when disabled. */
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+    
+    void record(Operation operation, long start) {
+        if (enabled) latencies[operation.ordinal()].record(System.nanoTime() - start);
+    }
+    
+    void add(Counter counter, long amount) {
+        if (enabled) counters[counter.ordinal()].add(amount);
+    }
+    
+    void increment(Counter counter) {
+        if (enabled) counters[counter.ordinal()].increment();
+    }
+    
+    /** Counts a failed read or write of the ledger files and remembers why. */
+    void failed(String what, Exception e) {
+        if (!enabled) return;
+        counters[Counter.PERSISTENCE_FAILURES.ordinal()].increment();
+        lastFailure = what + ": " + e.getMessage();
+    }
+    
+    long count(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+    
+    Histogram latency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+    
+    /** Hits over all lookups, or 0 before the first lookup. */
+    double hitRate(Counter hits, Counter misses) {
+        long lookups = count(hits) + count(misses);
+        return lookups == 0 ? 0 : (double) count(hits) / lookups;
+    }
+    
+    // SORT_CACHE_HITS -> sortCacheHitRate
+    private static String hitRateKey(Counter hits) {
+        return key(hits).replace("Hits", "HitRate");
+    }
+    
+    String toText() {
+        StringBuilder text = new StringBuilder("Expense metrics, ")
+            .append((System.currentTimeMillis() - startedMillis) / 1000).append("s uptime\n");
+        for (Operation operation : Operation.values()) {
+            Histogram histogram = latency(operation);
+            if (histogram.count() == 0) continue;
+            text.append(String.format("  %-22s count=%-8d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus%n",
+                key(operation), histogram.count(), histogram.mean() / 1e3, histogram.percentile(50) / 1e3,
+                histogram.percentile(99) / 1e3, histogram.max() / 1e3));
+        }
+        for (Counter counter : Counter.values()) {
+            text.append(String.format("  %-22s %d%n", key(counter), count(counter)));
+        }
+        for (Counter[] cache : CACHES) {
+            text.append(String.format("  %-22s %.1f%%%n", hitRateKey(cache[0]), hitRate(cache[0], cache[1]) * 100));
+        }
+        String failure = lastFailure;
+        if (failure != null) {
+            text.append("  last failure: ").append(failure).append('\n');
+        }
+        return text.toString();
+    }
+    
+    /** Latencies in microseconds; the counters as plain numbers. */
+    String toJson() {
+        StringBuilder json = new StringBuilder("{\"uptimeSeconds\":")
+            .append((System.currentTimeMillis() - startedMillis) / 1000).append(",\"operations\":{");
+        String separator = "";
+        for (Operation operation : Operation.values()) {
+            Histogram histogram = latency(operation);
+            if (histogram.count() == 0) continue;
+            json.append(separator).append('"').append(key(operation)).append("\":{\"count\":").append(histogram.count())
+                .append(",\"meanMicros\":").append(histogram.mean() / 1000)
+                .append(",\"p50Micros\":").append(histogram.percentile(50) / 1000)
+                .append(",\"p99Micros\":").append(histogram.percentile(99) / 1000)
+                .append(",\"maxMicros\":").append(histogram.max() / 1000.0).append('}');
+            separator = ",";
+        }
+        json.append("},\"counters\":{");
+        separator = "";
+        for (Counter counter : Counter.values()) {
+            json.append(separator).append('"').append(key(counter)).append("\":").append(count(counter));
+            separator = ",";
+        }
+        json.append("},\"hitRates\":{");
+        separator = "";
+        for (Counter[] cache : CACHES) {
+            json.append(separator).append('"').append(hitRateKey(cache[0])).append("\":").append(hitRate(cache[0], cache[1]));
+            separator = ",";
+        }
+        return json.append("}}").toString();
+    }
+    
+    /** Overwrites {@code file} with the current figures, as JSON if it ends in .json; null prints text to stderr. */
+    void dump(String file) {
+        if (file == null) {
+            System.err.print(toText());
+            return;
+        }
+        try {
+            Files.writeString(Paths.get(file), file.endsWith(".json") ? toJson() + "\n" : toText());
+        } catch (IOException e) {
+            System.err.println("⚠️  Could not write metrics to " + file + ": " + e.getMessage());
+        }
+    }
+    
+    // ADD_BATCH -> addBatch
+    private static String key(Enum<?> name) {
+        StringBuilder key = new StringBuilder();
+        boolean upper = false;
+        for (char c : name.name().toCharArray()) {
+            if (c == '_') {
+                upper = true;
+            } else {
+                key.append(upper ? c : Character.toLowerCase(c));
+                upper = false;
+            }
+        }
+        return key.toString();
+    }
+    
+    // JMX: every counter, and count/mean/p50/p99/max for each operation, as read-only attributes
+    
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        for (Counter counter : Counter.values()) {
+            if (attribute.equals(key(counter))) return count(counter);
+        }
+        for (Counter[] cache : CACHES) {
+            if (attribute.equals(hitRateKey(cache[0]))) return hitRate(cache[0], cache[1]);
+        }
+        if (attribute.equals("lastFailure")) return lastFailure;
+        for (Operation operation : Operation.values()) {
+            String prefix = key(operation);
+            if (!attribute.startsWith(prefix)) continue;
+            Histogram histogram = latency(operation);
+            switch (attribute.substring(prefix.length())) {
+                case "Count": return histogram.count();
+                case "MeanMicros": return histogram.mean() / 1000;
+                case "P50Micros": return histogram.percentile(50) / 1000;
+                case "P99Micros": return histogram.percentile(99) / 1000;
+                case "MaxMicros": return histogram.max() / 1000.0;
+                default: break;
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+    
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Left out, as the interface expects
+            }
+        }
+        return list;
+    }
+    
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+    
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+    
+    @Override
+    public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+        if (action.equals("dumpJson")) return toJson();
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+    
+    @Override
+    public synchronized MBeanInfo getMBeanInfo() {
+        if (info == null) {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Counter counter : Counter.values()) {
+                attributes.add(new MBeanAttributeInfo(key(counter), "long", key(counter), true, false, false));
+            }
+            for (Counter[] cache : CACHES) {
+                attributes.add(new MBeanAttributeInfo(hitRateKey(cache[0]), "double", "Hits over lookups",
+                    true, false, false));
+            }
+            attributes.add(new MBeanAttributeInfo("lastFailure", "java.lang.String",
+                "Most recent persistence failure", true, false, false));
+            for (Operation operation : Operation.values()) {
+                String prefix = key(operation);
+                attributes.add(new MBeanAttributeInfo(prefix + "Count", "long", prefix + " calls", true, false, false));
+                for (String statistic : new String[] { "MeanMicros", "P50Micros", "P99Micros", "MaxMicros" }) {
+                    attributes.add(new MBeanAttributeInfo(prefix + statistic, "double", prefix + " latency",
+                        true, false, false));
+                }
+            }
+            MBeanOperationInfo dump = new MBeanOperationInfo("dumpJson", "All metrics as JSON",
+                new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO);
+            info = new MBeanInfo(getClass().getName(), "Expense ledger metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[] { dump }, null);
+        }
+        return info;
+    }
+    
+    /**
+     * Log-bucketed histogram of nanosecond readings: values below 8 get a bucket each,
+     * above that every power of two is split into 8 equal buckets.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(bucket(value));
+            count.increment();
+            total.add(value);
+            max.accumulate(value);
+        }
+        
+        long count() { return count.sum(); }
+        long max() { return max.get(); }
+        
+        double mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) total.sum() / n;
+        }
+        
+        /** Middle of the bucket holding the given percentile (capped at the max), in nanoseconds. */
+        double percentile(double percentile) {
+            long n = 0;
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+                n += counts[i];
+            }
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+            for (int i = 0; i < counts.length; i++) {
+                rank -= counts[i];
+                if (rank <= 0) {
+                    long low = lowerBound(i);
+                    return Math.min(low + (lowerBound(i + 1) - low) / 2.0, max());
+                }
+            }
+            return max();
+        }
+        
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+        
+        static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+        }
+    }
+}
+
+/**
+ * Ledger Config - Persistence tuning, overridable with -Dexpenses.* system properties
+ */
+class LedgerConfig {
+    enum Durability {
+        SYNC,   // changes are written on the caller's thread before it returns
+        ASYNC   // changes are handed to a background writer; a crash can lose the last flushDelayMillis
+    }
+    
+    Durability durability = Durability.ASYNC;
+    // ASYNC: how long the writer lets changes gather before one write and fsync
+    int flushDelayMillis = 50;
+    // Records buffered in memory before they are written to the journal
+    int groupCommitSize = 1;
+    // Journal commits between fsync calls; 0 leaves flushing to the OS
+    int fsyncInterval = 1;
+    // The journal is folded into a snapshot once it holds this many records...
+    long minCompactionRecords = 1_000;
+    // ...or this fraction of the snapshot's row count, whichever is larger
+    double compactionRatio = 0.5;
+    // Bytes encoded in memory between writes during CSV export
+    int exportBufferSize = 1 << 18;
+    // Keep the expense store's columns in direct buffers outside the Java heap
+    boolean offHeap;
+    // Deleted rows are dropped from memory once there are this many of them...
+    int minTombstones = 4_096;
+    // ...and they make up this fraction of all rows
+    double tombstoneRatio = 0.25;
+    // Period each segment file covers; a ledger that already has segments keeps its own
+    Rollup segmentBy = Rollup.MONTH;
+    // Loaded rows above which the least recently used segments are dropped from memory
+    int maxLoadedRows = 1_000_000;
+    // Expenses held across all cached search, category and date range results; 0 turns the cache off
+    int queryCacheRows = 100_000;
+    // Seconds between checks for recurring expenses that have fallen due; 0 only checks on start
+    int recurringInterval = 60;
+    // ISO 4217 code of the currency totals and reports are in; others convert with the rates file
+    String baseCurrency = Expense.DEFAULT_CURRENCY;
+    // Time operations and count rows and bytes; off makes every probe a no-op
+    boolean metrics = true;
+    // Also publish the metrics as an MBean (starts the platform MBean server)
+    boolean metricsJmx;
+    // Seconds between metric dumps; 0 turns dumping off
+    int metricsDumpInterval;
+    // Where dumps go, as JSON if it ends in .json; unset prints text to stderr
+    String metricsDumpFile;
+    
+    static LedgerConfig fromSystemProperties() {
+        LedgerConfig config = new LedgerConfig();
+        String durability = System.getProperty("expenses.durability");
+        if (durability != null) {
+            config.durability = Durability.valueOf(durability.toUpperCase(Locale.ROOT));
+        }
+        config.flushDelayMillis = Integer.getInteger("expenses.journal.flushDelay", config.flushDelayMillis);
+        config.groupCommitSize = Math.max(1, Integer.getInteger("expenses.journal.groupCommit", config.groupCommitSize));
+        config.fsyncInterval = Integer.getInteger("expenses.journal.fsyncInterval", config.fsyncInterval);
+        config.minCompactionRecords = Long.getLong("expenses.journal.minCompaction", config.minCompactionRecords);
+        String ratio = System.getProperty("expenses.journal.compactionRatio");
+        if (ratio != null) {
+            config.compactionRatio = Double.parseDouble(ratio);
+        }
+        config.exportBufferSize = Integer.getInteger("expenses.export.bufferSize", config.exportBufferSize);
+        config.offHeap = Boolean.getBoolean("expenses.store.offHeap");
+        config.minTombstones = Integer.getInteger("expenses.store.minTombstones", config.minTombstones);
+        String tombstoneRatio = System.getProperty("expenses.store.tombstoneRatio");
+        if (tombstoneRatio != null) {
+            config.tombstoneRatio = Double.parseDouble(tombstoneRatio);
+        }
+        String segmentBy = System.getProperty("expenses.segments.by");
+        if (segmentBy != null) {
+            config.segmentBy = Rollup.valueOf(segmentBy.toUpperCase(Locale.ROOT));
+        }
+        config.maxLoadedRows = Integer.getInteger("expenses.segments.maxLoadedRows", config.maxLoadedRows);
+        config.queryCacheRows = Integer.getInteger("expenses.cache.maxRows", config.queryCacheRows);
+        config.recurringInterval = Integer.getInteger("expenses.recurring.interval", config.recurringInterval);
+        String currency = System.getProperty("expenses.currency");
+        if (currency != null) {
+            config.baseCurrency = Currency.getInstance(currency.trim().toUpperCase(Locale.ROOT)).getCurrencyCode();
+        }
+        config.metrics = Boolean.parseBoolean(System.getProperty("expenses.metrics", "true"));
+        config.metricsJmx = Boolean.getBoolean("expenses.metrics.jmx");
+        config.metricsDumpInterval = Integer.getInteger("expenses.metrics.dumpInterval", config.metricsDumpInterval);
+        config.metricsDumpFile = System.getProperty("expenses.metrics.dumpFile");
+        return config;
+    }
+}
@@ -0,0 +1,56 @@
+package expensetracker;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Add Expense Benchmark - addExpense through the journal, with and without fsync
+ *
+ * Each call also builds a fresh synthetic expense, the same work a caller does. With
+ * ASYNC durability the add returns once its record is queued for the background writer,
+ * so fsyncInterval only matters for SYNC.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx8g" })
+public class AddExpenseBenchmark {
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    public int rows;
+    
+    // 1 forces every add to disk; 0 leaves flushing to the OS
+    @Param({ "1", "0" })
+    public int fsyncInterval;
+    
+    @Param({ "SYNC", "ASYNC" })
+    public String durability;
+    
+    private Path directory;
+    private ExpenseManager manager;
+    private LedgerGenerator generator;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("expenses-bench");
+        LedgerConfig config = new LedgerConfig();
+        config.fsyncInterval = fsyncInterval;
+        config.durability = LedgerConfig.Durability.valueOf(durability);
+        manager = LedgerGenerator.populate(directory, config, rows);
+        generator = new LedgerGenerator(7);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        manager.close();
+        LedgerGenerator.delete(directory);
+    }
+    
+    @Benchmark
+    public void addExpense() {
+        manager.addExpense(generator.next());
+    }
+}
@@ -0,0 +1,67 @@
+package expensetracker;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Categorize Benchmark - Descriptions matched against 10 to 10k category rules
+ *
+ * Most rules are keywords and merchant prefixes made up of random letters, so they
+ * rarely match; the last few map the generator's vocabulary to categories, so every
+ * description has to be run past the whole rule set before it finds its category.
+ * Throughput is in descriptions per second and should stay flat as rules grow.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CategorizeBenchmark {
+    private static final int DESCRIPTIONS = 1 << 12;
+
+    @Param({ "10", "1000", "10000" })
+    public int rules;
+
+    @Param({ "false", "true" })
+    public boolean regex;
+
+    private CategoryRules categoryRules;
+    private String[] descriptions;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        List<CategoryRules.Rule> list = new ArrayList<>(rules);
+        while (list.size() < rules - LedgerGenerator.WORDS.length) {
+            StringBuilder pattern = new StringBuilder();
+            for (int letters = 4 + random.nextInt(8); letters > 0; letters--) {
+                pattern.append((char) ('a' + random.nextInt(26)));
+            }
+            CategoryRules.Kind kind = random.nextInt(4) == 0 ? CategoryRules.Kind.PREFIX : CategoryRules.Kind.KEYWORD;
+            list.add(new CategoryRules.Rule(kind, "Other", pattern.toString()));
+        }
+        if (regex) {
+            list.add(new CategoryRules.Rule(CategoryRules.Kind.REGEX, "Bills", "\\binv-\\d{6}\\b"));
+        }
+        for (String word : LedgerGenerator.WORDS) {
+            String category = LedgerGenerator.CATEGORIES[Math.floorMod(word.hashCode(), LedgerGenerator.CATEGORIES.length)];
+            list.add(new CategoryRules.Rule(CategoryRules.Kind.KEYWORD, category, word));
+        }
+        categoryRules = new CategoryRules(list);
+
+        LedgerGenerator generator = new LedgerGenerator(7);
+        descriptions = new String[DESCRIPTIONS];
+        for (int i = 0; i < DESCRIPTIONS; i++) {
+            descriptions[i] = generator.next().getDescription().toUpperCase(Locale.ROOT);
+        }
+    }
+
+    @Benchmark
+    public String categorize() {
+        String description = descriptions[next++ & (DESCRIPTIONS - 1)];
+        return categoryRules.categorize(description, CategoryRules.FALLBACK);
+    }
+}
@@ -0,0 +1,64 @@
+package expensetracker;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Ledger Generator - Deterministic synthetic expenses for the benchmarks
+ *
+ * Descriptions are two or three words drawn from a small vocabulary so that search
+ * terms hit a realistic share of rows; dates are spread over five years.
+ */
+final class LedgerGenerator {
+    static final String[] CATEGORIES = { "Food", "Transport", "Shopping", "Entertainment", "Bills", "Other" };
+    static final String[] WORDS = {
+        "coffee", "lunch", "dinner", "groceries", "bus", "train", "taxi", "fuel", "parking",
+        "movie", "concert", "books", "shoes", "jacket", "phone", "internet", "rent", "electricity",
+        "water", "gym", "pharmacy", "gift", "hotel", "flight", "snacks", "market", "bakery", "pizza"
+    };
+    private static final long START = LocalDate.of(2020, 1, 1).atStartOfDay(ZoneId.systemDefault())
+        .toInstant().toEpochMilli();
+    private static final long SPAN = Duration.ofDays(5 * 365).toMillis();
+    private static final int BATCH = 100_000;
+    
+    private final Random random;
+    
+    LedgerGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+    
+    Expense next() {
+        StringBuilder description = new StringBuilder(WORDS[random.nextInt(WORDS.length)]);
+        for (int words = 1 + random.nextInt(2); words > 0; words--) {
+            description.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return new Expense(new UUID(random.nextLong(), random.nextLong()).toString(), description.toString(),
+            (1 + random.nextInt(50_000)) / 100.0, CATEGORIES[random.nextInt(CATEGORIES.length)],
+            new Date(START + (long) (random.nextDouble() * SPAN)));
+    }
+    
+    /** Opens a manager on {@code directory} and fills it with {@code rows} expenses in batches. */
+    static ExpenseManager populate(Path directory, LedgerConfig config, int rows) {
+        ExpenseManager manager = new ExpenseManager(directory, config);
+        LedgerGenerator generator = new LedgerGenerator(42);
+        for (int added = 0; added < rows; added += BATCH) {
+            List<Expense> batch = new ArrayList<>(Math.min(BATCH, rows - added));
+            for (int i = Math.min(BATCH, rows - added); i > 0; i--) {
+                batch.add(generator.next());
+            }
+            manager.addExpenses(batch);
+        }
+        return manager;
+    }
+    
+    static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package expensetracker;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Load Benchmark - Opening a saved ledger: manifest, recent segments, journal replay and index builds
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx8g" })
+public class LoadBenchmark {
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    public int rows;
+    
+    private Path directory;
+    private LedgerConfig config;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("expenses-bench");
+        config = new LedgerConfig();
+        LedgerGenerator.populate(directory, config, rows).close();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        LedgerGenerator.delete(directory);
+    }
+    
+    @Benchmark
+    public int loadExpenses() {
+        ExpenseManager manager = new ExpenseManager(directory, config);
+        try {
+            return manager.getExpenseCount();
+        } finally {
+            manager.close();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package expensetracker;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Query Benchmark - Read paths of ExpenseManager against ledgers of 1k to 10M rows
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx8g" })
+public class QueryBenchmark {
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    public int rows;
+    
+    private Path directory;
+    private Path exportFile;
+    private ExpenseManager manager;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("expenses-bench");
+        exportFile = directory.resolve("export.csv");
+        LedgerConfig config = new LedgerConfig();
+        // Keep every segment loaded, so the queries measure the indexes rather than disk reads
+        config.maxLoadedRows = Integer.MAX_VALUE;
+        // Repeated queries would only measure cache hits
+        config.queryCacheRows = 0;
+        manager = LedgerGenerator.populate(directory, config, rows);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        manager.close();
+        LedgerGenerator.delete(directory);
+    }
+    
+    @Benchmark
+    public List<Expense> searchExpenses() {
+        return manager.searchExpenses("coffee market", SearchMode.ALL);
+    }
+    
+    @Benchmark
+    public List<Expense> searchExpensesSubstring() {
+        return manager.searchExpenses("ffee", SearchMode.SUBSTRING);
+    }
+    
+    @Benchmark
+    public Map<String, Double> getCategoryTotals() {
+        return manager.getCategoryTotals();
+    }
+    
+    @Benchmark
+    public Map<String, Double> getMonthlyTotals() {
+        return manager.getMonthlyTotals();
+    }
+    
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int exportToCSV() throws IOException {
+        return manager.exportToCSV(exportFile.toString());
+    }
+}
@@ -0,0 +1,131 @@
+package expensetracker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Category Rules Test - The first matching rule wins, whatever kind it is
+ *
+ * Keywords that overlap or share an ending come out of the automaton together, so the
+ * order of the rules, not where in the description they match, decides between them.
+ */
+class CategoryRulesTest {
+    @Test
+    void regexRulesMatchOnTheirOwn() {
+        CategoryRules rules = new CategoryRules(List.of(
+            regex("Repeated", "(\\w)\\1x"),
+            regex("Transport", "(?<ride>uber|lyft)\\s+trip"),
+            regex("Food", "(?<ride>uber)\\s+eats"),
+            regex("Bills", "inv-(\\d+)-\\1")));
+        assertEquals("Repeated", rules.categorize("aax", "Other"));
+        assertEquals("Transport", rules.categorize("Lyft trip home", "Other"));
+        assertEquals("Food", rules.categorize("UBER EATS", "Other"));
+        assertEquals("Bills", rules.categorize("inv-42-42", "Other"));
+        assertEquals("Other", rules.categorize("inv-42-43", "Other"));
+    }
+
+    @Test
+    void aBadRegexIsRefusedWhenTheRuleIsMade() {
+        assertThrows(PatternSyntaxException.class, () -> regex("Bad", "(["));
+    }
+
+    @Test
+    void overlappingKeywordsGoToTheEarliestRule() {
+        CategoryRules rules = new CategoryRules(List.of(
+            keyword("Eating out", "coffee shop"),
+            keyword("Groceries", "coffee"),
+            keyword("Drinks", "bar"),
+            keyword("Snacks", "snack bar")));
+        assertEquals("Eating out", rules.categorize("Coffee shop downtown", "Other"));
+        assertEquals("Groceries", rules.categorize("Coffee beans", "Other"));
+        assertEquals("Groceries", rules.categorize("Beans and coffee, shop brand", "Other"));
+        // "bar" ends inside "snack bar" and comes first
+        assertEquals("Drinks", rules.categorize("Station snack bar", "Other"));
+        assertEquals("Other", rules.categorize("Coffeeshop", "Other"));
+        assertEquals("Other", rules.categorize("Barbecue", "Other"));
+    }
+
+    @Test
+    void ruleOrderWinsOverPositionInTheDescription() {
+        CategoryRules rules = new CategoryRules(List.of(
+            keyword("Travel", "airport"),
+            keyword("Transport", "taxi"),
+            prefix("Work", "taxi")));
+        assertEquals(0, rules.match("Taxi to airport"));
+        assertEquals(1, rules.match("Taxi home"));
+
+        // Reversed, the same descriptions go the other way
+        CategoryRules reversed = new CategoryRules(List.of(
+            prefix("Work", "taxi"),
+            keyword("Transport", "taxi"),
+            keyword("Travel", "airport")));
+        assertEquals(0, reversed.match("Taxi to airport"));
+        assertEquals(1, reversed.match("Airport taxi"));
+        // A prefix needs no word break after it, a keyword does
+        assertEquals(0, reversed.match("Taxicab"));
+        assertEquals(2, rules.match("Taxicab"));
+    }
+
+    @Test
+    void prefixesOnlyMatchTheStart() {
+        CategoryRules rules = new CategoryRules(List.of(
+            prefix("Shopping", "AMZN Mktp"),
+            prefix("Streaming", "netflix.com")));
+        assertEquals("Shopping", rules.categorize("AMZN Mktp US*2K4", "Other"));
+        assertEquals("Shopping", rules.categorize("amzn mktp de", "Other"));
+        assertEquals("Streaming", rules.categorize("NETFLIX.COM 866-579", "Other"));
+        assertEquals("Other", rules.categorize("Refund AMZN Mktp US", "Other"));
+        assertEquals("Other", rules.categorize(" AMZN Mktp", "Other"));
+        assertEquals("Other", rules.categorize("AMZN", "Other"));
+    }
+
+    @Test
+    void caseIsIgnoredBeyondAscii() {
+        CategoryRules rules = new CategoryRules(List.of(
+            keyword("Eating out", "café"),
+            prefix("Car", "ÖL"),
+            keyword("Travel", "ΤΑΞΊ"),
+            regex("Dessert", "crème\\s+brûlée")));
+        assertEquals("Eating out", rules.categorize("CAFÉ DE FLORE", "Other"));
+        assertEquals("Eating out", rules.categorize("☕ Café", "Other"));
+        assertEquals("Other", rules.categorize("Cafés", "Other"));
+        assertEquals("Car", rules.categorize("Ölwechsel", "Other"));
+        assertEquals("Car", rules.categorize("öl und filter", "Other"));
+        assertEquals("Travel", rules.categorize("Ταξί αεροδρόμιο", "Other"));
+        assertEquals("Dessert", rules.categorize("CRÈME BRÛLÉE", "Other"));
+    }
+
+    @Test
+    void regexRulesAreTriedInOrderWithTheOthers() {
+        CategoryRules rules = new CategoryRules(List.of(
+            regex("Bills", "^inv-\\d+"),
+            keyword("Office", "invoice"),
+            regex("Subscriptions", "\\b(monthly|annual) plan\\b"),
+            keyword("Software", "plan")));
+        // An earlier regex beats a keyword; a later one only when no earlier rule matches
+        assertEquals("Bills", rules.categorize("INV-2024 invoice", "Other"));
+        assertEquals("Office", rules.categorize("Invoice for monthly plan", "Other"));
+        assertEquals("Subscriptions", rules.categorize("Annual plan renewal", "Other"));
+        assertEquals("Software", rules.categorize("Pricing plan", "Other"));
+        assertEquals("Other", rules.categorize("Planner", "Other"));
+
+        CategoryRules onlyRegex = new CategoryRules(List.of(keyword("Food", "lunch"), regex("Fuel", "diesel|petrol")));
+        assertEquals("Fuel", onlyRegex.categorize("Shell PETROL 40L", "Other"));
+        assertEquals(-1, onlyRegex.match("Car wash"));
+    }
+
+    private static CategoryRules.Rule regex(String category, String pattern) {
+        return new CategoryRules.Rule(CategoryRules.Kind.REGEX, category, pattern);
+    }
+
+    private static CategoryRules.Rule keyword(String category, String pattern) {
+        return new CategoryRules.Rule(CategoryRules.Kind.KEYWORD, category, pattern);
+    }
+
+    private static CategoryRules.Rule prefix(String category, String pattern) {
+        return new CategoryRules.Rule(CategoryRules.Kind.PREFIX, category, pattern);
+    }
+}
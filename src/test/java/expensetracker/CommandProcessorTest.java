@@ -0,0 +1,37 @@
+package expensetracker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Command Processor Test - Each command takes the options it declares and refuses the rest
+ */
+class CommandProcessorTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void undeclaredOptionsAreRefusedAndValuesAreNotTakenForArguments() {
+        ExpenseManager manager = new ExpenseManager(directory, new LedgerConfig());
+        try {
+            CommandProcessor commands = new CommandProcessor(manager);
+            assertEquals("{\"ok\":false,\"error\":\"Unknown option for add: --dat\"}",
+                commands.execute("add Coffee 3.20 Food --dat 2024-01-02"));
+            assertEquals("{\"ok\":false,\"error\":\"Unknown option for stats: --category\"}",
+                commands.execute("stats --category Food"));
+            assertEquals("{\"ok\":false,\"error\":\"Missing value for --limit\"}",
+                commands.execute("search coffee --limit"));
+            assertEquals(0, manager.getExpenseCount());
+
+            // The value of --date is not mistaken for the category
+            assertTrue(commands.execute("add Coffee 3.20 --date 2024-01-02").startsWith("{\"ok\":true"));
+            assertTrue(commands.execute("search coffee --any --limit 1").startsWith("{\"ok\":true,\"count\":1"));
+            assertTrue(commands.execute("export out.csv --currency EUR").contains("Unknown option for export"));
+        } finally {
+            manager.close();
+        }
+    }
+}
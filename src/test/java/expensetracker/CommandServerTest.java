@@ -0,0 +1,115 @@
+package expensetracker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Command Server Test - Shutting the server down while clients are still writing
+ *
+ * Every add a client was told succeeded must be in the journal once serve() returns and
+ * the ledger is closed, and a change that arrives after close is refused, not dropped.
+ */
+class CommandServerTest {
+    private static final int CLIENTS = 4;
+    private static final int ADDS = 200;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void everyAcknowledgedAddSurvivesShutdown() throws Exception {
+        LedgerConfig config = new LedgerConfig();
+        ExpenseManager manager = new ExpenseManager(directory, config);
+        CommandServer server = new CommandServer(manager, 0);
+        ExecutorService pool = Executors.newFixedThreadPool(CLIENTS + 1);
+        Set<String> acknowledged = ConcurrentHashMap.newKeySet();
+        try {
+            Future<?> serving = pool.submit(() -> {
+                server.serve();
+                return null;
+            });
+            CountDownLatch started = new CountDownLatch(CLIENTS);
+            List<Future<?>> clients = new ArrayList<>();
+            for (int c = 0; c < CLIENTS; c++) {
+                int client = c;
+                clients.add(pool.submit(() -> {
+                    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port());
+                         BufferedReader in = reader(socket);
+                         Writer out = writer(socket)) {
+                        for (int i = 0; i < ADDS; i++) {
+                            String description = "client" + client + "x" + i;
+                            out.write("add " + description + " 1.00 Food\n");
+                            out.flush();
+                            String answer = in.readLine();
+                            if (i == 0) started.countDown();
+                            if (answer == null) break;
+                            if (answer.startsWith("{\"ok\":true")) acknowledged.add(description);
+                        }
+                    } catch (IOException e) {
+                        // Hung up on by the shutdown
+                    }
+                    return null;
+                }));
+            }
+            started.await();
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port());
+                 BufferedReader in = reader(socket);
+                 Writer out = writer(socket)) {
+                out.write("shutdown\n");
+                out.flush();
+                assertEquals("{\"ok\":true}", in.readLine());
+            }
+            serving.get(1, TimeUnit.MINUTES);
+            for (Future<?> client : clients) {
+                client.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            pool.shutdownNow();
+            manager.close();
+        }
+
+        assertFalse(acknowledged.isEmpty());
+        ExpenseManager reopened = new ExpenseManager(directory, config);
+        try {
+            Set<String> saved = new HashSet<>();
+            for (Expense expense : reopened.getAllExpenses()) {
+                saved.add(expense.getDescription());
+            }
+            for (String description : acknowledged) {
+                assertTrue(saved.contains(description), "Acknowledged but not saved: " + description);
+            }
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void changesAfterCloseAreRefused() {
+        for (LedgerConfig.Durability durability : LedgerConfig.Durability.values()) {
+            LedgerConfig config = new LedgerConfig();
+            config.durability = durability;
+            ExpenseManager manager = new ExpenseManager(directory, config);
+            manager.close();
+            assertThrows(IllegalStateException.class, () -> manager.addExpense(new Expense("Late", 1.0, "Food")),
+                durability.toString());
+            manager.flush(); // nothing to write, so nothing to refuse
+        }
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static Writer writer(Socket socket) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+}
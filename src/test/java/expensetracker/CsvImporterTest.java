@@ -0,0 +1,46 @@
+package expensetracker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * CSV Importer Test - Bad rows are reported one by one and the rest still go in
+ */
+class CsvImporterTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void rowsInACurrencyWithoutARateAreRejectedAlone() throws IOException {
+        Path csv = directory.resolve("import.csv");
+        Files.writeString(csv, String.join("\n",
+            "Description,Amount,Category,Date,Currency",
+            "Coffee,3.20,Food,2024-03-01 08:00:00,USD",
+            "Train,39.90,Transport,2024-03-02 09:00:00,EUR",
+            "Lunch,12.50,Food,2024-03-03 12:00:00,",
+            "Snack,-1,Food,2024-03-04 15:00:00,USD",
+            ""), StandardCharsets.UTF_8);
+        ExpenseManager manager = new ExpenseManager(directory, new LedgerConfig());
+        try {
+            CsvColumnMapping mapping = new CsvColumnMapping();
+            mapping.defaultCurrency = manager.getBaseCurrency();
+            CsvImporter.Report report = new CsvImporter(mapping).importFile(csv, manager);
+
+            assertEquals(4, report.rows);
+            assertEquals(2, report.imported);
+            assertEquals(2, report.rejected.size());
+            assertEquals(3, report.rejected.get(0).line);
+            assertEquals("no exchange rate for EUR", report.rejected.get(0).reason);
+            assertEquals(5, report.rejected.get(1).line);
+            assertEquals(2, manager.getExpenseCount());
+        } finally {
+            manager.close();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package expensetracker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Expense Journal Recovery Test - Crashes injected at every point of a journal write
+ *
+ * A crash is simulated by copying the journal as it stands on disk into a fresh
+ * directory, cut or damaged where a write could have been interrupted, and opening a
+ * ledger there. Everything written before the torn record must come back and nothing
+ * after it, and the ledger must keep working afterwards. Deletes are cut the same way,
+ * and a batch torn in the middle may only come back as a leading part of itself. In
+ * async mode nothing older than the flush window may be lost.
+ */
+class ExpenseJournalRecoveryTest {
+    private static final String JOURNAL = "expenses.journal";
+    private static final int EXPENSES = 12;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void tornTailIsCutOffAndEverythingBeforeItSurvives() throws IOException {
+        Path live = Files.createDirectories(directory.resolve("live"));
+        List<Long> ends = new ArrayList<>();
+        ExpenseManager manager = new ExpenseManager(live, config(LedgerConfig.Durability.SYNC, 50));
+        try {
+            for (int i = 0; i < EXPENSES; i++) {
+                manager.addExpense(expense(i));
+                ends.add(Files.size(live.resolve(JOURNAL)));
+            }
+            byte[] journal = Files.readAllBytes(live.resolve(JOURNAL));
+            assertEquals(journal.length, (long) ends.get(EXPENSES - 1));
+
+            Set<Long> cuts = new TreeSet<>();
+            long previous = 0;
+            for (long end : ends) {
+                // The record's header, the middle of its payload and its last byte
+                cuts.addAll(List.of(previous, previous + 3, previous + 8, (previous + end) / 2, end - 1));
+                previous = end;
+            }
+            cuts.add(previous);
+            for (long cut : cuts) {
+                int whole = (int) ends.stream().filter(end -> end <= cut).count();
+                Path crashed = crash(Arrays.copyOf(journal, (int) cut), "cut-" + cut);
+                assertRecovered(crashed, whole);
+            }
+
+            // A record that reached the disk damaged is dropped with everything after it
+            for (int record = 0; record < EXPENSES; record++) {
+                long start = record == 0 ? 0 : ends.get(record - 1);
+                byte[] damaged = journal.clone();
+                int at = (int) (start + ends.get(record)) / 2;
+                damaged[at] ^= 0x5A;
+                assertRecovered(crash(damaged, "damaged-" + record), record);
+            }
+
+            // Zeroed or random bytes past the last record, as a write the disk never finished
+            byte[] zeroed = Arrays.copyOf(journal, journal.length + 4096);
+            assertRecovered(crash(zeroed, "zeroed"), EXPENSES);
+            byte[] noise = new byte[100];
+            new Random(7).nextBytes(noise);
+            byte[] garbage = Arrays.copyOf(journal, journal.length + noise.length);
+            System.arraycopy(noise, 0, garbage, journal.length, noise.length);
+            assertRecovered(crash(garbage, "garbage"), EXPENSES);
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    void deletesAndBatchesRecoverUpToTheTornRecord() throws IOException {
+        Path live = Files.createDirectories(directory.resolve("live"));
+        // What is in the ledger after each operation, and where the journal ended
+        List<Set<String>> states = new ArrayList<>(List.of(Set.of()));
+        List<Long> ends = new ArrayList<>(List.of(0L));
+        List<List<String>> batches = new ArrayList<>(List.of(List.of()));
+        Set<String> present = new LinkedHashSet<>();
+        ExpenseManager manager = new ExpenseManager(live, config(LedgerConfig.Durability.SYNC, 50));
+        try {
+            for (int i = 0; i < 4; i++) {
+                manager.addExpense(expense(i));
+                present.add(expense(i).getId());
+                record(live, states, ends, batches, present, List.of());
+            }
+            for (int i : new int[] { 1, 3 }) {
+                assertTrue(manager.deleteExpense(expense(i).getId()));
+                present.remove(expense(i).getId());
+                record(live, states, ends, batches, present, List.of());
+            }
+            List<Expense> batch = new ArrayList<>();
+            for (int i = 4; i < EXPENSES - 1; i++) {
+                batch.add(expense(i));
+            }
+            assertTrue(manager.addExpenses(batch).isEmpty());
+            List<String> batchIds = new ArrayList<>();
+            batch.forEach(expense -> batchIds.add(expense.getId()));
+            present.addAll(batchIds);
+            record(live, states, ends, batches, present, batchIds);
+            assertTrue(manager.deleteExpense(expense(4).getId()));
+            present.remove(expense(4).getId());
+            record(live, states, ends, batches, present, List.of());
+            manager.addExpense(expense(EXPENSES - 1));
+            present.add(expense(EXPENSES - 1).getId());
+            record(live, states, ends, batches, present, List.of());
+
+            byte[] journal = Files.readAllBytes(live.resolve(JOURNAL));
+            for (int op = 1; op < ends.size(); op++) {
+                long start = ends.get(op - 1);
+                long end = ends.get(op);
+                for (long cut : new TreeSet<>(List.of(start, start + 3, (start + end) / 2, end - 1, end))) {
+                    Path crashed = crash(Arrays.copyOf(journal, (int) cut), "op-" + op + "-cut-" + cut);
+                    assertRecoveredState(crashed, cut == end ? states.get(op) : states.get(op - 1),
+                        cut == end ? List.of() : batches.get(op));
+                }
+            }
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    void asyncAddsAreOnDiskOnceFlushedOrTheWindowHasPassed() throws Exception {
+        Path live = Files.createDirectories(directory.resolve("live"));
+        int window = 50;
+        ExpenseManager manager = new ExpenseManager(live, config(LedgerConfig.Durability.ASYNC, window));
+        try {
+            for (int i = 0; i < EXPENSES / 2; i++) {
+                manager.addExpense(expense(i));
+            }
+            manager.flush();
+            byte[] flushed = Files.readAllBytes(live.resolve(JOURNAL));
+            assertRecovered(crash(flushed, "flushed"), EXPENSES / 2);
+
+            for (int i = EXPENSES / 2; i < EXPENSES; i++) {
+                manager.addExpense(expense(i));
+            }
+            // Well past the window, with room for the write itself on a slow disk
+            Thread.sleep(20L * window);
+            byte[] waited = Files.readAllBytes(live.resolve(JOURNAL));
+            assertRecovered(crash(waited, "waited"), EXPENSES);
+        } finally {
+            manager.close();
+        }
+    }
+
+    private static LedgerConfig config(LedgerConfig.Durability durability, int flushDelayMillis) {
+        LedgerConfig config = new LedgerConfig();
+        config.durability = durability;
+        config.flushDelayMillis = flushDelayMillis;
+        // Keeps every change in the journal, where the crashes are injected
+        config.minCompactionRecords = Long.MAX_VALUE;
+        return config;
+    }
+
+    private static Expense expense(int i) {
+        String id = UUID.nameUUIDFromBytes(("expense-" + i).getBytes(StandardCharsets.UTF_8)).toString();
+        return new Expense(id, "Expense " + i, 1_000 + i, Expense.DEFAULT_CURRENCY, "Category " + i % 3,
+            new Date(1_700_000_000_000L + i * 86_400_000L));
+    }
+
+    // A fresh ledger directory holding only the journal as the crash left it
+    private Path crash(byte[] journal, String name) throws IOException {
+        Path crashed = Files.createDirectories(directory.resolve(name));
+        Files.write(crashed.resolve(JOURNAL), journal);
+        return crashed;
+    }
+
+    // Exactly the first `whole` expenses come back, and one added after recovery survives a reopen
+    private static void assertRecovered(Path crashed, int whole) {
+        LedgerConfig config = config(LedgerConfig.Durability.SYNC, 50);
+        ExpenseManager recovered = new ExpenseManager(crashed, config);
+        try {
+            assertExpenses(recovered, whole, crashed);
+            recovered.addExpense(expense(EXPENSES));
+        } finally {
+            recovered.close();
+        }
+        ExpenseManager reopened = new ExpenseManager(crashed, config);
+        try {
+            assertExpenses(reopened, whole, crashed);
+            assertNotNull(reopened.getExpense(expense(EXPENSES).getId()), "Added after recovering " + crashed);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private static void assertExpenses(ExpenseManager manager, int whole, Path crashed) {
+        for (int i = 0; i < EXPENSES; i++) {
+            Expense expense = manager.getExpense(expense(i).getId());
+            if (i < whole) {
+                assertNotNull(expense, "Expense " + i + " lost in " + crashed);
+                assertEquals(1_000L + i, expense.getAmountMinor(), "Amount of expense " + i + " in " + crashed);
+            } else {
+                assertNull(expense, "Expense " + i + " came back from a torn write in " + crashed);
+            }
+        }
+    }
+
+    // Notes the state after an operation; `batch` is what it added in one go, if anything
+    private static void record(Path live, List<Set<String>> states, List<Long> ends, List<List<String>> batches,
+                               Set<String> present, List<String> batch) throws IOException {
+        states.add(new LinkedHashSet<>(present));
+        ends.add(Files.size(live.resolve(JOURNAL)));
+        batches.add(batch);
+    }
+
+    // Exactly `before` comes back, plus some leading part of a batch torn in the middle
+    private static void assertRecoveredState(Path crashed, Set<String> before, List<String> tornBatch) {
+        ExpenseManager recovered = new ExpenseManager(crashed, config(LedgerConfig.Durability.SYNC, 50));
+        try {
+            boolean prefix = true;
+            for (String id : tornBatch) {
+                boolean found = recovered.getExpense(id) != null;
+                assertTrue(prefix || !found, "Batch came back with a gap in " + crashed);
+                prefix &= found;
+            }
+            for (int i = 0; i < EXPENSES; i++) {
+                String id = expense(i).getId();
+                if (tornBatch.contains(id)) continue;
+                assertEquals(before.contains(id), recovered.getExpense(id) != null, "Expense " + i + " in " + crashed);
+            }
+        } finally {
+            recovered.close();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package expensetracker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Expense Manager Concurrency Test - Writers, deleters and readers on one ledger at once
+ *
+ * Writers add expenses spread over two years, so segments are loaded, evicted and the
+ * journal folded while they run. Every other expense is handed to the deleters twice,
+ * and exactly one of the two deletes may succeed. Readers check that each view they get
+ * is consistent with itself. Afterwards the count and total must be what the writers
+ * and deleters did, both in the running ledger and after reopening it.
+ */
+class ExpenseManagerConcurrencyTest {
+    private static final int WRITERS = 8;
+    private static final int DELETERS = 4;
+    private static final int READERS = 2;
+    private static final int ADDS = 2_000;
+    private static final String DONE = "";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void addsAndDeletesFromManyThreadsAreLinearizable() throws Exception {
+        LedgerConfig config = new LedgerConfig();
+        config.maxLoadedRows = 4_000;
+        ExpenseManager manager = new ExpenseManager(directory, config);
+        BlockingQueue<String> deletes = new LinkedBlockingQueue<>();
+        Map<String, AtomicInteger> wins = new ConcurrentHashMap<>();
+        CountDownLatch writing = new CountDownLatch(WRITERS);
+        CountDownLatch deleting = new CountDownLatch(DELETERS);
+        ExecutorService pool = Executors.newFixedThreadPool(WRITERS + DELETERS + READERS);
+        List<Future<?>> tasks = new ArrayList<>();
+        try {
+            for (int w = 0; w < WRITERS; w++) {
+                int writer = w;
+                tasks.add(pool.submit(() -> {
+                    try {
+                        for (int i = 0; i < ADDS; i++) {
+                            Expense expense = expense(writer, i);
+                            manager.addExpense(expense);
+                            if (i % 2 == 0) {
+                                wins.put(expense.getId(), new AtomicInteger());
+                                deletes.add(expense.getId());
+                                deletes.add(expense.getId());
+                            }
+                        }
+                    } finally {
+                        writing.countDown();
+                    }
+                    return null;
+                }));
+            }
+            for (int d = 0; d < DELETERS; d++) {
+                tasks.add(pool.submit(() -> {
+                    try {
+                        for (String id = deletes.take(); !DONE.equals(id); id = deletes.take()) {
+                            if (manager.deleteExpense(id)) {
+                                wins.get(id).incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        deleting.countDown();
+                    }
+                    return null;
+                }));
+            }
+            for (int r = 0; r < READERS; r++) {
+                tasks.add(pool.submit(() -> {
+                    while (deleting.getCount() > 0) {
+                        checkConsistent(manager.getStatistics(new Date(0)));
+                        List<Expense> all = manager.getAllExpenses();
+                        Set<String> ids = new HashSet<>();
+                        for (Expense expense : all) {
+                            assertTrue(ids.add(expense.getId()), "Listed twice: " + expense.getId());
+                        }
+                    }
+                    return null;
+                }));
+            }
+            writing.await();
+            for (int d = 0; d < DELETERS; d++) {
+                deletes.add(DONE);
+            }
+            for (Future<?> task : tasks) {
+                task.get(5, TimeUnit.MINUTES);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        wins.forEach((id, count) -> assertEquals(1, count.get(), "Deletes that succeeded for " + id));
+        assertLedger(manager);
+        manager.close();
+
+        ExpenseManager reopened = new ExpenseManager(directory, config);
+        try {
+            assertLedger(reopened);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    // Writer w's expense i, dated so the writers interleave across 24 monthly segments
+    private static Expense expense(int writer, int i) {
+        long hour = (long) i * WRITERS + writer;
+        return new Expense(id(writer, i), "Expense " + writer + "-" + i, 100 + i,
+            Expense.DEFAULT_CURRENCY, "Category " + i % 20, new Date(1_600_000_000_000L + hour * 3_600_000L));
+    }
+
+    // Random-looking like real ids, which segments are searched by when they aren't loaded
+    private static String id(int writer, int i) {
+        return UUID.nameUUIDFromBytes((writer + "-" + i).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private static void checkConsistent(ExpenseStatistics statistics) {
+        long cents = 0;
+        int count = 0;
+        for (ExpenseAggregates.Bucket bucket : statistics.categories.values()) {
+            cents += bucket.cents;
+            count += bucket.count;
+        }
+        assertEquals(statistics.count, count, "Category counts against the total count");
+        assertEquals(statistics.totalCents, cents, "Category totals against the total");
+    }
+
+    // Only the odd-numbered expenses of each writer are left
+    private static void assertLedger(ExpenseManager manager) {
+        long cents = 0;
+        for (int i = 1; i < ADDS; i += 2) {
+            cents += 100 + i;
+        }
+        ExpenseStatistics statistics = manager.getStatistics(new Date(0));
+        assertEquals(WRITERS * ADDS / 2, statistics.count);
+        assertEquals(WRITERS * cents, statistics.totalCents);
+        assertEquals(WRITERS * ADDS / 2, manager.getExpenseCount());
+        checkConsistent(statistics);
+        for (int w = 0; w < WRITERS; w++) {
+            assertNull(manager.getExpense(id(w, 0)));
+            assertNotNull(manager.getExpense(id(w, ADDS - 1)));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package expensetracker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Expense Manager Segments Test - Whole-ledger reads leave unloaded months unloaded
+ *
+ * A ledger of twelve months is reopened, so only the latest two are loaded. Statistics,
+ * substring search, the per-category lists, the full listing and CSV export must all
+ * cover every month, and none of them may load a segment to do it.
+ */
+class ExpenseManagerSegmentsTest {
+    private static final int MONTHS = 12;
+    private static final int PER_MONTH = 10;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void wholeLedgerReadsDoNotLoadSegments() throws IOException {
+        Path ledger = Files.createDirectories(directory.resolve("ledger"));
+        LedgerConfig config = new LedgerConfig();
+        long cents = 0;
+        ExpenseManager writer = new ExpenseManager(ledger, config);
+        try {
+            for (int month = 0; month < MONTHS; month++) {
+                for (int i = 0; i < PER_MONTH; i++) {
+                    Expense expense = expense(month, i);
+                    writer.addExpense(expense);
+                    cents += expense.getAmountMinor();
+                }
+            }
+        } finally {
+            writer.close();
+        }
+
+        ExpenseManager manager = new ExpenseManager(ledger, config);
+        try {
+            long loads = loads(manager);
+            assertTrue(loads < MONTHS, "Months loaded on opening: " + loads);
+
+            ExpenseStatistics statistics = manager.getStatistics(new Date(0));
+            assertEquals(MONTHS * PER_MONTH, statistics.count);
+            assertEquals(cents, statistics.totalCents);
+            assertEquals(MONTHS, statistics.months.size());
+            assertEquals(100, statistics.smallest.getAmountMinor());
+            assertEquals(100L + (MONTHS - 1) * PER_MONTH + PER_MONTH - 1, statistics.largest.getAmountMinor());
+
+            assertEquals(MONTHS * PER_MONTH / 2, manager.searchExpenses("offee").size());
+            assertEquals(MONTHS, manager.searchExpenses("coffee 4").size());
+
+            Map<String, List<Expense>> byCategory = manager.getExpensesByCategory();
+            assertEquals(MONTHS * PER_MONTH / 2, byCategory.get("Food").size());
+            assertEquals(MONTHS * PER_MONTH / 2, byCategory.get("Bills").size());
+
+            Set<String> ids = new HashSet<>();
+            manager.getAllExpenses().forEach(expense -> ids.add(expense.getId()));
+            assertEquals(MONTHS * PER_MONTH, ids.size());
+
+            Path csv = directory.resolve("export.csv");
+            assertEquals(MONTHS * PER_MONTH, manager.exportToCSV(csv.toString()));
+            assertEquals(MONTHS * PER_MONTH + 1, Files.readAllLines(csv).size());
+            Date from = date(3, 1);
+            Date to = date(5, 1);
+            assertEquals(2 * PER_MONTH, manager.exportToCSV(csv.toString(), ExpenseFilter.between(from, to)));
+
+            assertEquals(loads, loads(manager), "Segments loaded by whole-ledger reads");
+        } finally {
+            manager.close();
+        }
+    }
+
+    private static long loads(ExpenseManager manager) {
+        return manager.getMetrics().latency(ExpenseMetrics.Operation.SEGMENT_LOAD).count();
+    }
+
+    // Expense i of month m of 2020; even ones are coffee, odd ones rent
+    private static Expense expense(int month, int i) {
+        String id = UUID.nameUUIDFromBytes((month + "-" + i).getBytes(StandardCharsets.UTF_8)).toString();
+        String description = i % 2 == 0 ? "Coffee " + i : "Rent " + i;
+        return new Expense(id, description, 100 + month * PER_MONTH + i, Expense.DEFAULT_CURRENCY,
+            i % 2 == 0 ? "Food" : "Bills", date(month, 1 + i));
+    }
+
+    private static Date date(int month, int day) {
+        return Date.from(LocalDate.of(2020, 1 + month, day).atTime(12, 0).atZone(ZoneId.systemDefault()).toInstant());
+    }
+}
@@ -0,0 +1,67 @@
+package expensetracker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Expense Search Test - Word search with OR, and substring search as it always was
+ */
+class ExpenseSearchTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void orSeparatesAlternativesAndTheCacheKeepsUp() {
+        ExpenseManager manager = new ExpenseManager(directory, new LedgerConfig());
+        try {
+            manager.addExpense(new Expense("Morning coffee", 3.20, "Food"));
+            manager.addExpense(new Expense("Taxi ride home", 18.00, "Transport"));
+            manager.addExpense(new Expense("Taxi to airport", 40.00, "Transport"));
+            manager.addExpense(new Expense("Orange juice", 2.50, "Food"));
+
+            assertEquals(Set.of("Morning coffee", "Taxi ride home"),
+                descriptions(manager.searchExpenses("coffee OR taxi ride", SearchMode.ALL)));
+            assertEquals(Set.of("Morning coffee", "Taxi ride home"),
+                descriptions(manager.searchExpenses("coffee or taxi ride", SearchMode.ALL)));
+            assertEquals(Set.of("Orange juice"), descriptions(manager.searchExpenses("orange", SearchMode.ALL)));
+            assertEquals(Set.of("Morning coffee", "Taxi ride home", "Taxi to airport"),
+                descriptions(manager.searchExpenses("coffee ride airport", SearchMode.ANY)));
+            assertTrue(manager.searchExpenses("or", SearchMode.ALL).isEmpty());
+
+            // A cached result takes in an add that matches its second alternative only
+            manager.addExpense(new Expense("Shared ride taxi", 9.00, "Transport"));
+            assertEquals(Set.of("Morning coffee", "Taxi ride home", "Shared ride taxi"),
+                descriptions(manager.searchExpenses("coffee OR taxi ride", SearchMode.ALL)));
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    void theOneArgumentSearchMatchesInsideWords() {
+        ExpenseManager manager = new ExpenseManager(directory, new LedgerConfig());
+        try {
+            manager.addExpense(new Expense("Morning coffee", 3.20, "Food"));
+            manager.addExpense(new Expense("Toffee apple", 1.10, "Snacks"));
+            manager.addExpense(new Expense("Coffee or tea", 2.00, "Food"));
+
+            assertEquals(Set.of("Morning coffee", "Toffee apple", "Coffee or tea"),
+                descriptions(manager.searchExpenses("ffee")));
+            assertEquals(Set.of("Coffee or tea"), descriptions(manager.searchExpenses("coffee or")));
+            assertEquals(Set.of("Toffee apple"), descriptions(manager.searchExpenses("snack")));
+        } finally {
+            manager.close();
+        }
+    }
+
+    private static Set<String> descriptions(List<Expense> expenses) {
+        Set<String> descriptions = new HashSet<>();
+        expenses.forEach(expense -> descriptions.add(expense.getDescription()));
+        assertEquals(expenses.size(), descriptions.size());
+        return descriptions;
+    }
+}
@@ -0,0 +1,194 @@
+package expensetracker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Recurring Expenses Test - Rules that fall due, catch up and never add an occurrence twice
+ *
+ * Cron fields are checked on a known week and month: ranges, steps, Sunday as 0 or 7
+ * and a day matching on either day field when both are restricted. Monthly and yearly
+ * rules started on a long month's last day must land on the last day of shorter ones.
+ */
+class RecurringExpensesTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void rulesWithoutARateWaitWhileTheOthersCarryOn() throws IOException {
+        LedgerConfig config = new LedgerConfig();
+        config.recurringInterval = 0;
+        LocalDateTime start = LocalDateTime.now().truncatedTo(ChronoUnit.MINUTES).minusMonths(3).minusDays(1);
+        RecurringExpenses.Schedule monthly = RecurringExpenses.Schedule.parse("monthly");
+
+        ExpenseManager manager = new ExpenseManager(directory, config);
+        String gym;
+        int rent;
+        try {
+            manager.addRecurring("Rent", 120_000, "USD", "Bills", monthly, start, null);
+            rent = manager.getExpenseCount();
+            assertTrue(rent >= 4, "Monthly occurrences over three months: " + rent);
+
+            gym = manager.addRecurring("Gym", 3_000, "EUR", "Health", monthly, start, null);
+            assertEquals(rent, manager.getExpenseCount());
+            List<RecurringExpenses.Rule> waiting = manager.getWaitingRecurring();
+            assertEquals(1, waiting.size());
+            assertEquals(gym, waiting.get(0).id);
+        } finally {
+            manager.close();
+        }
+
+        // Once the rate is there, the waiting rule catches up from where it stopped
+        Files.writeString(directory.resolve(ExchangeRates.FILE), "2000-01-01,EUR,1.10\n");
+        ExpenseManager reopened = new ExpenseManager(directory, config);
+        try {
+            assertEquals(2 * rent, reopened.getExpenseCount());
+            assertTrue(reopened.getWaitingRecurring().isEmpty());
+            assertEquals(0, reopened.materializeRecurring(new Date()));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void cronFieldsTakeRangesStepsListsAndSundayAsSeven() {
+        // 2024-01-01 is a Monday
+        LocalDateTime start = LocalDateTime.of(2023, 1, 1, 0, 0);
+        LocalDateTime after = LocalDateTime.of(2023, 12, 31, 23, 59);
+        LocalDateTime until = LocalDateTime.of(2024, 1, 7, 23, 59);
+
+        List<LocalDateTime> weekdays = occurrences("*/15 9-10 * * 1-5", start, after, until);
+        assertEquals(5 * 2 * 4, weekdays.size());
+        assertEquals(LocalDateTime.of(2024, 1, 1, 9, 0), weekdays.get(0));
+        assertEquals(LocalDateTime.of(2024, 1, 1, 9, 15), weekdays.get(1));
+        assertEquals(LocalDateTime.of(2024, 1, 5, 10, 45), weekdays.get(weekdays.size() - 1));
+
+        List<LocalDateTime> sunday = List.of(LocalDateTime.of(2024, 1, 7, 8, 0));
+        assertEquals(sunday, occurrences("0 8 * * 7", start, after, until));
+        assertEquals(sunday, occurrences("0 8 * * 0", start, after, until));
+        assertEquals(sunday, occurrences("0 8 * * 6-7", start, after, until).subList(1, 2));
+
+        // A stepped value runs to the end of the field; a stepped range stops at its end
+        assertEquals(List.of(LocalDateTime.of(2024, 1, 1, 0, 5), LocalDateTime.of(2024, 1, 1, 0, 25),
+                LocalDateTime.of(2024, 1, 1, 0, 45)),
+            occurrences("5/20 0 1 1 *", start, after, until));
+        assertEquals(List.of(LocalDateTime.of(2024, 1, 2, 0, 0), LocalDateTime.of(2024, 1, 2, 0, 10),
+                LocalDateTime.of(2024, 1, 2, 0, 20), LocalDateTime.of(2024, 1, 2, 3, 0),
+                LocalDateTime.of(2024, 1, 2, 3, 10), LocalDateTime.of(2024, 1, 2, 3, 20)),
+            occurrences("0-20/10 0,3 2 1 *", start, after, until));
+
+        assertThrows(IllegalArgumentException.class, () -> RecurringExpenses.Schedule.parse("0 24 * * *"));
+        assertThrows(IllegalArgumentException.class, () -> RecurringExpenses.Schedule.parse("0 0 * * 8"));
+        assertThrows(IllegalArgumentException.class, () -> RecurringExpenses.Schedule.parse("0 0 5-1 * *"));
+        assertThrows(IllegalArgumentException.class, () -> RecurringExpenses.Schedule.parse("0 0 * *"));
+    }
+
+    @Test
+    void restrictedDayOfMonthAndDayOfWeekMatchEitherOne() {
+        // January 2024: the 13th is a Saturday, the Fridays are the 5th, 12th, 19th and 26th
+        LocalDateTime start = LocalDateTime.of(2024, 1, 1, 0, 0);
+        LocalDateTime after = start.minusNanos(1);
+        LocalDateTime until = LocalDateTime.of(2024, 1, 31, 23, 59);
+        assertEquals(List.of(5, 12, 13, 19, 26), days(occurrences("0 12 13 * 5", start, after, until)));
+        assertEquals(List.of(13), days(occurrences("0 12 13 * *", start, after, until)));
+        assertEquals(List.of(5, 12, 19, 26), days(occurrences("0 12 * * 5", start, after, until)));
+        assertEquals(List.of(13), days(occurrences("0 12 13 1 *", start, after, until)));
+        assertEquals(List.of(), days(occurrences("0 12 13 2 5", start, after, until)));
+    }
+
+    @Test
+    void monthlyAndYearlyRulesLandOnTheLastDayOfShorterMonths() {
+        LocalDateTime leap = LocalDateTime.of(2024, 1, 31, 9, 0);
+        assertEquals(List.of(leap, LocalDateTime.of(2024, 2, 29, 9, 0), LocalDateTime.of(2024, 3, 31, 9, 0),
+                LocalDateTime.of(2024, 4, 30, 9, 0), LocalDateTime.of(2024, 5, 31, 9, 0)),
+            occurrences("monthly", leap, leap.minusNanos(1), LocalDateTime.of(2024, 5, 31, 9, 0)));
+        LocalDateTime common = LocalDateTime.of(2023, 1, 31, 9, 0);
+        assertEquals(LocalDateTime.of(2023, 2, 28, 9, 0),
+            occurrences("monthly", common, common, LocalDateTime.of(2023, 3, 1, 0, 0)).get(0));
+
+        // Picking up from a watermark counts from the start, not from the shortened month
+        assertEquals(List.of(LocalDateTime.of(2024, 4, 30, 9, 0), LocalDateTime.of(2024, 5, 31, 9, 0)),
+            occurrences("monthly", leap, LocalDateTime.of(2024, 3, 31, 9, 0), LocalDateTime.of(2024, 5, 31, 9, 0)));
+        assertEquals(List.of(LocalDateTime.of(2024, 5, 31, 9, 0)),
+            occurrences("monthly", leap, LocalDateTime.of(2024, 4, 30, 9, 0), LocalDateTime.of(2024, 6, 29, 0, 0)));
+
+        LocalDateTime leapDay = LocalDateTime.of(2024, 2, 29, 9, 0);
+        assertEquals(List.of(LocalDateTime.of(2025, 2, 28, 9, 0), LocalDateTime.of(2026, 2, 28, 9, 0),
+                LocalDateTime.of(2027, 2, 28, 9, 0), LocalDateTime.of(2028, 2, 29, 9, 0)),
+            occurrences("yearly", leapDay, leapDay, LocalDateTime.of(2028, 12, 31, 0, 0)));
+    }
+
+    @Test
+    void materializingAgainFromScratchAddsNothingTwice() throws IOException {
+        LedgerConfig config = new LedgerConfig();
+        config.recurringInterval = 0;
+        // Ended two days ago, so the occurrences don't change while the test runs
+        LocalDateTime start = LocalDateTime.now().truncatedTo(ChronoUnit.MINUTES).minusDays(70);
+        LocalDate end = LocalDate.now().minusDays(2);
+        RecurringExpenses.Schedule daily = RecurringExpenses.Schedule.parse("daily");
+
+        int count;
+        ExpenseManager manager = new ExpenseManager(directory, config);
+        try {
+            manager.addRecurring("Coffee", 320, Expense.DEFAULT_CURRENCY, "Food", daily, start, end);
+            count = manager.getExpenseCount();
+            assertTrue(count >= 67, "Daily occurrences over ten weeks: " + count);
+            assertEquals(0, manager.materializeRecurring(new Date()));
+        } finally {
+            manager.close();
+        }
+
+        // As if the rules file had been saved before the batch it covers: every watermark lost
+        Path file = directory.resolve(RecurringExpenses.FILE);
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(file)) {
+            String[] fields = line.split(",", 9);
+            if (!line.startsWith("#")) fields[4] = "-";
+            lines.add(String.join(",", fields));
+        }
+        Files.write(file, lines);
+
+        List<Expense> due = RecurringExpenses.load(file).due(System.currentTimeMillis(), currency -> true);
+        assertEquals(count, due.size());
+        List<Expense> again = RecurringExpenses.load(file).due(System.currentTimeMillis(), currency -> true);
+        for (int i = 0; i < due.size(); i++) {
+            assertEquals(due.get(i).getId(), again.get(i).getId());
+        }
+
+        // Across segments, loaded or not, the same ids are found in the ledger and skipped
+        ExpenseManager reopened = new ExpenseManager(directory, config);
+        try {
+            assertEquals(count, reopened.getExpenseCount());
+            assertEquals(0, reopened.materializeRecurring(new Date()));
+            for (Expense expense : due) {
+                assertNotNull(reopened.getExpense(expense.getId()), "Occurrence on " + expense.getDate());
+            }
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private static List<LocalDateTime> occurrences(String schedule, LocalDateTime start, LocalDateTime after,
+                                                   LocalDateTime until) {
+        List<LocalDateTime> times = new ArrayList<>();
+        RecurringExpenses.Schedule.parse(schedule).occurrences(start, after, until, times::add);
+        return times;
+    }
+
+    private static List<Integer> days(List<LocalDateTime> times) {
+        List<Integer> days = new ArrayList<>();
+        times.forEach(time -> days.add(time.getDayOfMonth()));
+        return days;
+    }
+}